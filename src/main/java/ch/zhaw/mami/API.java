@@ -1,17 +1,27 @@
 package ch.zhaw.mami;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
@@ -22,24 +32,37 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.LocatedFileStatus;
-import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import ch.zhaw.mami.db.AccessLevels;
 import ch.zhaw.mami.db.AuthDB;
+import ch.zhaw.mami.db.DigestDB;
 import ch.zhaw.mami.db.LogDB;
+import ch.zhaw.mami.db.LogRollups;
 import ch.zhaw.mami.db.UploadDB;
+import ch.zhaw.mami.seq.SeqBatchOutput;
+import ch.zhaw.mami.seq.SeqCompression;
+import ch.zhaw.mami.seq.SeqIndex;
+import ch.zhaw.mami.seq.SeqRecordCache;
+import ch.zhaw.mami.seq.SeqRecordInputStream;
+import ch.zhaw.mami.seq.SeqWriterPool;
+import ch.zhaw.mami.seq.SpooledValue;
 
 import com.sun.jersey.multipart.FormDataParam;
 
@@ -53,9 +76,34 @@ public class API {
     public static Object mutex = new Object();
     public static boolean next = false;
 
+    /* maximum number of keys in a single seqBatch request */
+    private final static int maxBatchKeys = 10000;
+
+    /* files of a bulk upload appended and recorded in the db at once */
+    private final static int bulkBatchSize = 1000;
+
+    /* bytes of files of a bulk upload received before they're appended */
+    private final static long bulkBatchBytes = 64L * 1024 * 1024;
+
+    /* maximum size of the metadata of a file in a bulk upload */
+    private final static int maxMetaSize = 64 * 1024;
+
+    /* maximum number of rows of a stats request */
+    private final static int maxStatsRows = 10000;
+
+    /* chunk sizes of upload sessions */
+    private final static long defaultChunkSize = 64L * 1024 * 1024;
+    private final static long minChunkSize = 1024 * 1024;
+    private final static long maxChunkSize = 1024L * 1024 * 1024;
+
     private final AuthDB authDB;
     private final UploadDB uploadDB;
     private final LogDB logDB;
+    private final SeqIndex seqIndex;
+    private final SeqRecordCache seqRecordCache;
+    private final DigestDB digestDB;
+    private final SeqWriterPool seqWriterPool;
+    private final ContentStore contentStore;
 
     public API() throws IOException {
         API.logger.entry();
@@ -64,6 +112,11 @@ public class API {
         authDB = runtimeConfiguration.getAuthDB();
         uploadDB = runtimeConfiguration.getUploadDB();
         logDB = runtimeConfiguration.getLogDB();
+        seqIndex = runtimeConfiguration.getSeqIndex();
+        seqRecordCache = runtimeConfiguration.getSeqRecordCache();
+        digestDB = runtimeConfiguration.getDigestDB();
+        seqWriterPool = runtimeConfiguration.getSeqWriterPool();
+        contentStore = runtimeConfiguration.getContentStore();
         API.logger.exit();
     }
 
@@ -87,25 +140,102 @@ public class API {
         return API.logger.exit(rb.header("Access-Control-Allow-Origin", "*"));
     }
 
+    /**
+     * Appends a batch of files of a bulk upload: claims their keys (in one
+     * go), appends them, syncs and completes their upload entries. Claims of
+     * files that didn't make it are removed again. Files that couldn't be
+     * appended get an <code>error</code>. The values are closed.
+     */
+    private void appendSeqBulk(final org.apache.hadoop.fs.Path pt,
+            final SeqCompression compression,
+            final Map<String, String> metas,
+            final Map<String, SpooledValue> values,
+            final Map<String, JSONObject> files, final String uploader)
+            throws IOException {
+        try {
+            if (values.isEmpty()) {
+                return;
+            }
+
+            /* the writer holds the lock of the SequenceFile */
+            SeqWriterPool.Handle handle = seqWriterPool.open(pt, compression);
+            if (handle == null) {
+                for (JSONObject file : files.values()) {
+                    file.put("error", "File is busy!");
+                }
+                return;
+            }
+
+            Set<String> claimed = new HashSet<String>(metas.keySet());
+            boolean done = false;
+            try {
+                Set<String> existing = uploadDB.insertSeqUploads(
+                        pt.toString(), metas, uploader);
+                claimed.removeAll(existing);
+
+                Map<String, String> sha1s = new HashMap<String, String>();
+                Map<String, Long> offsets = new HashMap<String, Long>();
+                for (Map.Entry<String, SpooledValue> entry : values
+                        .entrySet()) {
+                    String name = entry.getKey();
+                    if (existing.contains(name)) {
+                        files.get(name).put("error",
+                                "Upload entry already exists!");
+                        continue;
+                    }
+
+                    offsets.put(name, handle.append(
+                            SpooledValue.serializeKey(name), entry.getValue()));
+                    sha1s.put(name, entry.getValue().getSha1());
+                    files.get(name).put("sha1", entry.getValue().getSha1());
+                }
+
+                handle.sync();
+
+                uploadDB.completeSeqUploads(pt.toString(), sha1s);
+                done = true;
+                seqIndex.record(pt.toString(), offsets);
+                seqRecordCache.invalidate(pt.toString());
+                digestDB.putRecordDigests(pt.toString(), offsets, sha1s);
+            } finally {
+                if (!done) {
+                    /* so they can be uploaded again */
+                    uploadDB.removeSeqUploads(pt.toString(), claimed);
+                }
+                handle.release();
+            }
+        } finally {
+            for (SpooledValue value : values.values()) {
+                value.close();
+            }
+            metas.clear();
+            values.clear();
+            files.clear();
+        }
+    }
+
     @Path("fs/bin/{path:.+}")
     @GET
     public Response bin(@HeaderParam("X-API-KEY") final String apiKey,
-            @PathParam("path") final String path) {
-        API.logger.entry(apiKey, path);
+            @PathParam("path") final String path,
+            @HeaderParam("Range") final String range,
+            @HeaderParam("If-Range") final String ifRange) {
+        API.logger.entry(apiKey, path, range, ifRange);
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
                 return API.logger.exit(API.logger.exit(accessError()));
             }
 
-            logDB.insertLogEntry(path, "bin", authDB.getName(apiKey));
+            final String name = authDB.getName(apiKey);
+            logDB.insertLogEntry(path, "bin", name);
 
             if (!Util.validatePath(path)) {
                 return API.logger
                         .exit(clientError("Invalid path (contains illegal characters or too long)"));
             }
 
-            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+            final org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
                     runtimeConfiguration.getPathPrefix() + path);
 
             if (!runtimeConfiguration.getFileSystem().exists(pt)) {
@@ -117,8 +247,37 @@ public class API {
                         .exit(generic404("Not a file: " + pt.getName()));
             }
 
-            final InputStream is = runtimeConfiguration.getFileSystem()
-                    .open(pt);
+            final FileStatus status = contentStore.resolve(pt,
+                    runtimeConfiguration.getFileSystem().getFileStatus(pt));
+            final long fileLength = status.getLen();
+            Date lastModified = new Date(status.getModificationTime());
+            String eTag = Long.toHexString(fileLength) + "-"
+                    + Long.toHexString(status.getModificationTime());
+
+            ByteRange byteRange = null;
+
+            /*
+             * If-Range: only honour the range if the file is still the one the
+             * client has parts of.
+             */
+            boolean rangeValid = ifRange == null
+                    || ifRange.equals("\"" + eTag + "\"")
+                    || ifRange.equals(Util.httpDate(lastModified));
+
+            if (rangeValid) {
+                try {
+                    byteRange = ByteRange.parse(range, fileLength);
+                } catch (ByteRange.UnsatisfiableException ex) {
+                    return API.logger.exit(Response.status(416)
+                            .header("Content-Range", "bytes */" + fileLength)
+                            .entity(ex.getMessage())
+                            .type(MediaType.TEXT_PLAIN).build());
+                }
+            }
+
+            final long start = byteRange == null ? 0 : byteRange.getStart();
+            final long length = byteRange == null ? fileLength : byteRange
+                    .getLength();
 
             StreamingOutput so = new StreamingOutput() {
 
@@ -126,22 +285,59 @@ public class API {
                 public void write(final OutputStream os) throws IOException,
                         WebApplicationException {
 
-                    byte[] chunk = new byte[runtimeConfiguration.getChunkSize()];
-                    int read;
-                    API.logger.trace("Reading chunks...");
-                    while ((read = is.read(chunk)) > 0) {
-                        API.logger.trace("got chunk of size: " + read);
-                        os.write(chunk);
-                        API.logger.trace("wrote chunk");
+                    /*
+                     * Positional reads leave the stream position alone so
+                     * concurrent requests for different ranges of the same
+                     * file don't interfere.
+                     */
+                    FSDataInputStream is = runtimeConfiguration
+                            .getFileSystem().open(status.getPath());
+                    byte[] chunk = runtimeConfiguration.getTransferBuffers()
+                            .acquire();
+                    long position = start;
+
+                    try {
+                        long remaining = length;
+                        API.logger.trace("Reading chunks...");
+                        while (remaining > 0) {
+                            int read = is.read(position, chunk, 0,
+                                    (int) Math.min(chunk.length, remaining));
+                            if (read < 0) {
+                                throw new IOException("Unexpected end of file");
+                            }
+                            API.logger.trace("got chunk of size: " + read);
+                            os.write(chunk, 0, read);
+                            API.logger.trace("wrote chunk");
+                            position += read;
+                            remaining -= read;
+                        }
+                        os.flush();
+                    } finally {
+                        is.close();
+                        runtimeConfiguration.getTransferBuffers().release(
+                                chunk);
+                        logDB.insertTransfer(path, "bin", name, position
+                                - start);
                     }
-                    os.flush();
-
                 }
 
             };
 
-            return API.logger.exit(Response.ok(so)
-                    .type(MediaType.APPLICATION_OCTET_STREAM).build());
+            ResponseBuilder rb;
+
+            if (byteRange == null) {
+                rb = Response.ok(so);
+            }
+            else {
+                rb = Response.status(206).entity(so)
+                        .header("Content-Range",
+                                byteRange.contentRange(fileLength));
+            }
+
+            return API.logger.exit(rb.type(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Accept-Ranges", "bytes")
+                    .header("Content-Length", length).tag(eTag)
+                    .lastModified(lastModified).build());
         } catch (Exception ex) {
             API.logger.catching(ex);
             return API.logger.exit(internalError());
@@ -151,7 +347,8 @@ public class API {
     @GET
     @Path("fs/check/{path:.+}")
     public Response check(@HeaderParam("X-API-KEY") final String apiKey,
-            @PathParam("path") final String path) {
+            @PathParam("path") final String path,
+            @QueryParam("recompute") final boolean recompute) {
 
         boolean locked = false;
         boolean uploadEntryPresent = false;
@@ -230,21 +427,74 @@ public class API {
                                              // hold the lock now.
             }
 
-            is = runtimeConfiguration.getFileSystem().open(pt);
+            FileStatus status = contentStore.resolve(pt, fs.getFileStatus(pt));
+            org.apache.hadoop.fs.Path src = status.getPath();
+
+            if (!recompute) {
+                String cached = digestDB.getDigest(pt.toString(), null,
+                        status.getLen(), status.getModificationTime());
+                if (cached != null) {
+                    doc.append("fileSha1", cached);
+                    doc.append("fileSha1Cached", true);
+                    return API.logger.exit(Response.ok(doc.toJson(),
+                            MediaType.APPLICATION_JSON).build());
+                }
+            }
+
+            Document uploadEntry = (Document) doc.get("uploadEntry");
+
+            if (uploadEntry != null && uploadEntry.containsKey("blockSha1s")) {
+                /* hash the blocks in parallel and compare */
+                @SuppressWarnings("unchecked")
+                List<String> blockSha1s = (List<String>) uploadEntry
+                        .get("blockSha1s");
+                long blockSize = uploadEntry.getLong("blockSize");
+
+                List<Integer> corrupt = BlockDigest.verify(fs, src, blockSize,
+                        blockSha1s, runtimeConfiguration.getCheckExecutor(),
+                        runtimeConfiguration.getTransferBufferSize());
+
+                doc.append("corruptBlocks", corruptRanges(corrupt, blockSize));
+
+                if (corrupt.isEmpty()) {
+                    /* same content as when uploaded */
+                    String digest = uploadEntry.getString("sha1");
+                    digestDB.putDigest(pt.toString(), null, status.getLen(),
+                            status.getModificationTime(), digest);
+                    doc.append("fileSha1", digest);
+                }
+                else {
+                    doc.append("fileSha1", "");
+                }
+                doc.append("fileSha1Cached", false);
+
+                return API.logger.exit(Response.ok(doc.toJson(),
+                        MediaType.APPLICATION_JSON).build());
+            }
+
+            is = fs.open(src);
 
             MessageDigest md = MessageDigest.getInstance("SHA-1");
 
-            byte[] chunk = new byte[runtimeConfiguration.getChunkSize()];
+            byte[] chunk = runtimeConfiguration.getTransferBuffers().acquire();
 
-            int read = 0;
+            try {
+                int read = 0;
 
-            while ((read = is.read(chunk)) > 0) {
-                md.update(chunk, 0, read);
+                while ((read = is.read(chunk)) > 0) {
+                    md.update(chunk, 0, read);
+                }
+            } finally {
+                runtimeConfiguration.getTransferBuffers().release(chunk);
             }
 
             String digest = Util.byteArr2HexStr(md.digest());
 
+            digestDB.putDigest(pt.toString(), null, status.getLen(),
+                    status.getModificationTime(), digest);
+
             doc.append("fileSha1", digest);
+            doc.append("fileSha1Cached", false);
 
             return API.logger.exit(Response.ok(doc.toJson(),
                     MediaType.APPLICATION_JSON).build());
@@ -291,12 +541,89 @@ public class API {
         }
     }
 
+    /**
+     * Checks that <code>session</code> is an upload session of
+     * <code>fileName</code> started with <code>apiKey</code>. Returns the
+     * error to send if it isn't.
+     */
+    private Response checkSession(final String fileName, final String session,
+            final String apiKey) {
+        if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_WRITE)) {
+            return accessError();
+        }
+
+        if (!Util.validateFileName(fileName) || !ObjectId.isValid(session)) {
+            return clientError("Invalid file name or session.");
+        }
+
+        Document sessionDoc = uploadDB.getSession(session);
+        if (sessionDoc == null
+                || !fileName.equals(sessionDoc.getString("fileName"))) {
+            return generic404("No such upload session!");
+        }
+
+        if (!sessionDoc.getString("uploader").equals(authDB.getName(apiKey))) {
+            return accessError();
+        }
+
+        return null;
+    }
+
     private Response clientError(final String message) {
         API.logger.entry(message);
         return API.logger.exit(Response.status(499).entity(message)
                 .type(MediaType.TEXT_PLAIN).build());
     }
 
+    /**
+     * Merges consecutive corrupt blocks into byte ranges.
+     */
+    private static List<Document> corruptRanges(final List<Integer> corrupt,
+            final long blockSize) {
+        List<Document> ranges = new ArrayList<Document>();
+
+        int i = 0;
+        while (i < corrupt.size()) {
+            int first = corrupt.get(i);
+            int last = first;
+            while (i + 1 < corrupt.size() && corrupt.get(i + 1) == last + 1) {
+                last = corrupt.get(++i);
+            }
+            i++;
+
+            Document range = new Document();
+            range.append("firstBlock", first);
+            range.append("lastBlock", last);
+            range.append("offset", first * blockSize);
+            range.append("length", (last - first + 1) * blockSize);
+            ranges.add(range);
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Wraps <code>so</code> so the bytes it sends are logged as a transfer of
+     * <code>path</code> once it is done (or fails).
+     */
+    private StreamingOutput countTransfer(final StreamingOutput so,
+            final String path, final String action, final String name) {
+        return new StreamingOutput() {
+
+            @Override
+            public void write(final OutputStream os) throws IOException,
+                    WebApplicationException {
+                CountingOutputStream cos = new CountingOutputStream(os);
+                try {
+                    so.write(cos);
+                } finally {
+                    logDB.insertTransfer(path, action, name,
+                            cos.getByteCount());
+                }
+            }
+        };
+    }
+
     public Response generic404(final String message) {
         API.logger.entry(message);
         return API.logger.exit(Response.status(404).entity(message)
@@ -309,6 +636,28 @@ public class API {
                 .type(MediaType.TEXT_PLAIN).build());
     }
 
+    @Path("mgmt/indexes")
+    @GET
+    public Response indexes(@HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(apiKey);
+
+        try {
+            if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_ADMIN)) {
+                return API.logger.exit(accessError());
+            }
+
+            logDB.insertLogEntry("", "indexes", authDB.getName(apiKey));
+
+            JSONObject obj = runtimeConfiguration.getIndexManager().report();
+
+            return API.logger.exit(Response.ok(obj.toString(),
+                    MediaType.APPLICATION_JSON).build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private Response internalError() {
         API.logger.entry();
@@ -321,9 +670,12 @@ public class API {
     @Path("fs/ls/{path:.+}")
     @GET
     public Response ls(@HeaderParam("X-API-KEY") final String apiKey,
-            @PathParam("path") final String path) {
+            @PathParam("path") final String path,
+            @QueryParam("limit") final Integer limit,
+            @QueryParam("cursor") final String cursor,
+            @QueryParam("details") final boolean details) {
 
-        API.logger.entry(apiKey, path);
+        API.logger.entry(apiKey, path, limit, cursor, details);
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
@@ -352,14 +704,17 @@ public class API {
                         + pt.getName()));
             }
 
-            RemoteIterator<LocatedFileStatus> files = fs.listFiles(pt, false);
-            JSONArray arr = new JSONArray();
-            while (files.hasNext()) {
-                LocatedFileStatus lfs = files.next();
-                arr.put(lfs.getPath().getName());
+            if (limit != null && limit <= 0) {
+                return API.logger.exit(clientError("Invalid limit"));
+            }
+
+            if (cursor != null && !Util.validatePath(cursor)) {
+                return API.logger.exit(clientError("Invalid cursor"));
             }
+
             return API.logger.exit(allowCORS(
-                    Response.ok(arr.toString(), MediaType.APPLICATION_JSON))
+                    Response.ok(new ListingOutput(fs, pt, false, cursor,
+                            limit, details, contentStore), MediaType.APPLICATION_JSON))
                     .build());
         } catch (Exception ex) {
             API.logger.catching(ex);
@@ -370,9 +725,12 @@ public class API {
     @Path("fs/lsR/{path:.+}")
     @GET
     public Response lsR(@HeaderParam("X-API-KEY") final String apiKey,
-            @PathParam("path") final String path) {
+            @PathParam("path") final String path,
+            @QueryParam("limit") final Integer limit,
+            @QueryParam("cursor") final String cursor,
+            @QueryParam("details") final boolean details) {
 
-        API.logger.entry(apiKey, path);
+        API.logger.entry(apiKey, path, limit, cursor, details);
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
@@ -401,15 +759,18 @@ public class API {
                         + pt.getName()));
             }
 
-            RemoteIterator<LocatedFileStatus> files = fs.listFiles(pt, true);
-            JSONArray arr = new JSONArray();
-            while (files.hasNext()) {
-                LocatedFileStatus lfs = files.next();
-                arr.put(lfs.getPath().toString());
+            if (limit != null && limit <= 0) {
+                return API.logger.exit(clientError("Invalid limit"));
             }
 
-            return API.logger.exit(Response.ok(arr.toString(),
-                    MediaType.TEXT_PLAIN).build());
+            if (cursor != null && !Util.validatePath(cursor)) {
+                return API.logger.exit(clientError("Invalid cursor"));
+            }
+
+            return API.logger.exit(Response.ok(
+                    new ListingOutput(fs, pt, true, cursor, limit, details,
+                            contentStore),
+                    MediaType.APPLICATION_JSON).build());
         } catch (Exception ex) {
             API.logger.catching(ex);
             return API.logger.exit(internalError());
@@ -442,7 +803,7 @@ public class API {
             pt = new org.apache.hadoop.fs.Path(
                     runtimeConfiguration.getPathPrefix() + path);
 
-            locked = uploadDB.getLock(path);
+            locked = uploadDB.getLock(pt.toString());
 
             if (!locked) {
                 return API.logger.exit(clientError("File is busy!"));
@@ -451,10 +812,14 @@ public class API {
             FileSystem fs = runtimeConfiguration.getFileSystem();
             os = fs.create(pt);
 
-            byte chunk[] = new byte[runtimeConfiguration.getChunkSize()];
-            int read;
-            while ((read = data.read(chunk)) > 0) {
-                os.write(chunk, 0, read);
+            byte[] chunk = runtimeConfiguration.getChunkBuffers().acquire();
+            try {
+                int read;
+                while ((read = Util.fill(data, chunk)) > 0) {
+                    os.write(chunk, 0, read);
+                }
+            } finally {
+                runtimeConfiguration.getChunkBuffers().release(chunk);
             }
 
             os.flush();
@@ -507,25 +872,53 @@ public class API {
     @GET
     @javax.ws.rs.Path("fs/raw/{path:.+}")
     public Response raw(@HeaderParam("X-API-KEY") final String apiKey,
-            @PathParam("path") final String path) {
-
-        API.logger.entry(apiKey, path);
+            @PathParam("path") final String path,
+            @QueryParam("offset") final Long offset,
+            @QueryParam("length") final Long length,
+            @QueryParam("line") final Long line,
+            @QueryParam("lines") final Long lines,
+            @QueryParam("charset") final String charset) {
 
-        BufferedReader br = null;
+        API.logger.entry(apiKey, path, offset, length, line, lines, charset);
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
                 return API.logger.exit(accessError());
             }
 
-            logDB.insertLogEntry(path, "raw", authDB.getName(apiKey));
+            String name = authDB.getName(apiKey);
+            logDB.insertLogEntry(path, "raw", name);
 
             if (!Util.validatePath(path)) {
                 return API.logger
                         .exit(clientError("Invalid path (contains illegal characters or too long)"));
             }
 
-            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+            boolean byteWindow = offset != null || length != null;
+            boolean lineWindow = line != null || lines != null;
+
+            if (byteWindow && lineWindow) {
+                return API.logger
+                        .exit(clientError("Use either `offset`/`length` or `line`/`lines`"));
+            }
+
+            if ((offset != null && offset < 0) || (length != null && length < 0)
+                    || (line != null && line < 0)
+                    || (lines != null && lines < 0)) {
+                return API.logger
+                        .exit(clientError("Invalid `offset`, `length`, `line` or `lines`"));
+            }
+
+            String cs = charset == null ? "UTF-8" : charset;
+            try {
+                if (!Charset.isSupported(cs)) {
+                    return API.logger.exit(clientError("Unknown charset"));
+                }
+            } catch (IllegalCharsetNameException ex) {
+                return API.logger.exit(clientError("Unknown charset"));
+            }
+
+            final org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
                     runtimeConfiguration.getPathPrefix() + path);
 
             if (!runtimeConfiguration.getFileSystem().exists(pt)) {
@@ -538,30 +931,68 @@ public class API {
                         .exit(generic404("Not a file: " + pt.getName()));
             }
 
-            br = new BufferedReader(new InputStreamReader(runtimeConfiguration
-                    .getFileSystem().open(pt)));
+            final FileStatus status = contentStore.resolve(pt,
+                    runtimeConfiguration.getFileSystem().getFileStatus(pt));
+            long fileLength = status.getLen();
+
+            final long start = offset == null ? 0 : Math.min(offset,
+                    fileLength);
+            final long count = length == null ? fileLength - start : Math
+                    .min(length, fileLength - start);
+            final long skipLines = line == null ? 0 : line;
+            final long maxLines = lines == null ? -1 : lines;
+            final boolean byLines = lineWindow;
+
+            StreamingOutput so = new StreamingOutput() {
+
+                @Override
+                public void write(final OutputStream os) throws IOException,
+                        WebApplicationException {
+
+                    FSDataInputStream is = runtimeConfiguration
+                            .getFileSystem().open(status.getPath());
+                    byte[] chunk = runtimeConfiguration.getTransferBuffers()
+                            .acquire();
+
+                    try {
+                        if (byLines) {
+                            Util.copyLines(is, os, skipLines, maxLines, chunk);
+                        }
+                        else {
+                            is.seek(start);
+                            long remaining = count;
+                            while (remaining > 0) {
+                                int read = is.read(chunk, 0,
+                                        (int) Math.min(chunk.length, remaining));
+                                if (read < 0) {
+                                    break;
+                                }
+                                os.write(chunk, 0, read);
+                                remaining -= read;
+                            }
+                        }
+                        os.flush();
+                    } finally {
+                        is.close();
+                        runtimeConfiguration.getTransferBuffers().release(
+                                chunk);
+                    }
+                }
+            };
+
+            ResponseBuilder rb = Response.ok(
+                    countTransfer(so, path, "raw", name), MediaType.TEXT_PLAIN
+                            + "; charset=" + cs);
 
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line + "\n");
+            if (!byLines) {
+                rb.header("Content-Length", count);
             }
 
-            return API.logger.exit(allowCORS(
-                    Response.ok(sb.toString(), MediaType.TEXT_PLAIN)).build());
+            return API.logger.exit(allowCORS(rb).build());
 
         } catch (Exception ex) {
             API.logger.catching(ex);
             return API.logger.exit(internalError());
-        } finally {
-            try {
-                if (br != null) {
-                    br.close();
-                }
-            } catch (Exception ex) {
-                API.logger.catching(ex);
-                return API.logger.exit(internalError());
-            }
         }
     }
 
@@ -573,124 +1004,354 @@ public class API {
         return API.logger.exit(Response.ok("OK", MediaType.TEXT_PLAIN).build());
     }
 
-    @Path("fs/seq/bin/{path:.+}")
-    @GET
-    @Produces({ MediaType.APPLICATION_OCTET_STREAM })
-    public Response seqBin(@PathParam("path") final String path,
-            @QueryParam("fileName") final String fileName,
-            @HeaderParam("X-API-KEY") final String apiKey) {
-        API.logger.entry(path, fileName);
-
-        SequenceFile.Reader seqReader = null;
+    @Path("fs/seq/batch/{path:.+}")
+    @POST
+    public Response seqBatch(@HeaderParam("X-API-KEY") final String apiKey,
+            @PathParam("path") final String path,
+            @QueryParam("format") final String format, final String keys) {
+        API.logger.entry(apiKey, path, format);
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
                 return API.logger.exit(accessError());
             }
 
-            logDB.insertLogEntry(path, "seqbin", authDB.getName(apiKey));
+            String name = authDB.getName(apiKey);
+            logDB.insertLogEntry(path, "seqbatch", name);
 
             if (!Util.validatePath(path)) {
                 return API.logger
                         .exit(clientError("Invalid path (contains illegal characters or too long)"));
             }
 
-            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
-                    runtimeConfiguration.getPathPrefix() + path);
+            boolean tar = "tar".equals(format);
+            if (format != null && !tar && !"framed".equals(format)) {
+                return API.logger
+                        .exit(clientError("Invalid format (must be `framed` or `tar`)"));
+            }
 
-            seqReader = new SequenceFile.Reader(
-                    runtimeConfiguration.getFSConfiguration(),
-                    SequenceFile.Reader.file(pt));
+            List<String> seqKeys = new ArrayList<String>();
 
-            BytesWritable key = new BytesWritable();
+            try {
+                JSONArray arr = new JSONArray(keys);
+                for (int i = 0; i < arr.length(); i++) {
+                    seqKeys.add(arr.getString(i));
+                }
+            } catch (Exception ex) {
+                return API.logger
+                        .exit(clientError("Invalid JSON. Need an array of file names."));
+            }
 
-            while (seqReader.next(key)) {
-                String keyAsStr = new String(key.getBytes(), 0, key.getLength());
-                if (keyAsStr.equals(fileName)) {
-                    BytesWritable value = new BytesWritable();
-                    seqReader.getCurrentValue(value);
-                    seqReader.close();
-                    return API.logger.exit(Response.ok(value.copyBytes(),
-                            MediaType.APPLICATION_OCTET_STREAM).build());
+            if (seqKeys.size() > API.maxBatchKeys) {
+                return API.logger.exit(clientError("Too many file names (max. "
+                        + API.maxBatchKeys + ")"));
+            }
+
+            for (String seqKey : seqKeys) {
+                if (!Util.validateFileName(seqKey)) {
+                    return API.logger
+                            .exit(clientError("Invalid file name (contains illegal characters or too long)"));
                 }
             }
 
-            seqReader.close();
+            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+                    runtimeConfiguration.getPathPrefix() + path);
+
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+
+            if (!fs.exists(pt) || !fs.isFile(pt)) {
+                return API.logger.exit(generic404("File not found: "
+                        + pt.getName()));
+            }
+
+            SeqBatchOutput so = new SeqBatchOutput(
+                    runtimeConfiguration.getFSConfiguration(), seqIndex, pt,
+                    seqKeys, tar);
 
-            return API.logger
-                    .exit(generic404("File not found in sequence file!"));
+            return API.logger.exit(Response.ok(
+                    countTransfer(so, path, "seqbatch", name),
+                    tar ? "application/x-tar"
+                            : MediaType.APPLICATION_OCTET_STREAM).build());
         } catch (Exception ex) {
             API.logger.catching(ex);
             return API.logger.exit(internalError());
-        } finally {
-            if (seqReader != null) {
-                try {
-                    seqReader.close();
-                } catch (Exception ex) {
-                    API.logger.catching(ex);
-                    return API.logger.exit(internalError());
-                }
-            }
         }
-
     }
 
+    @Path("fs/seq/bin/{path:.+}")
     @GET
-    @Path("fs/seq/check/{path:.+}")
-    public Response seqCheck(@HeaderParam("X-API-KEY") final String apiKey,
-            @PathParam("path") final String path,
-            @QueryParam("fileName") final String fileName) {
-        boolean locked = false;
-        boolean uploadEntryPresent = false;
-        boolean filePresent = false;
-
-        org.apache.hadoop.fs.Path pt = null;
-        SequenceFile.Reader seqReader = null;
+    @Produces({ MediaType.APPLICATION_OCTET_STREAM })
+    public Response seqBin(@PathParam("path") final String path,
+            @QueryParam("fileName") final String fileName,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(path, fileName);
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
                 return API.logger.exit(accessError());
             }
 
-            pt = new org.apache.hadoop.fs.Path(
-                    runtimeConfiguration.getPathPrefix() + path);
-
-            logDB.insertLogEntry(path, "check", authDB.getName(apiKey));
+            String name = authDB.getName(apiKey);
+            logDB.insertLogEntry(path, "seqbin", name);
 
             if (!Util.validatePath(path)) {
                 return API.logger
                         .exit(clientError("Invalid path (contains illegal characters or too long)"));
             }
 
-            if (!Util.validateFileName(fileName)) {
-                return API.logger
-                        .exit(clientError("Invalid file name (contains illegal characters or too long)"));
-            }
+            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+                    runtimeConfiguration.getPathPrefix() + path);
 
-            if (uploadDB.seqUploadExists(pt.toString(), fileName)) {
-                uploadEntryPresent = true;
-            }
+            return API.logger.exit(seqValue(pt, fileName,
+                    MediaType.APPLICATION_OCTET_STREAM, path, "seqbin", name));
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
 
-            FileSystem fs = runtimeConfiguration.getFileSystem();
+    }
 
-            if (fs.exists(pt)) {
-                if (fs.isFile(pt)) {
-                    filePresent = true;
-                }
-            }
+    @Path("seq/bulk")
+    @POST
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response seqBulkUpload(@FormDataParam("meta") final String meta,
+            @FormDataParam("data") final InputStream data,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(meta, data);
 
-            Document doc = new Document();
-            doc.append("uploadEntryPresent", uploadEntryPresent);
-            doc.append("filePresent", filePresent);
-            doc.append("path", pt.toString());
+        org.apache.hadoop.fs.Path pt = null;
+        String seq = null;
+        String seqPath = null;
+        CountingInputStream in = null;
 
-            /* if none of those exist we can't do much checking */
-            if (!uploadEntryPresent && !filePresent) {
-                return API.logger.exit(Response.ok(doc.toJson(),
-                        MediaType.APPLICATION_JSON).build());
-            }
+        /* received but not yet appended */
+        Map<String, String> metas = new LinkedHashMap<String, String>();
+        Map<String, SpooledValue> values = new LinkedHashMap<String, SpooledValue>();
+        Map<String, JSONObject> batchFiles = new HashMap<String, JSONObject>();
 
-            /*
+        try {
+            if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_WRITE)) {
+                return API.logger.exit(accessError());
+            }
+
+            JSONObject obj = null;
+
+            try {
+                obj = new JSONObject(meta);
+            } catch (Exception ex) {
+                return API.logger.exit(clientError("Invalid JSON"));
+            }
+
+            if (obj.getString("msmntCampaign") == null
+                    || obj.getString("format") == null
+                    || obj.getString("seq") == null) {
+                return API.logger
+                        .exit(clientError("Invalid JSON. Need `msmntCampaign` and `format`."));
+            }
+
+            if (!Util.validatePathPart(obj.getString("msmntCampaign"))
+                    || !Util.validatePathPart(obj.getString("format"))
+                    || !Util.validatePathPart(obj.getString("seq"))) {
+                return API.logger
+                        .exit(clientError("Invalid `msmntCampaign`, `seq` or invalid `format` (contain illegal characters or too long)"));
+            }
+
+            seq = obj.getString("seq");
+
+            seqPath = obj.getString("msmntCampaign") + "/"
+                    + obj.getString("format") + "/" + seq + ".seq";
+
+            String uploader = authDB.getName(apiKey);
+            logDB.insertLogEntry(seqPath, "seqbulk", uploader);
+
+            pt = new org.apache.hadoop.fs.Path(
+                    runtimeConfiguration.getPathPrefix() + seqPath);
+
+            SeqCompression compression = seqWriterPool.compression(pt,
+                    runtimeConfiguration.getSeqCompression(
+                            obj.getString("msmntCampaign"),
+                            obj.getString("format")));
+
+            Map<String, String> fileMetas = new HashMap<String, String>();
+            JSONArray files = new JSONArray();
+            long batchBytes = 0;
+
+            in = new CountingInputStream(data);
+            TarArchiveInputStream tar = new TarArchiveInputStream(in);
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (!entry.isFile()) {
+                    continue;
+                }
+
+                String name = entry.getName();
+                name = name.substring(name.lastIndexOf('/') + 1);
+
+                /* metadata of the file following it */
+                if (name.endsWith(".meta")) {
+                    if (entry.getSize() > API.maxMetaSize) {
+                        /* what has been received so far is appended */
+                        appendSeqBulk(pt, compression, metas, values,
+                                batchFiles, uploader);
+                        return API.logger.exit(clientError("Metadata "
+                                + name + " too large."));
+                    }
+                    byte[] metaBytes = new byte[(int) entry.getSize()];
+                    IOUtils.readFully(tar, metaBytes, 0, metaBytes.length);
+                    fileMetas.put(name.substring(0, name.length() - 5),
+                            new String(metaBytes, "UTF-8"));
+                    continue;
+                }
+
+                JSONObject file = new JSONObject();
+                file.put("fileName", name);
+                files.put(file);
+
+                String fileMeta = meta;
+
+                if (!Util.validateFileName(name)) {
+                    file.put("error",
+                            "Invalid file name (contains illegal characters or too long)");
+                    continue;
+                }
+
+                if (fileMetas.containsKey(name)) {
+                    try {
+                        JSONObject metaObj = new JSONObject(
+                                fileMetas.remove(name));
+                        metaObj.put("msmntCampaign",
+                                obj.getString("msmntCampaign"));
+                        metaObj.put("format", obj.getString("format"));
+                        metaObj.put("seq", seq);
+                        fileMeta = metaObj.toString();
+                    } catch (JSONException ex) {
+                        file.put("error", "Invalid JSON in " + name
+                                + ".meta");
+                        continue;
+                    }
+                }
+
+                if (values.containsKey(name)) {
+                    file.put("error", "Upload entry already exists!");
+                    continue;
+                }
+
+                /*
+                 * received before its key is claimed, so a tar that breaks
+                 * off leaves no entry behind
+                 */
+                SpooledValue value = SpooledValue.spool(tar,
+                        compression.getValueCodec(),
+                        runtimeConfiguration.getSpoolThreshold(),
+                        runtimeConfiguration.getSpoolDir(),
+                        runtimeConfiguration.getTransferBufferSize());
+                metas.put(name, fileMeta);
+                values.put(name, value);
+                batchFiles.put(name, file);
+                batchBytes += value.getSize();
+
+                if (values.size() >= API.bulkBatchSize
+                        || batchBytes >= API.bulkBatchBytes) {
+                    appendSeqBulk(pt, compression, metas, values, batchFiles,
+                            uploader);
+                    batchBytes = 0;
+                }
+            }
+
+            appendSeqBulk(pt, compression, metas, values, batchFiles,
+                    uploader);
+
+            JSONObject result = new JSONObject();
+            result.put("path", pt.toString());
+            result.put("files", files);
+
+            return API.logger.exit(Response.ok(result.toString(),
+                    MediaType.APPLICATION_JSON).build());
+        } catch (JSONException ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(clientError("Invalid JSON!"));
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            uploadDB.insertError(pt.toString(), seq, ex.getMessage());
+            return API.logger.exit(internalError());
+        } finally {
+            for (SpooledValue value : values.values()) {
+                value.close();
+            }
+
+            if (in != null) {
+                logDB.insertTransfer(seqPath, "seqbulk",
+                        authDB.getName(apiKey), in.getByteCount());
+            }
+
+            if (data != null) {
+                try {
+                    data.close();
+                } catch (Exception ex) {
+                    API.logger.catching(ex);
+                }
+            }
+        }
+    }
+
+    @GET
+    @Path("fs/seq/check/{path:.+}")
+    public Response seqCheck(@HeaderParam("X-API-KEY") final String apiKey,
+            @PathParam("path") final String path,
+            @QueryParam("fileName") final String fileName,
+            @QueryParam("recompute") final boolean recompute) {
+        boolean locked = false;
+        boolean uploadEntryPresent = false;
+        boolean filePresent = false;
+
+        org.apache.hadoop.fs.Path pt = null;
+        SequenceFile.Reader seqReader = null;
+
+        try {
+            if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
+                return API.logger.exit(accessError());
+            }
+
+            pt = new org.apache.hadoop.fs.Path(
+                    runtimeConfiguration.getPathPrefix() + path);
+
+            logDB.insertLogEntry(path, "check", authDB.getName(apiKey));
+
+            if (!Util.validatePath(path)) {
+                return API.logger
+                        .exit(clientError("Invalid path (contains illegal characters or too long)"));
+            }
+
+            if (!Util.validateFileName(fileName)) {
+                return API.logger
+                        .exit(clientError("Invalid file name (contains illegal characters or too long)"));
+            }
+
+            if (uploadDB.seqUploadExists(pt.toString(), fileName)) {
+                uploadEntryPresent = true;
+            }
+
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+
+            if (fs.exists(pt)) {
+                if (fs.isFile(pt)) {
+                    filePresent = true;
+                }
+            }
+
+            Document doc = new Document();
+            doc.append("uploadEntryPresent", uploadEntryPresent);
+            doc.append("filePresent", filePresent);
+            doc.append("path", pt.toString());
+
+            /* if none of those exist we can't do much checking */
+            if (!uploadEntryPresent && !filePresent) {
+                return API.logger.exit(Response.ok(doc.toJson(),
+                        MediaType.APPLICATION_JSON).build());
+            }
+
+            /*
              * if the file is not present we can only return the upload entry.
              */
             if (!filePresent && uploadEntryPresent) {
@@ -701,15 +1362,23 @@ public class API {
                         MediaType.APPLICATION_JSON).build());
             }
 
-            /* at this point at least the file is present */
-            locked = uploadDB.getLock(pt.toString());
+            /*
+             * at this point at least the file is present. Appends through
+             * the writer of this process (which holds the lock) don't change
+             * the records that are there already, so the file is read anyway.
+             */
+            boolean appending = seqWriterPool.isOpen(pt);
+            locked = !appending && uploadDB.getLock(pt.toString());
 
             if (uploadEntryPresent) {
                 doc.append("uploadEntry",
                         uploadDB.getSeqUploadEntry(pt.toString(), fileName));
             }
 
-            if (!locked) {
+            if (appending) {
+                doc.append("locked", true);
+            }
+            else if (!locked) {
                 /* if we couldn't acquire the lock then the file is busy */
                 doc.append("locked", true);
                 /* we're not going to read files that have locks */
@@ -721,6 +1390,21 @@ public class API {
                                              // hold the lock now.
             }
 
+            FileStatus status = fs.getFileStatus(pt);
+            Long offset = seqIndex.offset(pt.toString(), fileName);
+
+            if (!recompute && offset != null && offset < status.getLen()) {
+                String cached = digestDB.getRecordDigest(pt.toString(),
+                        fileName, offset);
+                if (cached != null) {
+                    doc.append("fileInSeqFile", true);
+                    doc.append("fileSha1", cached);
+                    doc.append("fileSha1Cached", true);
+                    return API.logger.exit(Response.ok(doc.toJson(),
+                            MediaType.APPLICATION_JSON).build());
+                }
+            }
+
             seqReader = new SequenceFile.Reader(
                     runtimeConfiguration.getFSConfiguration(),
                     SequenceFile.Reader.file(pt));
@@ -729,21 +1413,23 @@ public class API {
             String digest = "";
             boolean fileInSeqFile = false;
 
-            while (seqReader.next(key)) {
-                String keyAsStr = new String(key.getBytes(), 0, key.getLength());
-                if (keyAsStr.equals(fileName)) {
-                    BytesWritable value = new BytesWritable();
-                    seqReader.getCurrentValue(value);
-                    MessageDigest md = MessageDigest.getInstance("SHA-1");
-                    md.update(value.getBytes(), 0, value.getLength());
-                    digest = Util.byteArr2HexStr(md.digest());
-                    fileInSeqFile = true;
-                    break;
+            if (seqIndex.seekTo(seqReader, pt.toString(), fileName, key)) {
+                BytesWritable value = new BytesWritable();
+                seqReader.getCurrentValue(value);
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                md.update(value.getBytes(), 0, value.getLength());
+                digest = Util.byteArr2HexStr(md.digest());
+                fileInSeqFile = true;
+
+                if (offset != null) {
+                    digestDB.putRecordDigest(pt.toString(), fileName, offset,
+                            digest);
                 }
             }
 
             doc.append("fileInSeqFile", fileInSeqFile);
             doc.append("fileSha1", digest);
+            doc.append("fileSha1Cached", false);
 
             return API.logger.exit(Response.ok(doc.toJson(),
                     MediaType.APPLICATION_JSON).build());
@@ -778,11 +1464,52 @@ public class API {
         }
     }
 
+    @Path("mgmt/seqIndex/{path:.+}")
+    @POST
+    public Response seqIndexRebuild(
+            @HeaderParam("X-API-KEY") final String apiKey,
+            @PathParam("path") final String path) {
+        API.logger.entry(apiKey, path);
+
+        try {
+            if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_ADMIN)) {
+                return API.logger.exit(accessError());
+            }
+
+            logDB.insertLogEntry(path, "seqindex", authDB.getName(apiKey));
+
+            if (!Util.validatePath(path)) {
+                return API.logger
+                        .exit(clientError("Invalid path (contains illegal characters or too long)"));
+            }
+
+            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+                    runtimeConfiguration.getPathPrefix() + path);
+
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+
+            if (!fs.exists(pt) || !fs.isFile(pt)) {
+                return API.logger.exit(generic404("File not found: "
+                        + pt.getName()));
+            }
+
+            long records = seqIndex.rebuild(pt);
+
+            return API.logger.exit(Response.ok(Long.toString(records),
+                    MediaType.TEXT_PLAIN).build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
+    }
+
     @Path("fs/seq/ls/{path:.+}")
     @GET
     public Response seqLs(@PathParam("path") final String path,
+            @QueryParam("limit") final Integer limit,
+            @QueryParam("cursor") final String cursor,
             @HeaderParam("X-API-KEY") final String apiKey) {
-        API.logger.entry(path);
+        API.logger.entry(path, limit, cursor);
 
         SequenceFile.Reader seqReader = null;
 
@@ -809,12 +1536,80 @@ public class API {
 
             BytesWritable key = new BytesWritable();
 
-            while (seqReader.next(key)) {
+            if (limit == null && cursor == null) {
+                while (seqReader.next(key)) {
+                    String keyAsStr = new String(key.getBytes(), 0,
+                            key.getLength());
+                    arr.put(keyAsStr);
+                }
+
+                return API.logger.exit(Response.ok(arr.toString(),
+                        MediaType.APPLICATION_JSON).build());
+            }
+
+            if (limit != null && limit <= 0) {
+                return API.logger.exit(clientError("Invalid limit"));
+            }
+
+            /*
+             * A cursor is <offset>:<skip>. The reader is positioned at
+             * <offset> (see SeqIndex.position) and then skips <skip> records
+             * (only non-zero for block compressed files).
+             */
+            long blockPos = 0;
+            long skip = 0;
+
+            if (cursor != null) {
+                String[] parts = cursor.split(":");
+                try {
+                    blockPos = Long.parseLong(parts[0]);
+                    skip = Long.parseLong(parts[1]);
+                } catch (Exception ex) {
+                    return API.logger.exit(clientError("Invalid cursor"));
+                }
+                if (blockPos < 0 || skip < 0) {
+                    return API.logger.exit(clientError("Invalid cursor"));
+                }
+
+                SeqIndex.position(seqReader, blockPos);
+                for (long i = 0; i < skip; i++) {
+                    if (!seqReader.next(key)) {
+                        break;
+                    }
+                }
+            }
+
+            String nextCursor = null;
+            int count = 0;
+
+            while (true) {
+                long before = seqReader.getPosition();
+                if (!seqReader.next(key)) {
+                    break;
+                }
+
+                if (!seqReader.isBlockCompressed() || seqReader.syncSeen()) {
+                    blockPos = before;
+                    skip = 0;
+                }
+
+                if (limit != null && count >= limit) {
+                    nextCursor = blockPos + ":" + skip;
+                    break;
+                }
+
+                skip++;
+                count++;
+
                 String keyAsStr = new String(key.getBytes(), 0, key.getLength());
                 arr.put(keyAsStr);
             }
 
-            return API.logger.exit(Response.ok(arr.toString(),
+            JSONObject obj = new JSONObject();
+            obj.put("keys", arr);
+            obj.put("next", nextCursor == null ? JSONObject.NULL : nextCursor);
+
+            return API.logger.exit(Response.ok(obj.toString(),
                     MediaType.APPLICATION_JSON).build());
 
         } catch (Exception ex) {
@@ -840,14 +1635,13 @@ public class API {
             @HeaderParam("X-API-KEY") final String apiKey) {
         API.logger.entry(path, fileName);
 
-        SequenceFile.Reader seqReader = null;
-
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_READ)) {
                 return API.logger.exit(accessError());
             }
 
-            logDB.insertLogEntry(path, "seqraw", authDB.getName(apiKey));
+            String name = authDB.getName(apiKey);
+            logDB.insertLogEntry(path, "seqraw", name);
 
             if (!Util.validatePath(path)) {
                 return API.logger
@@ -857,38 +1651,11 @@ public class API {
             org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
                     runtimeConfiguration.getPathPrefix() + path);
 
-            seqReader = new SequenceFile.Reader(
-                    runtimeConfiguration.getFSConfiguration(),
-                    SequenceFile.Reader.file(pt));
-
-            BytesWritable key = new BytesWritable();
-
-            while (seqReader.next(key)) {
-                String keyAsStr = new String(key.getBytes(), 0, key.getLength());
-                if (keyAsStr.equals(fileName)) {
-                    BytesWritable value = new BytesWritable();
-                    seqReader.getCurrentValue(value);
-                    seqReader.close();
-                    return API.logger.exit(Response.ok(
-                            new String(value.getBytes(), 0, value.getLength()),
-                            MediaType.TEXT_PLAIN).build());
-                }
-            }
-
-            return API.logger
-                    .exit(generic404("File not found in sequence file!"));
+            return API.logger.exit(seqValue(pt, fileName,
+                    MediaType.TEXT_PLAIN, path, "seqraw", name));
         } catch (Exception ex) {
             API.logger.catching(ex);
             return API.logger.exit(internalError());
-        } finally {
-            if (seqReader != null) {
-                try {
-                    seqReader.close();
-                } catch (Exception ex) {
-                    API.logger.catching(ex);
-                    return API.logger.exit(internalError());
-                }
-            }
         }
 
     }
@@ -897,23 +1664,21 @@ public class API {
     @POST
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     public Response seqUpload(@FormDataParam("meta") final String meta,
-            @FormDataParam("data") final byte[] data,
+            @FormDataParam("data") final InputStream data,
             @PathParam("fileName") final String fileName,
             @HeaderParam("X-API-KEY") final String apiKey) {
         API.logger.entry(meta, data, fileName);
 
-        SequenceFile.Writer seqWriter = null;
+        SpooledValue value = null;
         org.apache.hadoop.fs.Path pt = null;
         String seq = null;
-        boolean locked = false;
+        SeqWriterPool.Handle handle = null;
 
         try {
             if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_WRITE)) {
                 return API.logger.exit(accessError());
             }
 
-            logDB.insertLogEntry(fileName, "sequp", authDB.getName(apiKey));
-
             JSONObject obj = null;
 
             try {
@@ -943,14 +1708,38 @@ public class API {
 
             seq = obj.getString("seq");
 
+            String seqPath = obj.getString("msmntCampaign") + "/"
+                    + obj.getString("format") + "/" + seq + ".seq";
+
+            logDB.insertLogEntry(seqPath, "sequp", authDB.getName(apiKey));
+
             pt = new org.apache.hadoop.fs.Path(
-                    runtimeConfiguration.getPathPrefix()
-                            + obj.getString("msmntCampaign") + "/"
-                            + obj.getString("format") + "/" + seq + ".seq");
+                    runtimeConfiguration.getPathPrefix() + seqPath);
 
-            locked = uploadDB.getLock(pt.toString());
+            SeqCompression compression = seqWriterPool.compression(pt,
+                    runtimeConfiguration.getSeqCompression(
+                            obj.getString("msmntCampaign"),
+                            obj.getString("format")));
 
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            /*
+             * receive (and hash) the data before touching the SequenceFile or
+             * the db, so a client that goes away neither leaves an upload
+             * entry behind nor holds up the writer. Large uploads are spooled
+             * to disk instead of being held in memory.
+             */
+            value = SpooledValue.spool(data, compression.getValueCodec(),
+                    runtimeConfiguration.getSpoolThreshold(),
+                    runtimeConfiguration.getSpoolDir(),
+                    runtimeConfiguration.getTransferBufferSize());
+            logDB.insertTransfer(seqPath, "sequp", authDB.getName(apiKey),
+                    value.getLength());
+
+            /* the writer holds the lock of the SequenceFile */
+            handle = seqWriterPool.open(pt, compression);
+
+            if (handle == null) {
+                return API.logger.exit(clientError("File is busy!"));
+            }
 
             if (!uploadDB.insertSeqUpload(pt.toString(), meta, fileName,
                     authDB.getName(apiKey))) {
@@ -958,27 +1747,17 @@ public class API {
                         .exit(clientError("Upload entry already exists!"));
             }
 
-            md.update(data);
+            String digest = value.getSha1();
 
-            String digest = Util.byteArr2HexStr(md.digest());
-
-            seqWriter = SequenceFile.createWriter(
-                    runtimeConfiguration.getFSConfiguration(),
-                    SequenceFile.Writer.compression(CompressionType.RECORD),
-                    SequenceFile.Writer.keyClass(BytesWritable.class),
-                    SequenceFile.Writer.valueClass(BytesWritable.class),
-                    SequenceFile.Writer.appendIfExists(true),
-                    SequenceFile.Writer.file(pt));
-
-            BytesWritable key = new BytesWritable(fileName.getBytes("UTF-8"));
-            BytesWritable val = new BytesWritable(data);
+            byte[] key = SpooledValue.serializeKey(fileName);
 
-            seqWriter.append(key, val);
-            seqWriter.hflush();
-            seqWriter.hsync();
-            seqWriter.close();
+            long offset = handle.append(key, value);
+            handle.sync();
 
             uploadDB.completeSeqUpload(pt.toString(), fileName, digest);
+            seqIndex.record(pt.toString(), fileName, offset);
+            seqRecordCache.invalidate(pt.toString());
+            digestDB.putRecordDigest(pt.toString(), fileName, offset, digest);
 
             return API.logger.exit(Response.ok(digest).build());
         } catch (JSONException ex) {
@@ -989,34 +1768,147 @@ public class API {
             uploadDB.insertError(pt.toString(), seq, ex.getMessage());
             return API.logger.exit(internalError());
         } finally {
-            boolean error = false;
+            if (handle != null) {
+                handle.release();
+            }
 
-            if (seqWriter != null) {
-                try {
-                    seqWriter.close();
-                } catch (Exception ex) {
-                    API.logger.catching(ex);
-                    uploadDB.insertError(pt.toString(), seq, ex.getMessage());
-                    error = true;
-                }
+            if (value != null) {
+                value.close();
             }
 
-            if (locked) {
+            if (data != null) {
                 try {
-                    uploadDB.releaseLock(pt.toString());
+                    data.close();
                 } catch (Exception ex) {
                     API.logger.catching(ex);
-                    uploadDB.insertError(pt.toString(), seq, ex.getMessage());
-                    error = true;
                 }
             }
+        }
+    }
 
-            if (error) {
-                API.logger.exit(internalError());
+    /**
+     * Sends the value of the record <code>fileName</code>. Small values of
+     * frequently requested records are served from the SeqRecordCache.
+     * Everything else is streamed to the client as it is decompressed so
+     * memory use does not depend on the size of the record. Values of block
+     * compressed SequenceFiles can't be streamed and are read into memory.
+     * The value is logged as a transfer of <code>path</code>.
+     */
+    private Response seqValue(final org.apache.hadoop.fs.Path pt,
+            final String fileName, final String mediaType, final String path,
+            final String action, final String name) throws IOException {
+        API.logger.entry(pt, fileName);
+
+        FileSystem fs = runtimeConfiguration.getFileSystem();
+
+        if (!fs.exists(pt)) {
+            return API.logger.exit(generic404("File not found: "
+                    + pt.getName()));
+        }
+
+        FileStatus status = fs.getFileStatus(pt);
+
+        byte[] cached = seqRecordCache.get(pt.toString(), fileName,
+                status.getLen(), status.getModificationTime());
+
+        if (cached != null) {
+            logDB.insertTransfer(path, action, name, cached.length);
+            return API.logger.exit(Response.ok(cached, mediaType)
+                    .header("Content-Length", cached.length).build());
+        }
+
+        SequenceFile.Reader seqReader = null;
+        SeqRecordInputStream sris = null;
+
+        try {
+            seqReader = new SequenceFile.Reader(
+                    runtimeConfiguration.getFSConfiguration(),
+                    SequenceFile.Reader.file(pt));
+
+            BytesWritable key = new BytesWritable();
+
+            long position = seqIndex.locate(seqReader, pt.toString(),
+                    fileName, key);
+
+            if (position < 0) {
+                return API.logger
+                        .exit(generic404("File not found in sequence file!"));
+            }
+
+            byte[] value = null;
+
+            if (!SeqRecordInputStream.canStream(seqReader)) {
+                BytesWritable bw = new BytesWritable();
+                seqReader.getCurrentValue(bw);
+                value = bw.copyBytes();
+            }
+            else {
+                sris = SeqRecordInputStream.open(fs, pt, seqReader, position);
+
+                if (seqRecordCache.isCacheable(sris.getLength())) {
+                    value = new byte[sris.getLength()];
+                    IOUtils.readFully(sris, value, 0, value.length);
+                    sris.close();
+                    sris = null;
+                }
+            }
+
+            if (value != null) {
+                seqRecordCache.put(pt.toString(), fileName, status.getLen(),
+                        status.getModificationTime(), value);
+                logDB.insertTransfer(path, action, name, value.length);
+                return API.logger.exit(Response.ok(value, mediaType)
+                        .header("Content-Length", value.length).build());
+            }
+
+            final SeqRecordInputStream is = sris;
+            sris = null;
+
+            StreamingOutput so = new StreamingOutput() {
+
+                @Override
+                public void write(final OutputStream os) throws IOException,
+                        WebApplicationException {
+                    byte[] chunk = runtimeConfiguration.getTransferBuffers()
+                            .acquire();
+                    try {
+                        int read;
+                        while ((read = is.read(chunk)) > 0) {
+                            os.write(chunk, 0, read);
+                        }
+                        os.flush();
+                    } finally {
+                        is.close();
+                        runtimeConfiguration.getTransferBuffers().release(
+                                chunk);
+                    }
+                }
+            };
+
+            return API.logger.exit(Response
+                    .ok(countTransfer(so, path, action, name), mediaType)
+                    .header("Content-Length", is.getLength()).build());
+        } finally {
+            if (sris != null) {
+                sris.close();
+            }
+            if (seqReader != null) {
+                seqReader.close();
             }
         }
     }
 
+    /**
+     * Path of the file of an upload session relative to HDFS_PATH (as
+     * uploads are logged).
+     */
+    private String sessionPath(final Document sessionDoc) {
+        org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+                sessionDoc.getString("path"));
+        return pt.getParent().getParent().getName() + "/"
+                + pt.getParent().getName() + "/" + pt.getName();
+    }
+
     @Path("fs/size")
     @POST
     @Consumes({ MediaType.APPLICATION_OCTET_STREAM })
@@ -1027,11 +1919,15 @@ public class API {
         try {
             uploadDB.getLock("foobar");
 
-            byte chunk[] = new byte[runtimeConfiguration.getChunkSize()];
+            byte[] chunk = runtimeConfiguration.getChunkBuffers().acquire();
             long size = 0;
-            int read;
-            while ((read = data.read(chunk)) > 0) {
-                size += read;
+            try {
+                int read;
+                while ((read = data.read(chunk)) > 0) {
+                    size += read;
+                }
+            } finally {
+                runtimeConfiguration.getChunkBuffers().release(chunk);
             }
 
             runtimeConfiguration.getFileSystem();
@@ -1046,12 +1942,112 @@ public class API {
         }
     }
 
+    @Path("mgmt/stats")
+    @GET
+    public Response stats(@HeaderParam("X-API-KEY") final String apiKey,
+            @QueryParam("period") final String period,
+            @QueryParam("from") final Long from,
+            @QueryParam("to") final Long to,
+            @QueryParam("by") final String by,
+            @QueryParam("perPeriod") final boolean perPeriod,
+            @QueryParam("name") final String name,
+            @QueryParam("action") final String action,
+            @QueryParam("prefix") final String prefix,
+            @QueryParam("sort") final String sort,
+            @QueryParam("limit") final Integer limit) {
+        API.logger.entry(apiKey, period, from, to, by, name, action, prefix);
+
+        try {
+            if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_ADMIN)) {
+                return API.logger.exit(accessError());
+            }
+
+            logDB.insertLogEntry("", "stats", authDB.getName(apiKey));
+
+            String p = period == null ? LogRollups.DAY : period;
+            if (!p.equals(LogRollups.DAY) && !p.equals(LogRollups.HOUR)) {
+                return API.logger
+                        .exit(clientError("`period` must be `hour` or `day`"));
+            }
+
+            List<String> dimensions = new ArrayList<String>();
+            if (by != null && !by.isEmpty()) {
+                for (String dimension : by.split(",")) {
+                    if (!LogRollups.dimensions.contains(dimension)) {
+                        return API.logger.exit(clientError("Can't group by `"
+                                + dimension + "`"));
+                    }
+                    dimensions.add(dimension);
+                }
+            }
+
+            String s = sort == null ? "requests" : sort;
+            if (!s.equals("requests") && !s.equals("bytes")) {
+                return API.logger
+                        .exit(clientError("`sort` must be `requests` or `bytes`"));
+            }
+
+            int l = limit == null ? 100 : limit;
+            if (l < 1 || l > API.maxStatsRows) {
+                return API.logger.exit(clientError("`limit` must be 1 to "
+                        + API.maxStatsRows));
+            }
+
+            /* the last seven days by default */
+            long t = to == null ? new Date().getTime() / 1000 : to;
+            long f = from == null ? t - 7 * 86400 : from;
+
+            Map<String, String> filter = new LinkedHashMap<String, String>();
+            if (name != null) {
+                filter.put("name", name);
+            }
+            if (action != null) {
+                filter.put("action", action);
+            }
+            if (prefix != null) {
+                filter.put("prefix", prefix);
+            }
+
+            JSONArray rows = new JSONArray();
+            for (Document doc : logDB.getStats(p, f, t, filter, dimensions,
+                    perPeriod, s, l)) {
+                JSONObject row = new JSONObject();
+                for (Map.Entry<String, Object> entry : doc.entrySet()) {
+                    row.put(entry.getKey(), entry.getValue());
+                }
+                rows.put(row);
+            }
+
+            return API.logger.exit(Response.ok(rows.toString(),
+                    MediaType.APPLICATION_JSON).build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
+    }
+
     @Path("status")
     @GET
-    public Response status() {
-        API.logger.entry();
-        return API.logger.exit(Response.ok("RUNNING", MediaType.TEXT_PLAIN)
-                .build());
+    public Response status(@QueryParam("verbose") final boolean verbose) {
+        API.logger.entry(verbose);
+
+        if (!verbose) {
+            return API.logger.exit(Response.ok("RUNNING",
+                    MediaType.TEXT_PLAIN).build());
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("status", "RUNNING");
+        obj.put("seqRecordCache", seqRecordCache.stats());
+        obj.put("seqWriterPool", seqWriterPool.stats());
+        obj.put("scrubber", runtimeConfiguration.getScrubber().stats());
+        obj.put("chunkBuffers", runtimeConfiguration.getChunkBuffers().stats());
+        obj.put("transferBuffers", runtimeConfiguration.getTransferBuffers()
+                .stats());
+        obj.put("logDB", logDB.stats());
+
+        return API.logger.exit(Response.ok(obj.toString(),
+                MediaType.APPLICATION_JSON).build());
     }
 
     @Path("up/{fileName}")
@@ -1065,6 +2061,7 @@ public class API {
 
         OutputStream os = null;
         org.apache.hadoop.fs.Path pt = null;
+        org.apache.hadoop.fs.Path tmp = null;
         boolean locked = false;
 
         try {
@@ -1072,8 +2069,6 @@ public class API {
                 return API.logger.exit(accessError());
             }
 
-            logDB.insertLogEntry(fileName, "up", authDB.getName(apiKey));
-
             JSONObject obj = null;
 
             try {
@@ -1099,10 +2094,13 @@ public class API {
                         .exit(clientError("Invalid file name (contains illegal characters or too long)"));
             }
 
+            String path = obj.getString("msmntCampaign") + "/"
+                    + obj.getString("format") + "/" + fileName;
+
+            logDB.insertLogEntry(path, "up", authDB.getName(apiKey));
+
             pt = new org.apache.hadoop.fs.Path(
-                    runtimeConfiguration.getPathPrefix()
-                            + obj.getString("msmntCampaign") + "/"
-                            + obj.getString("format") + "/" + fileName);
+                    runtimeConfiguration.getPathPrefix() + path);
 
             FileSystem fs = runtimeConfiguration.getFileSystem();
 
@@ -1124,21 +2122,42 @@ public class API {
                         .exit(clientError("Upload entry already exists!"));
             }
 
-            os = fs.create(pt);
-
-            byte chunk[] = new byte[runtimeConfiguration.getChunkSize()];
-            int read;
-            while ((read = data.read(chunk)) > 0) {
-                md.update(chunk, 0, read);
-                os.write(chunk, 0, read);
+            /* deduplicated content is only stored once its hash is known */
+            if (contentStore.isEnabled()) {
+                tmp = contentStore.tmpPath();
             }
 
+            os = fs.create(tmp != null ? tmp : pt);
+
+            BlockDigest blockDigest = new BlockDigest(
+                    fs.getDefaultBlockSize(pt));
+
+            long length = UploadCopy.copy(data, os, md, blockDigest,
+                    runtimeConfiguration.getChunkBuffers(),
+                    runtimeConfiguration.getUploadWriteExecutor());
+            logDB.insertTransfer(path, "up", authDB.getName(apiKey), length);
+
             os.flush();
             os.close();
 
             String digest = Util.byteArr2HexStr(md.digest());
 
-            uploadDB.completeUpload(pt.toString(), digest);
+            org.apache.hadoop.fs.Path ref = null;
+            if (tmp != null) {
+                ref = contentStore.store(tmp, digest);
+                tmp = null;
+                fs.create(pt, false).close();
+            }
+
+            List<String> blockSha1s = blockDigest.finish();
+            uploadDB.completeUpload(pt.toString(), digest,
+                    blockDigest.getBlockSize(), blockSha1s,
+                    BlockDigest.treeSha1(blockSha1s),
+                    ref == null ? null : ref.toString());
+
+            FileStatus status = fs.getFileStatus(ref != null ? ref : pt);
+            digestDB.putDigest(pt.toString(), null, status.getLen(),
+                    status.getModificationTime(), digest);
 
             return API.logger.exit(Response.ok(digest).build());
 
@@ -1148,6 +2167,13 @@ public class API {
         } catch (Exception ex) {
             API.logger.catching(ex);
             uploadDB.insertError(pt.toString(), "", ex.getMessage());
+            if (tmp != null) {
+                try {
+                    runtimeConfiguration.getFileSystem().delete(tmp, false);
+                } catch (Exception ex2) {
+                    API.logger.catching(ex2);
+                }
+            }
             return API.logger.exit(internalError());
         } finally {
 
@@ -1187,4 +2213,368 @@ public class API {
             }
         }
     }
-}
\ No newline at end of file
+
+    @Path("up/session/{fileName}/{session}")
+    @DELETE
+    public Response uploadSessionAbort(
+            @PathParam("fileName") final String fileName,
+            @PathParam("session") final String session,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(fileName, session);
+
+        try {
+            Response error = checkSession(fileName, session, apiKey);
+            if (error != null) {
+                return API.logger.exit(error);
+            }
+
+            Document sessionDoc = uploadDB.getSession(session);
+
+            logDB.insertLogEntry(sessionPath(sessionDoc), "upabort",
+                    authDB.getName(apiKey));
+
+            if (!ChunkedUpload.abort(runtimeConfiguration, sessionDoc)) {
+                return API.logger.exit(clientError("File is busy!"));
+            }
+
+            return API.logger.exit(Response.ok().build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
+    }
+
+    @Path("up/session/{fileName}/{session}/{chunk}")
+    @PUT
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    public Response uploadSessionChunk(final InputStream data,
+            @PathParam("fileName") final String fileName,
+            @PathParam("session") final String session,
+            @PathParam("chunk") final long chunk,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(fileName, session, chunk);
+
+        try {
+            Response error = checkSession(fileName, session, apiKey);
+            if (error != null) {
+                return API.logger.exit(error);
+            }
+
+            if (chunk < 0) {
+                return API.logger.exit(clientError("Invalid chunk number."));
+            }
+
+            Document sessionDoc = uploadDB.getSession(session);
+            long chunkSize = sessionDoc.getLong("chunkSize");
+
+            logDB.insertLogEntry(sessionPath(sessionDoc), "upchunk",
+                    authDB.getName(apiKey));
+
+            Document chunkDoc = ChunkedUpload.writeChunk(
+                    runtimeConfiguration.getFileSystem(),
+                    ChunkedUpload.stagingDir(runtimeConfiguration, session),
+                    chunk, data, chunkSize,
+                    runtimeConfiguration.getTransferBufferSize());
+
+            if (chunkDoc == null) {
+                return API.logger.exit(clientError("Chunk larger than "
+                        + chunkSize + " bytes."));
+            }
+
+            uploadDB.putSessionChunk(session, chunk,
+                    chunkDoc.getLong("length"), chunkDoc.getString("sha1"));
+
+            logDB.insertTransfer(sessionPath(sessionDoc), "upchunk",
+                    authDB.getName(apiKey), chunkDoc.getLong("length"));
+
+            chunkDoc.append("chunk", chunk);
+            chunkDoc.append("offset", chunk * chunkSize);
+
+            return API.logger.exit(Response.ok(chunkDoc.toJson(),
+                    MediaType.APPLICATION_JSON).build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        } finally {
+            try {
+                data.close();
+            } catch (Exception ex) {
+                API.logger.catching(ex);
+            }
+        }
+    }
+
+    @Path("up/session/{fileName}/{session}/commit")
+    @POST
+    public Response uploadSessionCommit(
+            @PathParam("fileName") final String fileName,
+            @PathParam("session") final String session,
+            @QueryParam("sha1") final String sha1,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(fileName, session, sha1);
+
+        org.apache.hadoop.fs.Path pt = null;
+        boolean locked = false;
+
+        try {
+            Response error = checkSession(fileName, session, apiKey);
+            if (error != null) {
+                return API.logger.exit(error);
+            }
+
+            if (sha1 == null) {
+                return API.logger.exit(clientError("Need `sha1`."));
+            }
+
+            Document sessionDoc = uploadDB.getSession(session);
+            long chunkSize = sessionDoc.getLong("chunkSize");
+            Document chunks = (Document) sessionDoc.get("chunks");
+
+            logDB.insertLogEntry(sessionPath(sessionDoc), "upcommit",
+                    authDB.getName(apiKey));
+
+            /* chunks must be contiguous and all but the last one full */
+            long count = chunks.size();
+            for (long i = 0; i < count; i++) {
+                Document chunkDoc = (Document) chunks.get(Long.toString(i));
+                if (chunkDoc == null) {
+                    return API.logger.exit(clientError("Chunk " + i
+                            + " is missing."));
+                }
+                if (i < count - 1 && chunkDoc.getLong("length") != chunkSize) {
+                    return API.logger.exit(clientError("Chunk " + i
+                            + " is incomplete."));
+                }
+            }
+
+            pt = new org.apache.hadoop.fs.Path(sessionDoc.getString("path"));
+
+            locked = uploadDB.getLock(pt.toString());
+
+            if (!locked) {
+                return API.logger.exit(clientError("File is busy!"));
+            }
+
+            /* aborted (or expired) while waiting for the lock */
+            if (uploadDB.getSession(session) == null) {
+                return API.logger.exit(generic404("No such upload session!"));
+            }
+
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+
+            if (fs.exists(pt)) {
+                return API.logger.exit(clientError("Path already exists."));
+            }
+
+            org.apache.hadoop.fs.Path dir = ChunkedUpload.stagingDir(
+                    runtimeConfiguration, session);
+            List<org.apache.hadoop.fs.Path> parts = ChunkedUpload.parts(dir,
+                    count);
+
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            BlockDigest blockDigest = new BlockDigest(
+                    fs.getDefaultBlockSize(pt));
+            ChunkedUpload.hash(fs, parts, md, blockDigest,
+                    runtimeConfiguration.getTransferBufferSize());
+
+            String digest = Util.byteArr2HexStr(md.digest());
+
+            if (!digest.equalsIgnoreCase(sha1)) {
+                return API.logger.exit(clientError("SHA1 mismatch: " + digest));
+            }
+
+            org.apache.hadoop.fs.Path ref = null;
+
+            if (contentStore.isEnabled()) {
+                /* known content doesn't have to be put together again */
+                ref = contentStore.reference(digest);
+                if (ref == null) {
+                    org.apache.hadoop.fs.Path tmp = contentStore.tmpPath();
+                    if (count == 0) {
+                        fs.create(tmp, false).close();
+                    }
+                    else {
+                        ChunkedUpload.assemble(fs, parts, tmp,
+                                runtimeConfiguration.getTransferBufferSize());
+                    }
+                    ref = contentStore.store(tmp, digest);
+                }
+                fs.create(pt, false).close();
+            }
+            else if (count == 0) {
+                fs.create(pt, false).close();
+            }
+            else {
+                ChunkedUpload.assemble(fs, parts, pt,
+                        runtimeConfiguration.getTransferBufferSize());
+            }
+
+            List<String> blockSha1s = blockDigest.finish();
+            uploadDB.completeUpload(pt.toString(), digest,
+                    blockDigest.getBlockSize(), blockSha1s,
+                    BlockDigest.treeSha1(blockSha1s),
+                    ref == null ? null : ref.toString());
+
+            FileStatus status = fs.getFileStatus(ref != null ? ref : pt);
+            digestDB.putDigest(pt.toString(), null, status.getLen(),
+                    status.getModificationTime(), digest);
+
+            fs.delete(dir, true);
+            uploadDB.removeSession(session);
+
+            return API.logger.exit(Response.ok(digest).build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            if (pt != null) {
+                uploadDB.insertError(pt.toString(), "", ex.getMessage());
+            }
+            return API.logger.exit(internalError());
+        } finally {
+            if (locked) {
+                try {
+                    uploadDB.releaseLock(pt.toString());
+                } catch (Exception ex) {
+                    API.logger.catching(ex);
+                    uploadDB.insertError(pt.toString(), "", ex.getMessage());
+                    return API.logger.exit(internalError());
+                }
+            }
+        }
+    }
+
+    @Path("up/session/{fileName}")
+    @POST
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    public Response uploadSessionOpen(@FormDataParam("meta") final String meta,
+            @PathParam("fileName") final String fileName,
+            @QueryParam("chunkSize") final Long chunkSize,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(meta, fileName, chunkSize);
+
+        try {
+            if (!checkAccessLevel(apiKey, AccessLevels.ACCESS_FS_WRITE)) {
+                return API.logger.exit(accessError());
+            }
+
+            JSONObject obj = null;
+
+            try {
+                obj = new JSONObject(meta);
+            } catch (Exception ex) {
+                return API.logger.exit(clientError("Invalid JSON"));
+            }
+
+            if (obj.getString("msmntCampaign") == null
+                    || obj.getString("format") == null) {
+                return API.logger
+                        .exit(clientError("Invalid JSON. Need `msmntCampaign` and `format`."));
+            }
+
+            if (!Util.validatePathPart(obj.getString("msmntCampaign"))
+                    || !Util.validatePathPart(obj.getString("format"))) {
+                return API.logger
+                        .exit(clientError("Invalid `msmntCampaign` or invalid `format` (contain illegal characters or too long)"));
+            }
+
+            if (!Util.validateFileName(fileName)) {
+                return API.logger
+                        .exit(clientError("Invalid file name (contains illegal characters or too long)"));
+            }
+
+            long size = chunkSize == null ? API.defaultChunkSize : chunkSize;
+            if (size < API.minChunkSize || size > API.maxChunkSize) {
+                return API.logger.exit(clientError("`chunkSize` must be between "
+                        + API.minChunkSize + " and " + API.maxChunkSize));
+            }
+
+            String path = obj.getString("msmntCampaign") + "/"
+                    + obj.getString("format") + "/" + fileName;
+
+            logDB.insertLogEntry(path, "upsession", authDB.getName(apiKey));
+
+            org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+                    runtimeConfiguration.getPathPrefix() + path);
+
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+
+            if (fs.exists(pt)) {
+                return API.logger.exit(clientError("Path already exists."));
+            }
+
+            if (!uploadDB.insertUpload(pt.toString(), meta,
+                    authDB.getName(apiKey), fileName)) {
+                return API.logger
+                        .exit(clientError("Upload entry already exists!"));
+            }
+
+            String session = new ObjectId().toHexString();
+            uploadDB.insertSession(session, pt.toString(), fileName, size,
+                    authDB.getName(apiKey));
+            fs.mkdirs(ChunkedUpload.stagingDir(runtimeConfiguration, session));
+
+            JSONObject result = new JSONObject();
+            result.put("session", session);
+            result.put("path", pt.toString());
+            result.put("chunkSize", size);
+
+            return API.logger.exit(Response.ok(result.toString(),
+                    MediaType.APPLICATION_JSON).build());
+        } catch (JSONException ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(clientError("Invalid JSON!"));
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
+    }
+
+    @Path("up/session/{fileName}/{session}")
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadSessionStatus(
+            @PathParam("fileName") final String fileName,
+            @PathParam("session") final String session,
+            @HeaderParam("X-API-KEY") final String apiKey) {
+        API.logger.entry(fileName, session);
+
+        try {
+            Response error = checkSession(fileName, session, apiKey);
+            if (error != null) {
+                return API.logger.exit(error);
+            }
+
+            Document sessionDoc = uploadDB.getSession(session);
+            long chunkSize = sessionDoc.getLong("chunkSize");
+            Document chunks = (Document) sessionDoc.get("chunks");
+
+            List<Long> numbers = new ArrayList<Long>();
+            for (String key : chunks.keySet()) {
+                numbers.add(Long.parseLong(key));
+            }
+            Collections.sort(numbers);
+
+            JSONArray arr = new JSONArray();
+            for (long chunk : numbers) {
+                Document chunkDoc = (Document) chunks.get(Long.toString(chunk));
+                JSONObject obj = new JSONObject();
+                obj.put("chunk", chunk);
+                obj.put("offset", chunk * chunkSize);
+                obj.put("length", chunkDoc.getLong("length"));
+                obj.put("sha1", chunkDoc.getString("sha1"));
+                arr.put(obj);
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("session", session);
+            result.put("path", sessionDoc.getString("path"));
+            result.put("chunkSize", chunkSize);
+            result.put("chunks", arr);
+
+            return API.logger.exit(Response.ok(result.toString(),
+                    MediaType.APPLICATION_JSON).build());
+        } catch (Exception ex) {
+            API.logger.catching(ex);
+            return API.logger.exit(internalError());
+        }
+    }
+}
@@ -3,8 +3,11 @@ package ch.zhaw.mami;
 import java.util.HashMap;
 import java.util.Map;
 
+import ch.zhaw.mami.db.UploadDBBench;
 import ch.zhaw.mami.imp.FolderImporter;
+import ch.zhaw.mami.imp.TreeImporter;
 import ch.zhaw.mami.mr.FolderReader;
+import ch.zhaw.mami.seq.SeqCompressionBench;
 
 import com.sun.grizzly.http.SelectorThread;
 import com.sun.jersey.api.container.grizzly.GrizzlyWebContainerFactory;
@@ -38,6 +41,31 @@ public class App {
         }
     }
 
+    public static void seqIndex(final String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new RuntimeException("Need more arguments: <path>");
+        }
+        RuntimeConfiguration runtimeConfiguration = RuntimeConfiguration
+                .getInstance();
+        org.apache.hadoop.fs.Path pt = new org.apache.hadoop.fs.Path(
+                runtimeConfiguration.getPathPrefix() + args[1]);
+        System.out.println("Indexing: " + pt.toString());
+        long records = runtimeConfiguration.getSeqIndex().rebuild(pt);
+        System.out.println("Indexed " + records + " records.");
+    }
+
+    public static void treeImport(final String[] args) throws Exception {
+        if (args.length != 3) {
+            throw new RuntimeException("Need more arguments: <path> <uploader>");
+        }
+        System.out.println("Importing tree from: " + args[1]);
+        TreeImporter ti = new TreeImporter(args[1], args[2]);
+        if (args[2].equals("nodb")) {
+            ti.setUseDb(false);
+        }
+        ti.importFiles();
+    }
+
     public static void main(final String[] args) throws Exception {
 
         // System.setProperty("HADOOP_USER_NAME", "hdfs-mami");
@@ -52,6 +80,51 @@ public class App {
                     System.exit(1);
                 }
             }
+            if (args[0].equals("treeImport")) {
+                try {
+                    App.treeImport(args);
+                    System.exit(0);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
+            if (args[0].equals("seqIndex")) {
+                try {
+                    App.seqIndex(args);
+                    System.exit(0);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
+            if (args[0].equals("seqBench")) {
+                try {
+                    SeqCompressionBench.seqBench(args);
+                    System.exit(0);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
+            if (args[0].equals("transferBench")) {
+                try {
+                    TransferBench.transferBench(args);
+                    System.exit(0);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
+            if (args[0].equals("uploadDBBench")) {
+                try {
+                    UploadDBBench.uploadDBBench(args);
+                    System.exit(0);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
             if (args[0].equals("folderReader")) {
                 FolderReader.folderReader(args);
                 System.exit(0);
@@ -68,13 +141,18 @@ public class App {
                     "/etc/hdfs-mami/logger.xml");
         }
 
-        final String baseUri = RuntimeConfiguration.getInstance().getURL();
+        final RuntimeConfiguration runtimeConfiguration = RuntimeConfiguration
+                .getInstance();
+        final String baseUri = runtimeConfiguration.getURL();
         final Map<String, String> initParams = new HashMap<String, String>();
 
         initParams.put("com.sun.jersey.config.property.packages",
                 "ch.zhaw.mami");
         initParams.put("com.sun.jersey.api.json.POJOMappingFeature", "true");
 
+        runtimeConfiguration.getScrubber().start();
+        runtimeConfiguration.getSessionReaper().start();
+
         System.out.println("Starting grizzly...");
         SelectorThread threadSelector = GrizzlyWebContainerFactory.create(
                 baseUri, initParams);
@@ -84,6 +162,11 @@ public class App {
                 baseUri, baseUri));
         System.in.read();
         threadSelector.stopEndpoint();
+        runtimeConfiguration.getScrubber().stop();
+        runtimeConfiguration.getSessionReaper().stop();
+        runtimeConfiguration.getSeqWriterPool().closeAll();
+        runtimeConfiguration.getUploadDB().close();
+        runtimeConfiguration.getLogDB().close();
         System.exit(0);
     }
 }
@@ -0,0 +1,159 @@
+package ch.zhaw.mami;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * SHA-1 hashes of the fixed size blocks of a file (the last block may be
+ * shorter). With the block size of the file in HDFS every hash covers exactly
+ * one HDFS block, so the blocks can be verified in parallel and a corruption
+ * can be pinned down to a block. <code>treeSha1</code> is the SHA-1 of the
+ * concatenated (binary) block hashes and identifies the whole list.
+ *
+ */
+public class BlockDigest {
+
+    /**
+     * SHA-1 of the concatenated block hashes.
+     */
+    public static String treeSha1(final List<String> blockSha1s)
+            throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        for (String blockSha1 : blockSha1s) {
+            for (int i = 0; i < blockSha1.length(); i += 2) {
+                md.update((byte) Integer.parseInt(
+                        blockSha1.substring(i, i + 2), 16));
+            }
+        }
+        return Util.byteArr2HexStr(md.digest());
+    }
+
+    /**
+     * Hashes the blocks of <code>pt</code> in parallel and returns the indices
+     * of blocks that don't match <code>blockSha1s</code> (in ascending order).
+     * Blocks beyond the end of the file and blocks without a hash count as
+     * corrupt.
+     */
+    public static List<Integer> verify(final FileSystem fs, final Path pt,
+            final long blockSize, final List<String> blockSha1s,
+            final ExecutorService executor, final int bufferSize)
+            throws IOException, InterruptedException {
+        final long length = fs.getFileStatus(pt).getLen();
+        long blocks = (length + blockSize - 1) / blockSize;
+
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (long i = 0; i < blocks && i < blockSha1s.size(); i++) {
+            final long offset = i * blockSize;
+            futures.add(executor.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    return BlockDigest.hashBlock(fs, pt, offset,
+                            Math.min(blockSize, length - offset), bufferSize);
+                }
+            }));
+        }
+
+        List<Integer> corrupt = new ArrayList<Integer>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                if (!futures.get(i).get().equals(blockSha1s.get(i))) {
+                    corrupt.add(i);
+                }
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        for (long i = futures.size(); i < Math.max(blocks, blockSha1s.size()); i++) {
+            corrupt.add((int) i);
+        }
+
+        return corrupt;
+    }
+
+    private static String hashBlock(final FileSystem fs, final Path pt,
+            final long offset, final long length, final int bufferSize)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] buf = new byte[(int) Math.min(bufferSize, length)];
+
+        FSDataInputStream in = fs.open(pt);
+        try {
+            in.seek(offset);
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buf, 0, (int) Math.min(buf.length,
+                        remaining));
+                if (read < 0) {
+                    break;
+                }
+                md.update(buf, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+
+        return Util.byteArr2HexStr(md.digest());
+    }
+
+    private final long blockSize;
+    private final List<String> blockSha1s = new ArrayList<String>();
+    private final MessageDigest md;
+
+    private long inBlock = 0;
+
+    public BlockDigest(final long blockSize) throws NoSuchAlgorithmException {
+        this.blockSize = blockSize;
+        this.md = MessageDigest.getInstance("SHA-1");
+    }
+
+    /**
+     * Finishes the last block and returns the hashes of all blocks.
+     */
+    public List<String> finish() {
+        if (inBlock > 0) {
+            blockSha1s.add(Util.byteArr2HexStr(md.digest()));
+            inBlock = 0;
+        }
+        return blockSha1s;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public void update(final byte[] buf, int off, int len) {
+        while (len > 0) {
+            int n = (int) Math.min(len, blockSize - inBlock);
+            md.update(buf, off, n);
+            inBlock += n;
+            off += n;
+            len -= n;
+
+            if (inBlock == blockSize) {
+                blockSha1s.add(Util.byteArr2HexStr(md.digest()));
+                inBlock = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ch.zhaw.mami;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+/**
+ * Pool of I/O buffers of the same size, so requests don't allocate (and the
+ * garbage collector doesn't have to collect) a large buffer each. Acquiring
+ * never blocks: if the pool is empty a new buffer is allocated. At most
+ * <code>capacity</code> released buffers are kept, the others are left to the
+ * garbage collector.
+ *
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    public BufferPool(final int bufferSize, final int capacity) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>(Math.max(1, capacity));
+    }
+
+    public byte[] acquire() {
+        acquired.incrementAndGet();
+        byte[] buf = buffers.poll();
+        if (buf == null) {
+            allocated.incrementAndGet();
+            buf = new byte[bufferSize];
+        }
+        return buf;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a buffer to the pool. Must not be used by the caller afterwards.
+     */
+    public void release(final byte[] buf) {
+        if (buf != null && buf.length == bufferSize) {
+            buffers.offer(buf);
+        }
+    }
+
+    public JSONObject stats() {
+        JSONObject obj = new JSONObject();
+        obj.put("bufferSize", bufferSize);
+        obj.put("pooled", buffers.size());
+        obj.put("acquired", acquired.get());
+        obj.put("allocated", allocated.get());
+        return obj;
+    }
+}
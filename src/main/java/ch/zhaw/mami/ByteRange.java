@@ -0,0 +1,118 @@
+package ch.zhaw.mami;
+
+/**
+ * A single byte range of an HTTP <code>Range</code> request header (RFC 7233).
+ * Only single ranges are supported, requests for multiple ranges are answered
+ * with the whole file (which the RFC allows).
+ *
+ */
+public class ByteRange {
+
+    /**
+     * Thrown if a range can not be satisfied (answered with 416).
+     */
+    public static class UnsatisfiableException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public UnsatisfiableException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header for a file of
+     * <code>length</code> bytes. Returns null if the header is absent,
+     * malformed or asks for multiple ranges, in which case the whole file is
+     * to be sent.
+     */
+    public static ByteRange parse(final String header, final long length)
+            throws UnsatisfiableException {
+        if (header == null) {
+            return null;
+        }
+
+        String value = header.trim();
+        if (!value.startsWith("bytes=")) {
+            return null;
+        }
+
+        value = value.substring("bytes=".length()).trim();
+        if (value.contains(",")) {
+            return null;
+        }
+
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        String first = value.substring(0, dash).trim();
+        String last = value.substring(dash + 1).trim();
+
+        long start;
+        long end;
+
+        try {
+            if (first.isEmpty()) {
+                /* suffix range: the last n bytes */
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    throw new UnsatisfiableException("Empty suffix range");
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            }
+            else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                end = Math.min(end, length - 1);
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        if (start >= length) {
+            throw new UnsatisfiableException("Range starts beyond end of file");
+        }
+
+        return new ByteRange(start, end);
+    }
+
+    private final long start;
+
+    private final long end;
+
+    public ByteRange(final long start, final long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Value of the <code>Content-Range</code> header of a 206 response.
+     */
+    public String contentRange(final long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    /**
+     * Last byte (inclusive).
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    public long getStart() {
+        return start;
+    }
+}
@@ -0,0 +1,215 @@
+package ch.zhaw.mami;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+
+import ch.zhaw.mami.db.UploadDB;
+
+/**
+ * Files of resumable uploads. Every chunk of an upload session is written to a
+ * file of its own in a staging directory, so chunks can be sent in parallel
+ * and sent again. A chunk only shows up under its final name once it has been
+ * written completely. On commit the chunks are hashed in order and put
+ * together (by concatenating them in the NameNode where possible).
+ *
+ */
+public class ChunkedUpload {
+
+    private final static Logger logger = LogManager
+            .getLogger(ChunkedUpload.class);
+
+    /**
+     * Deletes the chunks, the session and the incomplete upload entry of
+     * <code>sessionDoc</code>. Holds the lock of the path meanwhile so a
+     * commit of the session can't run at the same time. Returns false if the
+     * path is locked.
+     */
+    public static boolean abort(
+            final RuntimeConfiguration runtimeConfiguration,
+            final Document sessionDoc) throws IOException {
+        UploadDB uploadDB = runtimeConfiguration.getUploadDB();
+        String session = sessionDoc.getString("session");
+        String path = sessionDoc.getString("path");
+
+        if (!uploadDB.getLock(path)) {
+            return false;
+        }
+
+        try {
+            /* committed while waiting for the lock */
+            if (uploadDB.getSession(session) == null) {
+                return true;
+            }
+
+            runtimeConfiguration.getFileSystem().delete(
+                    ChunkedUpload.stagingDir(runtimeConfiguration, session),
+                    true);
+            uploadDB.removeSession(session);
+            uploadDB.removeUpload(path);
+            return true;
+        } finally {
+            uploadDB.releaseLock(path);
+        }
+    }
+
+    /**
+     * Puts the chunks together as <code>pt</code> (creating its directory if
+     * necessary). The chunks are gone afterwards.
+     */
+    public static void assemble(final FileSystem fs, final List<Path> parts,
+            final Path pt, final int bufferSize) throws IOException {
+        /* rename fails if the directory of the target doesn't exist */
+        if (!fs.mkdirs(pt.getParent())) {
+            throw new IOException("Could not create "
+                    + pt.getParent().toString());
+        }
+
+        boolean concatenated = parts.size() == 1;
+
+        if (!concatenated) {
+            /* sources and target have to be in the same directory */
+            try {
+                fs.concat(parts.get(0), parts.subList(1, parts.size())
+                        .toArray(new Path[parts.size() - 1]));
+                concatenated = true;
+            } catch (UnsupportedOperationException ex) {
+                ChunkedUpload.logger.debug("concat not supported, copying");
+            } catch (IllegalArgumentException ex) {
+                ChunkedUpload.logger.catching(ex);
+                ChunkedUpload.logger.warn("Could not concat chunks, copying");
+            } catch (IOException ex) {
+                ChunkedUpload.logger.catching(ex);
+                ChunkedUpload.logger.warn("Could not concat chunks, copying");
+            }
+        }
+
+        if (concatenated) {
+            if (!fs.rename(parts.get(0), pt)) {
+                throw new IOException("Could not rename "
+                        + parts.get(0).toString());
+            }
+            return;
+        }
+
+        OutputStream os = fs.create(pt, false);
+        try {
+            byte[] buf = new byte[bufferSize];
+            for (Path part : parts) {
+                InputStream is = fs.open(part);
+                try {
+                    int read;
+                    while ((read = is.read(buf)) > 0) {
+                        os.write(buf, 0, read);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            os.close();
+        }
+
+        for (Path part : parts) {
+            fs.delete(part, false);
+        }
+    }
+
+    public static Path chunkPath(final Path dir, final long chunk) {
+        return new Path(dir, Long.toString(chunk));
+    }
+
+    /**
+     * Hashes the chunks in order (the whole file and its blocks).
+     */
+    public static void hash(final FileSystem fs, final List<Path> parts,
+            final MessageDigest md, final BlockDigest blockDigest,
+            final int bufferSize) throws IOException {
+        byte[] buf = new byte[bufferSize];
+        for (Path part : parts) {
+            InputStream is = fs.open(part);
+            try {
+                int read;
+                while ((read = is.read(buf)) > 0) {
+                    md.update(buf, 0, read);
+                    blockDigest.update(buf, 0, read);
+                }
+            } finally {
+                is.close();
+            }
+        }
+    }
+
+    /**
+     * Paths of chunks 0 to <code>count - 1</code>.
+     */
+    public static List<Path> parts(final Path dir, final long count) {
+        List<Path> parts = new ArrayList<Path>();
+        for (long i = 0; i < count; i++) {
+            parts.add(ChunkedUpload.chunkPath(dir, i));
+        }
+        return parts;
+    }
+
+    public static Path stagingDir(final RuntimeConfiguration runtimeConfiguration,
+            final String session) {
+        return new Path(runtimeConfiguration.getPathPrefix() + ".sessions/"
+                + session);
+    }
+
+    /**
+     * Writes a chunk and returns its length and SHA-1 hash. Returns null (and
+     * writes nothing) if the chunk is longer than <code>maxLength</code>.
+     */
+    public static Document writeChunk(final FileSystem fs, final Path dir,
+            final long chunk, final InputStream in, final long maxLength,
+            final int bufferSize) throws IOException, NoSuchAlgorithmException {
+        Path tmp = new Path(dir, chunk + ".tmp");
+        Path pt = ChunkedUpload.chunkPath(dir, chunk);
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        long length = 0;
+
+        FSDataOutputStream os = fs.create(tmp, true);
+        try {
+            byte[] buf = new byte[bufferSize];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                length += read;
+                if (length > maxLength) {
+                    break;
+                }
+                md.update(buf, 0, read);
+                os.write(buf, 0, read);
+            }
+        } finally {
+            os.close();
+        }
+
+        if (length > maxLength) {
+            fs.delete(tmp, false);
+            return null;
+        }
+
+        fs.delete(pt, false);
+        if (!fs.rename(tmp, pt)) {
+            throw new IOException("Could not rename " + tmp.toString());
+        }
+
+        Document doc = new Document();
+        doc.append("length", length);
+        doc.append("sha1", Util.byteArr2HexStr(md.digest()));
+        return doc;
+    }
+}
@@ -0,0 +1,139 @@
+package ch.zhaw.mami;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.bson.Document;
+
+import ch.zhaw.mami.db.ContentDB;
+import ch.zhaw.mami.db.UploadDB;
+
+/**
+ * Content-addressed storage of uploads. With deduplication enabled the
+ * content of an upload is stored once per SHA-1 hash as
+ * <code>&lt;dir&gt;/&lt;first two hex digits&gt;/&lt;sha1&gt;</code> and
+ * recorded in the ContentDB. The upload itself is an empty placeholder file
+ * whose upload entry references the content (<code>ref</code>), so listings
+ * and existence checks see it as before. Readers go through
+ * {@link #resolve(Path, FileStatus)} to get to the content.
+ *
+ * References are resolved whether or not deduplication is (still) enabled.
+ *
+ */
+public class ContentStore {
+
+    /**
+     * Moves <code>tmp</code> to <code>blob</code> unless <code>blob</code>
+     * exists already (then <code>tmp</code> is removed). Returns false in the
+     * latter case. Fails if the two differ in length (two contents with the
+     * same hash).
+     */
+    public static boolean moveInto(final FileSystem fs, final Path tmp,
+            final Path blob) throws IOException {
+        if (!fs.exists(blob)) {
+            fs.mkdirs(blob.getParent());
+            if (fs.rename(tmp, blob)) {
+                return true;
+            }
+            /* someone else stored the same content in the meantime */
+            if (!fs.exists(blob)) {
+                throw new IOException("Could not rename " + tmp.toString());
+            }
+        }
+
+        long length = fs.getFileStatus(tmp).getLen();
+        long stored = fs.getFileStatus(blob).getLen();
+        if (length != stored) {
+            throw new IOException("Content " + blob.getName() + " is "
+                    + stored + " bytes, not " + length);
+        }
+
+        fs.delete(tmp, false);
+        return false;
+    }
+
+    private final RuntimeConfiguration runtimeConfiguration;
+    private final ContentDB contentDB;
+    private final UploadDB uploadDB;
+    private final String dir;
+    private final boolean enabled;
+
+    /**
+     * @param dir
+     *            Directory of the stored contents (ending in a slash).
+     */
+    public ContentStore(final RuntimeConfiguration runtimeConfiguration,
+            final ContentDB contentDB, final String dir, final boolean enabled) {
+        this.runtimeConfiguration = runtimeConfiguration;
+        this.contentDB = contentDB;
+        this.uploadDB = runtimeConfiguration.getUploadDB();
+        this.dir = dir;
+        this.enabled = enabled;
+    }
+
+    public Path blobPath(final String sha1) {
+        return new Path(dir + sha1.substring(0, 2) + "/" + sha1);
+    }
+
+    /**
+     * Whether new uploads are deduplicated.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Counts another reference to the content with hash <code>sha1</code>.
+     * Returns its path or null if there's no such content (yet).
+     */
+    public Path reference(final String sha1) {
+        Document doc = contentDB.addRef(sha1);
+        return doc == null ? null : new Path(doc.getString("path"));
+    }
+
+    /**
+     * Status of the file holding the content of <code>pt</code>: the stored
+     * content if <code>pt</code> is the placeholder of a deduplicated upload,
+     * <code>status</code> (of <code>pt</code>) otherwise.
+     */
+    public FileStatus resolve(final Path pt, final FileStatus status)
+            throws IOException {
+        /* placeholders are empty, don't look up every file */
+        if (!status.isFile() || status.getLen() > 0) {
+            return status;
+        }
+
+        Document upload = uploadDB.getUploadEntry(pt.toString());
+        if (upload == null || upload.getString("ref") == null) {
+            return status;
+        }
+
+        return runtimeConfiguration.getFileSystem().getFileStatus(
+                new Path(upload.getString("ref")));
+    }
+
+    /**
+     * Stores the content written to <code>tmp</code> (see
+     * {@link #tmpPath()}) with hash <code>sha1</code> and counts a reference
+     * to it. Returns the path of the stored content.
+     */
+    public Path store(final Path tmp, final String sha1) throws IOException {
+        FileSystem fs = runtimeConfiguration.getFileSystem();
+        Path blob = blobPath(sha1);
+
+        ContentStore.moveInto(fs, tmp, blob);
+        contentDB.putContent(sha1, blob.toString(), fs.getFileStatus(blob)
+                .getLen());
+        return blob;
+    }
+
+    /**
+     * Where to write content before it's hashed.
+     */
+    public Path tmpPath() {
+        return new Path(dir + "tmp/" + UUID.randomUUID().toString());
+    }
+}
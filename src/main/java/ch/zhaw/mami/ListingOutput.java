@@ -0,0 +1,165 @@
+package ch.zhaw.mami;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.json.JSONObject;
+
+/**
+ * Streams a (recursive) directory listing as JSON while the directory tree is
+ * walked. Only files are listed.
+ *
+ * Without a limit or cursor the result is a plain array (of names for non
+ * recursive listings, of paths for recursive ones). Otherwise it is an object
+ * <code>{"entries":[...],"next":<cursor>}</code>. The cursor is the path
+ * (relative to the listed directory) of the last entry sent; listing resumes
+ * right after it without walking the subtrees that were already listed. This
+ * relies on directory listings being sorted by name, which is the case for
+ * HDFS.
+ *
+ * Directories starting with a dot (staging and content directories of the
+ * server, campaigns and formats can't start with one) are left out. Details of
+ * deduplicated uploads are those of their content (see ContentStore).
+ *
+ */
+public class ListingOutput implements StreamingOutput {
+
+    private final FileSystem fs;
+    private final Path root;
+    private final boolean recursive;
+    private final String[] after;
+    private final Integer limit;
+    private final boolean details;
+    private final ContentStore contentStore;
+
+    private Writer writer;
+    private int count;
+    private String last;
+    private String next;
+
+    public ListingOutput(final FileSystem fs, final Path root,
+            final boolean recursive, final String cursor, final Integer limit,
+            final boolean details, final ContentStore contentStore) {
+        this.fs = fs;
+        this.root = root;
+        this.recursive = recursive;
+        this.after = cursor == null ? null : cursor.split("/");
+        this.limit = limit;
+        this.details = details;
+        this.contentStore = contentStore;
+    }
+
+    private void emit(final LocatedFileStatus lfs) throws IOException {
+        String name = recursive ? lfs.getPath().toString() : lfs.getPath()
+                .getName();
+
+        if (count > 0) {
+            writer.write(',');
+        }
+
+        if (details) {
+            FileStatus status = contentStore == null ? lfs : contentStore
+                    .resolve(lfs.getPath(), lfs);
+            JSONObject obj = new JSONObject();
+            obj.put(recursive ? "path" : "name", name);
+            obj.put("size", status.getLen());
+            obj.put("mtime", status.getModificationTime());
+            obj.put("replication", status.getReplication());
+            writer.write(obj.toString());
+        }
+        else {
+            writer.write(JSONObject.quote(name));
+        }
+    }
+
+    private boolean paginated() {
+        return limit != null || after != null;
+    }
+
+    /**
+     * Lists <code>dir</code>. <code>skipping</code> is true while entries
+     * before the cursor are skipped. Returns false once the limit is reached.
+     */
+    private boolean walk(final Path dir, final String prefix, final int depth,
+            boolean skipping) throws IOException {
+        skipping = skipping && depth < after.length;
+
+        RemoteIterator<LocatedFileStatus> files = fs.listLocatedStatus(dir);
+        while (files.hasNext()) {
+            LocatedFileStatus lfs = files.next();
+            String name = lfs.getPath().getName();
+
+            if (skipping) {
+                int c = name.compareTo(after[depth]);
+                if (c < 0) {
+                    continue;
+                }
+                if (c == 0) {
+                    if (lfs.isDirectory() && recursive) {
+                        if (!walk(lfs.getPath(), prefix + name + "/",
+                                depth + 1, true)) {
+                            return false;
+                        }
+                    }
+                    /* the file at the cursor was sent already */
+                    continue;
+                }
+                skipping = false;
+            }
+
+            if (lfs.isDirectory()) {
+                if (recursive && !name.startsWith(".")) {
+                    if (!walk(lfs.getPath(), prefix + name + "/", depth + 1,
+                            false)) {
+                        return false;
+                    }
+                }
+                continue;
+            }
+
+            if (limit != null && count >= limit) {
+                next = last;
+                return false;
+            }
+
+            emit(lfs);
+            last = prefix + name;
+            count++;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void write(final OutputStream os) throws IOException,
+            WebApplicationException {
+        writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+
+        if (paginated()) {
+            writer.write("{\"entries\":");
+        }
+        writer.write('[');
+
+        walk(root, "", 0, after != null);
+
+        writer.write(']');
+        if (paginated()) {
+            writer.write(",\"next\":");
+            writer.write(next == null ? "null" : JSONObject.quote(next));
+            writer.write('}');
+        }
+
+        writer.flush();
+    }
+}
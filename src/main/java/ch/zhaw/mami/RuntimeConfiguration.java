@@ -4,14 +4,30 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 
 import ch.zhaw.mami.db.AuthDB;
+import ch.zhaw.mami.db.ContentDB;
+import ch.zhaw.mami.db.DigestDB;
+import ch.zhaw.mami.db.IndexManager;
 import ch.zhaw.mami.db.LogDB;
+import ch.zhaw.mami.db.LogWriter;
+import ch.zhaw.mami.db.SeqIndexDB;
 import ch.zhaw.mami.db.UploadDB;
+import ch.zhaw.mami.imp.ImportPipeline;
+import ch.zhaw.mami.scrub.Scrubber;
+import ch.zhaw.mami.seq.SeqCompression;
+import ch.zhaw.mami.seq.SeqIndex;
+import ch.zhaw.mami.seq.SeqRecordCache;
+import ch.zhaw.mami.seq.SeqWriterPool;
 
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientURI;
@@ -32,6 +48,40 @@ public class RuntimeConfiguration {
     private static String logDBName = "log";
     private static String url = "http://localhost:9998/";
     private static String mongoURI = "";
+    private static int transferBufferSize = 1024 * 1024;
+    private static int chunkSize = 1024 * 1024;
+    private static int bufferPoolSize = 32;
+    private static int uploadWriters = 16;
+    private static long seqCacheSize = 64L * 1024 * 1024;
+    private static int scrubThreads = 2;
+    private static long scrubRate = 16L * 1024 * 1024;
+    private static long scrubInterval = 600;
+    private static int checkThreads = 4;
+    private static int spoolThreshold = 4 * 1024 * 1024;
+    private static String spoolDir = System.getProperty("java.io.tmpdir");
+    private static long seqWriterIdle = 60;
+    private static int importReaders = 4;
+    private static int importHashers = Runtime.getRuntime()
+            .availableProcessors();
+    private static int importQueueSize = 64;
+    private static long importRollSize = 256L * 1024 * 1024;
+    private static long importRollRecords = 100000;
+    private static int importTargets = 2;
+    private static boolean dedup = false;
+    /* null: .content/ below the path prefix */
+    private static String dedupPath = null;
+    private static long lockTTL = 60;
+    private static long sessionTTL = 7;
+    private static boolean createIndexes = true;
+    private static int logQueueSize = 10000;
+    private static int logBatchSize = 500;
+    private static String logOverflow = "BLOCK";
+    private static int logSampleRate = 10;
+    private static long logRetention = 90;
+    private static int logRollupDepth = 2;
+    private static String seqCompression = "RECORD";
+    /* msmntCampaign or msmntCampaign.format -> compression */
+    private static Map<String, String> seqCompressions = new HashMap<String, String>();
 
     private final static String cfgHDFS_PATH = "HDFS_PATH";
     private final static String cfgAUTH_DB_NAME = "AUTH_DB_NAME";
@@ -40,9 +90,55 @@ public class RuntimeConfiguration {
     private final static String cfgURL = "URL";
     private final static String propCfgPath = "MAMI_HDFS_CFG_PATH";
     private final static String cfgMONGO_URI = "MONGO_URI";
+    private final static String cfgTRANSFER_BUFFER_SIZE = "TRANSFER_BUFFER_SIZE";
+    private final static String cfgCHUNK_SIZE = "CHUNK_SIZE";
+    private final static String cfgBUFFER_POOL_SIZE = "BUFFER_POOL_SIZE";
+    private final static String cfgUPLOAD_WRITERS = "UPLOAD_WRITERS";
+    private final static String cfgSEQ_CACHE_SIZE = "SEQ_CACHE_SIZE";
+    private final static String cfgSCRUB_THREADS = "SCRUB_THREADS";
+    private final static String cfgSCRUB_RATE = "SCRUB_RATE";
+    private final static String cfgSCRUB_INTERVAL = "SCRUB_INTERVAL";
+    private final static String cfgCHECK_THREADS = "CHECK_THREADS";
+    private final static String cfgSPOOL_THRESHOLD = "SPOOL_THRESHOLD";
+    private final static String cfgSPOOL_DIR = "SPOOL_DIR";
+    private final static String cfgSEQ_WRITER_IDLE = "SEQ_WRITER_IDLE";
+    private final static String cfgSEQ_COMPRESSION = "SEQ_COMPRESSION";
+    private final static String cfgIMPORT_READERS = "IMPORT_READERS";
+    private final static String cfgIMPORT_HASHERS = "IMPORT_HASHERS";
+    private final static String cfgIMPORT_QUEUE_SIZE = "IMPORT_QUEUE_SIZE";
+    private final static String cfgIMPORT_ROLL_SIZE = "IMPORT_ROLL_SIZE";
+    private final static String cfgIMPORT_ROLL_RECORDS = "IMPORT_ROLL_RECORDS";
+    private final static String cfgIMPORT_TARGETS = "IMPORT_TARGETS";
+    private final static String cfgDEDUP = "DEDUP";
+    private final static String cfgDEDUP_PATH = "DEDUP_PATH";
+    private final static String cfgLOCK_TTL = "LOCK_TTL";
+    private final static String cfgSESSION_TTL = "SESSION_TTL";
+    private final static String cfgCREATE_INDEXES = "CREATE_INDEXES";
+    private final static String cfgLOG_QUEUE_SIZE = "LOG_QUEUE_SIZE";
+    private final static String cfgLOG_BATCH_SIZE = "LOG_BATCH_SIZE";
+    private final static String cfgLOG_OVERFLOW = "LOG_OVERFLOW";
+    private final static String cfgLOG_SAMPLE_RATE = "LOG_SAMPLE_RATE";
+    private final static String cfgLOG_RETENTION = "LOG_RETENTION";
+    private final static String cfgLOG_ROLLUP_DEPTH = "LOG_ROLLUP_DEPTH";
+    private final IndexManager indexManager;
     private final AuthDB authDB;
     private final UploadDB uploadDB;
     private final LogDB logDB;
+    private final SeqIndexDB seqIndexDB;
+    private final SeqIndex seqIndex;
+    private final SeqRecordCache seqRecordCache;
+    private final DigestDB digestDB;
+    private final ContentDB contentDB;
+    private final ContentStore contentStore;
+    private final Scrubber scrubber;
+    private final SessionReaper sessionReaper;
+    private final ExecutorService checkExecutor;
+    private final ExecutorService uploadWriteExecutor;
+    private final BufferPool chunkBuffers;
+    private final BufferPool transferBuffers;
+    private SeqWriterPool seqWriterPool;
+    private final SeqCompression defaultSeqCompression;
+    private final Map<String, SeqCompression> seqCompressionOverrides = new HashMap<String, SeqCompression>();
 
     private static MongoClient mongoClient;
 
@@ -96,17 +192,231 @@ public class RuntimeConfiguration {
                     .getProperty(RuntimeConfiguration.cfgMONGO_URI);
         }
 
+        if (props.getProperty(RuntimeConfiguration.cfgTRANSFER_BUFFER_SIZE) != null) {
+            RuntimeConfiguration.transferBufferSize = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgTRANSFER_BUFFER_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgCHUNK_SIZE) != null) {
+            RuntimeConfiguration.chunkSize = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgCHUNK_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgBUFFER_POOL_SIZE) != null) {
+            RuntimeConfiguration.bufferPoolSize = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgBUFFER_POOL_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgUPLOAD_WRITERS) != null) {
+            RuntimeConfiguration.uploadWriters = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgUPLOAD_WRITERS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSEQ_CACHE_SIZE) != null) {
+            RuntimeConfiguration.seqCacheSize = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgSEQ_CACHE_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSCRUB_THREADS) != null) {
+            RuntimeConfiguration.scrubThreads = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgSCRUB_THREADS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSCRUB_RATE) != null) {
+            RuntimeConfiguration.scrubRate = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgSCRUB_RATE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSCRUB_INTERVAL) != null) {
+            RuntimeConfiguration.scrubInterval = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgSCRUB_INTERVAL));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgCHECK_THREADS) != null) {
+            RuntimeConfiguration.checkThreads = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgCHECK_THREADS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSPOOL_THRESHOLD) != null) {
+            RuntimeConfiguration.spoolThreshold = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgSPOOL_THRESHOLD));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSPOOL_DIR) != null) {
+            RuntimeConfiguration.spoolDir = props
+                    .getProperty(RuntimeConfiguration.cfgSPOOL_DIR);
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSEQ_WRITER_IDLE) != null) {
+            RuntimeConfiguration.seqWriterIdle = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgSEQ_WRITER_IDLE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSEQ_COMPRESSION) != null) {
+            RuntimeConfiguration.seqCompression = props
+                    .getProperty(RuntimeConfiguration.cfgSEQ_COMPRESSION);
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgIMPORT_READERS) != null) {
+            RuntimeConfiguration.importReaders = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgIMPORT_READERS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgIMPORT_HASHERS) != null) {
+            RuntimeConfiguration.importHashers = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgIMPORT_HASHERS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgIMPORT_QUEUE_SIZE) != null) {
+            RuntimeConfiguration.importQueueSize = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgIMPORT_QUEUE_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgIMPORT_ROLL_SIZE) != null) {
+            RuntimeConfiguration.importRollSize = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgIMPORT_ROLL_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgIMPORT_ROLL_RECORDS) != null) {
+            RuntimeConfiguration.importRollRecords = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgIMPORT_ROLL_RECORDS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgIMPORT_TARGETS) != null) {
+            RuntimeConfiguration.importTargets = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgIMPORT_TARGETS));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgDEDUP) != null) {
+            RuntimeConfiguration.dedup = Boolean.parseBoolean(props
+                    .getProperty(RuntimeConfiguration.cfgDEDUP));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgDEDUP_PATH) != null) {
+            RuntimeConfiguration.dedupPath = props
+                    .getProperty(RuntimeConfiguration.cfgDEDUP_PATH);
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOCK_TTL) != null) {
+            RuntimeConfiguration.lockTTL = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgLOCK_TTL));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgSESSION_TTL) != null) {
+            RuntimeConfiguration.sessionTTL = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgSESSION_TTL));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgCREATE_INDEXES) != null) {
+            RuntimeConfiguration.createIndexes = Boolean.parseBoolean(props
+                    .getProperty(RuntimeConfiguration.cfgCREATE_INDEXES));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOG_QUEUE_SIZE) != null) {
+            RuntimeConfiguration.logQueueSize = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgLOG_QUEUE_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOG_BATCH_SIZE) != null) {
+            RuntimeConfiguration.logBatchSize = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgLOG_BATCH_SIZE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOG_OVERFLOW) != null) {
+            RuntimeConfiguration.logOverflow = props
+                    .getProperty(RuntimeConfiguration.cfgLOG_OVERFLOW);
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOG_SAMPLE_RATE) != null) {
+            RuntimeConfiguration.logSampleRate = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgLOG_SAMPLE_RATE));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOG_RETENTION) != null) {
+            RuntimeConfiguration.logRetention = Long.parseLong(props
+                    .getProperty(RuntimeConfiguration.cfgLOG_RETENTION));
+        }
+
+        if (props.getProperty(RuntimeConfiguration.cfgLOG_ROLLUP_DEPTH) != null) {
+            RuntimeConfiguration.logRollupDepth = Integer.parseInt(props
+                    .getProperty(RuntimeConfiguration.cfgLOG_ROLLUP_DEPTH));
+        }
+
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith(RuntimeConfiguration.cfgSEQ_COMPRESSION + ".")) {
+                RuntimeConfiguration.seqCompressions.put(
+                        name.substring(RuntimeConfiguration.cfgSEQ_COMPRESSION
+                                .length() + 1), props.getProperty(name));
+            }
+        }
+
         return RuntimeConfiguration.instance = new RuntimeConfiguration();
     }
 
-    private final int chunkSize = 1024;
-
     private FileSystem fileSystem;
 
     private RuntimeConfiguration() throws IOException {
+        indexManager = new IndexManager(this);
+        /* before anything relies on the unique indexes */
+        if (RuntimeConfiguration.createIndexes) {
+            indexManager.ensureIndexes();
+        }
+        else {
+            indexManager.checkRequired();
+        }
         authDB = new AuthDB(this);
         uploadDB = new UploadDB(this);
         logDB = new LogDB(this);
+        seqIndexDB = new SeqIndexDB(this);
+        seqIndex = new SeqIndex(this, seqIndexDB);
+        seqRecordCache = new SeqRecordCache(RuntimeConfiguration.seqCacheSize);
+        digestDB = new DigestDB(this);
+        contentDB = new ContentDB(this);
+        contentStore = new ContentStore(this, contentDB,
+                RuntimeConfiguration.dedupPath == null ? getPathPrefix()
+                        + ".content/" : RuntimeConfiguration.dedupPath + "/",
+                RuntimeConfiguration.dedup);
+        scrubber = new Scrubber(this, RuntimeConfiguration.scrubThreads,
+                RuntimeConfiguration.scrubRate,
+                RuntimeConfiguration.scrubInterval);
+        sessionReaper = new SessionReaper(this,
+                RuntimeConfiguration.sessionTTL * 86400);
+        checkExecutor = Executors.newFixedThreadPool(
+                RuntimeConfiguration.checkThreads, new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "check-worker");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        uploadWriteExecutor = Executors.newFixedThreadPool(
+                Math.max(1, RuntimeConfiguration.uploadWriters),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "upload-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        chunkBuffers = new BufferPool(RuntimeConfiguration.chunkSize,
+                RuntimeConfiguration.bufferPoolSize);
+        transferBuffers = new BufferPool(
+                RuntimeConfiguration.transferBufferSize,
+                RuntimeConfiguration.bufferPoolSize);
+
+        /* parsed up front so a typo fails at startup, not on upload */
+        Configuration conf = getFSConfiguration();
+        defaultSeqCompression = SeqCompression.parseAppendable(
+                RuntimeConfiguration.seqCompression, conf);
+        for (Map.Entry<String, String> entry : RuntimeConfiguration.seqCompressions
+                .entrySet()) {
+            seqCompressionOverrides.put(entry.getKey(),
+                    SeqCompression.parseAppendable(entry.getValue(), conf));
+        }
     }
 
     public AuthDB getAuthDB() {
@@ -121,8 +431,33 @@ public class RuntimeConfiguration {
         return RuntimeConfiguration.authDBName;
     }
 
+    /**
+     * Threads hashing the blocks of a file when checking it.
+     */
+    public ExecutorService getCheckExecutor() {
+        return checkExecutor;
+    }
+
+    /**
+     * Buffers of <code>CHUNK_SIZE</code> bytes for reading uploads.
+     */
+    public BufferPool getChunkBuffers() {
+        return chunkBuffers;
+    }
+
     public int getChunkSize() {
-        return chunkSize;
+        return RuntimeConfiguration.chunkSize;
+    }
+
+    /**
+     * Deduplicated contents of uploads.
+     */
+    public ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    public DigestDB getDigestDB() {
+        return digestDB;
     }
 
     public FileSystem getFileSystem() throws IOException {
@@ -139,6 +474,55 @@ public class RuntimeConfiguration {
         return conf;
     }
 
+    /**
+     * Pipeline reading and hashing files for the folder importer.
+     */
+    public ImportPipeline getImportPipeline() {
+        return new ImportPipeline(RuntimeConfiguration.importReaders,
+                RuntimeConfiguration.importHashers,
+                RuntimeConfiguration.importQueueSize);
+    }
+
+    /**
+     * Number of records after which a tree import starts a new SequenceFile.
+     */
+    public long getImportRollRecords() {
+        return RuntimeConfiguration.importRollRecords;
+    }
+
+    /**
+     * Bytes (uncompressed) after which a tree import starts a new
+     * SequenceFile.
+     */
+    public long getImportRollSize() {
+        return RuntimeConfiguration.importRollSize;
+    }
+
+    /**
+     * Number of SequenceFiles a tree import writes in parallel.
+     */
+    public int getImportTargets() {
+        return RuntimeConfiguration.importTargets;
+    }
+
+    public IndexManager getIndexManager() {
+        return indexManager;
+    }
+
+    /**
+     * Seconds after which a lock expires unless it is renewed.
+     */
+    public long getLockTTL() {
+        return RuntimeConfiguration.lockTTL;
+    }
+
+    /**
+     * Maximum number of log entries written at once.
+     */
+    public int getLogBatchSize() {
+        return RuntimeConfiguration.logBatchSize;
+    }
+
     public LogDB getLogDB() {
         return logDB;
     }
@@ -147,6 +531,42 @@ public class RuntimeConfiguration {
         return RuntimeConfiguration.logDBName;
     }
 
+    /**
+     * What to do with log entries when the log queue is full.
+     */
+    public LogWriter.Overflow getLogOverflow() {
+        return LogWriter.Overflow.valueOf(RuntimeConfiguration.logOverflow
+                .toUpperCase());
+    }
+
+    /**
+     * Number of log entries waiting to be written at most.
+     */
+    public int getLogQueueSize() {
+        return RuntimeConfiguration.logQueueSize;
+    }
+
+    /**
+     * Days after which access log entries are removed (0: never).
+     */
+    public long getLogRetention() {
+        return RuntimeConfiguration.logRetention;
+    }
+
+    /**
+     * Number of path components the access statistics are kept by.
+     */
+    public int getLogRollupDepth() {
+        return RuntimeConfiguration.logRollupDepth;
+    }
+
+    /**
+     * With the SAMPLE overflow policy every how manyth entry is kept.
+     */
+    public int getLogSampleRate() {
+        return RuntimeConfiguration.logSampleRate;
+    }
+
     public MongoClient getMongoClient() {
         if (RuntimeConfiguration.mongoClient == null) {
             RuntimeConfiguration.mongoClient = new MongoClient(
@@ -160,6 +580,82 @@ public class RuntimeConfiguration {
         return RuntimeConfiguration.path + "/";
     }
 
+    public Scrubber getScrubber() {
+        return scrubber;
+    }
+
+    /**
+     * Compression of new SequenceFiles of <code>msmntCampaign</code> and
+     * <code>format</code> (existing files keep theirs).
+     */
+    public SeqCompression getSeqCompression(final String msmntCampaign,
+            final String format) {
+        SeqCompression compression = seqCompressionOverrides.get(msmntCampaign
+                + "." + format);
+        if (compression == null) {
+            compression = seqCompressionOverrides.get(msmntCampaign);
+        }
+        return compression != null ? compression : defaultSeqCompression;
+    }
+
+    public SeqIndex getSeqIndex() {
+        return seqIndex;
+    }
+
+    public SeqIndexDB getSeqIndexDB() {
+        return seqIndexDB;
+    }
+
+    public SeqRecordCache getSeqRecordCache() {
+        return seqRecordCache;
+    }
+
+    /**
+     * Open SequenceFile writers of the server (created on first use so tools
+     * like the folder importer don't start it).
+     */
+    public synchronized SeqWriterPool getSeqWriterPool() {
+        if (seqWriterPool == null) {
+            seqWriterPool = new SeqWriterPool(getFSConfiguration(), uploadDB,
+                    RuntimeConfiguration.seqWriterIdle);
+        }
+        return seqWriterPool;
+    }
+
+    public SessionReaper getSessionReaper() {
+        return sessionReaper;
+    }
+
+    /**
+     * Directory for uploads that are too large to be kept in memory.
+     */
+    public File getSpoolDir() {
+        return new File(RuntimeConfiguration.spoolDir);
+    }
+
+    /**
+     * Number of bytes of an upload kept in memory before spooling it to
+     * disk.
+     */
+    public int getSpoolThreshold() {
+        return RuntimeConfiguration.spoolThreshold;
+    }
+
+    /**
+     * Buffers of <code>TRANSFER_BUFFER_SIZE</code> bytes for streaming file
+     * contents to clients.
+     */
+    public BufferPool getTransferBuffers() {
+        return transferBuffers;
+    }
+
+    /**
+     * Size of the buffers used to stream file contents to clients.
+     */
+    public int getTransferBufferSize() {
+        return RuntimeConfiguration.transferBufferSize;
+    }
+
     public UploadDB getUploadDB() {
         return uploadDB;
     }
@@ -168,6 +664,13 @@ public class RuntimeConfiguration {
         return RuntimeConfiguration.uploadDBName;
     }
 
+    /**
+     * Threads writing uploads to HDFS (see UploadCopy).
+     */
+    public ExecutorService getUploadWriteExecutor() {
+        return uploadWriteExecutor;
+    }
+
     public String getURL() {
         return RuntimeConfiguration.url;
     }
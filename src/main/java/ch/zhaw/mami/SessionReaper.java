@@ -0,0 +1,102 @@
+package ch.zhaw.mami;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+
+/**
+ * Aborts upload sessions nobody has sent a chunk to for a while, so abandoned
+ * resumable uploads don't keep their chunks and incomplete upload entries
+ * forever. Sessions whose path is locked (i.e. being committed) are left
+ * alone until the next run.
+ *
+ */
+public class SessionReaper {
+
+    private final static Logger logger = LogManager
+            .getLogger(SessionReaper.class);
+
+    private final RuntimeConfiguration runtimeConfiguration;
+    private final long ttl;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param ttl
+     *            Seconds after the last chunk after which a session is
+     *            aborted (0 keeps sessions forever).
+     */
+    public SessionReaper(final RuntimeConfiguration runtimeConfiguration,
+            final long ttl) {
+        this.runtimeConfiguration = runtimeConfiguration;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Aborts the sessions that have been idle for longer than the TTL.
+     * Returns the number of sessions aborted.
+     */
+    public int reap() {
+        long before = new Date().getTime() / 1000 - ttl;
+        int aborted = 0;
+
+        for (Document sessionDoc : runtimeConfiguration.getUploadDB()
+                .getIdleSessions(before)) {
+            try {
+                if (ChunkedUpload.abort(runtimeConfiguration, sessionDoc)) {
+                    aborted++;
+                }
+            } catch (Exception ex) {
+                SessionReaper.logger.catching(ex);
+            }
+        }
+
+        if (aborted > 0) {
+            SessionReaper.logger.info("Aborted " + aborted
+                    + " idle upload sessions");
+        }
+        return aborted;
+    }
+
+    public synchronized void start() {
+        if (ttl <= 0 || executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "session-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (Exception ex) {
+                    SessionReaper.logger.catching(ex);
+                }
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdownNow();
+        executor = null;
+    }
+}
@@ -0,0 +1,29 @@
+package ch.zhaw.mami;
+
+/**
+ * A fixed number of monitors shared by paths (by hash), for work that has to
+ * be serialized per path but shouldn't hold up other paths. Two paths may
+ * share a monitor, so whoever holds one must not wait for another path.
+ *
+ */
+public class StripedLocks {
+
+    private final Object[] locks;
+
+    public StripedLocks(final int stripes) {
+        locks = new Object[Math.max(1, stripes)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * The monitor to synchronize on for <code>path</code>.
+     */
+    public Object lockFor(final String path) {
+        int h = path.hashCode();
+        /* spread the bits, like HashMap */
+        h ^= h >>> 16;
+        return locks[(h & 0x7fffffff) % locks.length];
+    }
+}
@@ -0,0 +1,130 @@
+package ch.zhaw.mami;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Compares ways of copying an upload to the filesystem while hashing it (SHA-1
+ * and block hashes, as the upload endpoint does): hashing and writing in turns
+ * with one buffer (with 1 KB chunks as uploads used to) and double buffering
+ * with {@link UploadCopy}, for several chunk sizes. The data is random and comes from
+ * memory, the file is written to the local temporary directory.
+ *
+ */
+public class TransferBench {
+
+    private final static int[] defaultChunkSizes = { 64 * 1024,
+            1024 * 1024, 4 * 1024 * 1024 };
+
+    private static double mbPerSec(final long bytes, final long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    /**
+     * Copies like the upload endpoint used to: one buffer, hashing and
+     * writing in turns.
+     */
+    private static void sequential(final InputStream in,
+            final OutputStream out, final MessageDigest md,
+            final BlockDigest blockDigest, final byte[] chunk)
+            throws IOException {
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            md.update(chunk, 0, read);
+            blockDigest.update(chunk, 0, read);
+            out.write(chunk, 0, read);
+        }
+    }
+
+    private static void run(final String mode, final int chunkSize,
+            final byte[] data, final int rounds, final FileSystem fs,
+            final Path pt, final ExecutorService writeExecutor)
+            throws Exception {
+        BufferPool pool = new BufferPool(chunkSize, 2);
+        long best = Long.MAX_VALUE;
+
+        /* best of several rounds */
+        for (int round = 0; round < rounds; round++) {
+            InputStream in = new ByteArrayInputStream(data);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            BlockDigest blockDigest = new BlockDigest(
+                    fs.getDefaultBlockSize(pt));
+
+            long start = System.nanoTime();
+            OutputStream out = fs.create(pt, true);
+            try {
+                if (mode.equals("double-buffered")) {
+                    UploadCopy.copy(in, out, md, blockDigest, pool,
+                            writeExecutor);
+                }
+                else {
+                    byte[] chunk = pool.acquire();
+                    TransferBench.sequential(in, out, md, blockDigest, chunk);
+                    pool.release(chunk);
+                }
+            } finally {
+                out.close();
+            }
+            md.digest();
+            blockDigest.finish();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("%-20s %12d %12.1f", mode,
+                chunkSize, TransferBench.mbPerSec(data.length, best)));
+    }
+
+    public static void transferBench(final String[] args) throws Exception {
+        int mb = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int[] chunkSizes = TransferBench.defaultChunkSizes;
+        if (args.length > 3) {
+            chunkSizes = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                chunkSizes[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+
+        byte[] data = new byte[mb * 1024 * 1024];
+        new Random(42).nextBytes(data);
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File tmp = File.createTempFile("transferbench", ".bin");
+        Path pt = new Path(tmp.getAbsolutePath());
+
+        ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+        System.out.println("Bytes: " + data.length + ", rounds: " + rounds);
+        System.out.println(String.format("%-20s %12s %12s", "copy",
+                "chunk size", "MB/s"));
+
+        try {
+            /* what uploads did before CHUNK_SIZE */
+            TransferBench.run("sequential", 1024, data, rounds, fs, pt,
+                    writeExecutor);
+            for (int chunkSize : chunkSizes) {
+                TransferBench.run("sequential", chunkSize, data, rounds, fs, pt,
+                        writeExecutor);
+            }
+            for (int chunkSize : chunkSizes) {
+                TransferBench.run("double-buffered", chunkSize, data, rounds,
+                        fs, pt, writeExecutor);
+            }
+        } finally {
+            writeExecutor.shutdown();
+            fs.delete(pt, false);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ch.zhaw.mami;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Copies an upload to HDFS while hashing it, with two buffers used in turns:
+ * while one is written (by a thread of the write executor) the next one is
+ * read and hashed, so the HDFS write overlaps with reading the request and
+ * computing the SHA-1. Buffers are filled completely before they are written
+ * (except for the last one), so HDFS gets few large writes.
+ *
+ * At most one write is in flight per copy, so a write executor with several
+ * threads can be shared by concurrent uploads.
+ *
+ */
+public class UploadCopy {
+
+    /**
+     * Waits for a write that may still be running, ignoring its outcome (the
+     * copy failed already).
+     */
+    private static void awaitQuietly(final Future<Void> pending) {
+        if (pending == null) {
+            return;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pending.get();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            } catch (ExecutionException ex) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies <code>in</code> to <code>out</code>, updating <code>md</code>
+     * and <code>blockDigest</code> (may be null) with the data. Returns the
+     * number of bytes copied. <code>out</code> is not closed.
+     */
+    public static long copy(final InputStream in, final OutputStream out,
+            final MessageDigest md, final BlockDigest blockDigest,
+            final BufferPool pool, final ExecutorService writeExecutor)
+            throws IOException {
+        byte[] reading = pool.acquire();
+        byte[] writing = pool.acquire();
+        Future<Void> pending = null;
+        long copied = 0;
+
+        try {
+            int read;
+            while ((read = Util.fill(in, reading)) > 0) {
+                md.update(reading, 0, read);
+                if (blockDigest != null) {
+                    blockDigest.update(reading, 0, read);
+                }
+
+                /* the other buffer is free again once its write is done */
+                UploadCopy.finish(pending);
+                pending = writeExecutor.submit(UploadCopy.write(out, reading,
+                        read));
+
+                byte[] tmp = writing;
+                writing = reading;
+                reading = tmp;
+                copied += read;
+            }
+
+            UploadCopy.finish(pending);
+            pending = null;
+            return copied;
+        } finally {
+            /* a buffer still being written can't be handed out again */
+            UploadCopy.awaitQuietly(pending);
+            pool.release(reading);
+            pool.release(writing);
+        }
+    }
+
+    private static void finish(final Future<Void> pending) throws IOException {
+        if (pending == null) {
+            return;
+        }
+
+        try {
+            pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static Callable<Void> write(final OutputStream out,
+            final byte[] buf, final int length) {
+        return new Callable<Void>() {
+
+            @Override
+            public Void call() throws IOException {
+                out.write(buf, 0, length);
+                return null;
+            }
+        };
+    }
+}
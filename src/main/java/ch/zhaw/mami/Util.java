@@ -1,5 +1,13 @@
 package ch.zhaw.mami;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
 public class Util {
 
     public static String byteArr2HexStr(final byte[] b) {
@@ -10,6 +18,73 @@ public class Util {
         return result;
     }
 
+    /**
+     * Copies lines <code>skipLines</code> to
+     * <code>skipLines + maxLines - 1</code> (0-based, lines are terminated by
+     * '\n') from <code>in</code> to <code>out</code> without decoding them. A
+     * negative <code>maxLines</code> copies everything after the skipped lines.
+     */
+    public static void copyLines(final InputStream in, final OutputStream out,
+            final long skipLines, final long maxLines, final byte[] buf)
+            throws IOException {
+        if (maxLines == 0) {
+            return;
+        }
+
+        long end = maxLines < 0 ? Long.MAX_VALUE : skipLines + maxLines;
+        long line = 0;
+        int read;
+
+        while ((read = in.read(buf)) > 0) {
+            /* start of the part of buf to copy, -1 if still skipping */
+            int start = line >= skipLines ? 0 : -1;
+
+            for (int i = 0; i < read; i++) {
+                if (buf[i] == '\n') {
+                    line++;
+                    if (line == skipLines) {
+                        start = i + 1;
+                    }
+                    else if (line == end) {
+                        out.write(buf, start, i + 1 - start);
+                        return;
+                    }
+                }
+            }
+
+            if (start >= 0 && start < read) {
+                out.write(buf, start, read - start);
+            }
+        }
+    }
+
+    /**
+     * Reads from <code>in</code> until <code>buf</code> is full or the stream
+     * ends. Returns the number of bytes read (0 at the end of the stream).
+     */
+    public static int fill(final InputStream in, final byte[] buf)
+            throws IOException {
+        int filled = 0;
+        while (filled < buf.length) {
+            int read = in.read(buf, filled, buf.length - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        return filled;
+    }
+
+    /**
+     * Formats a date as used in HTTP headers (RFC 7231 IMF-fixdate).
+     */
+    public static String httpDate(final Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
     public static boolean validateFileName(final String string) {
         /*
          * if (string.indexOf('.') != string.lastIndexOf('.')) { return false; }
@@ -0,0 +1,66 @@
+package ch.zhaw.mami.db;
+
+import java.util.Date;
+
+import org.bson.Document;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Index of deduplicated contents (see ContentStore): SHA-1 hash, path of the
+ * stored content, its length and the number of uploads referencing it.
+ *
+ */
+public class ContentDB {
+
+    private final MongoCollection<Document> collection;
+
+    public ContentDB(final RuntimeConfiguration runtimeConfiguration) {
+        collection = runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getUploadDBName())
+                .getCollection("contents");
+    }
+
+    /**
+     * Counts another reference to the content with hash <code>sha1</code>.
+     * Returns its entry or null if there is no such content.
+     */
+    public Document addRef(final String sha1) {
+        Document queryDoc = new Document();
+        queryDoc.append("sha1", sha1);
+
+        Document updateDoc = new Document();
+        updateDoc.append("$inc", new Document("refs", 1));
+
+        return collection.findOneAndUpdate(queryDoc, updateDoc,
+                new FindOneAndUpdateOptions()
+                        .returnDocument(ReturnDocument.AFTER));
+    }
+
+    /**
+     * Records content stored at <code>path</code> (if it isn't recorded yet)
+     * and counts a reference to it.
+     */
+    public void putContent(final String sha1, final String path,
+            final long length) {
+        Document queryDoc = new Document();
+        queryDoc.append("sha1", sha1);
+
+        Document insertDoc = new Document();
+        insertDoc.append("path", path);
+        insertDoc.append("length", length);
+        insertDoc.append("timestamp", new Date().getTime() / 1000);
+
+        Document updateDoc = new Document();
+        updateDoc.append("$setOnInsert", insertDoc);
+        updateDoc.append("$inc", new Document("refs", 1));
+
+        collection.updateOne(queryDoc, updateDoc,
+                new UpdateOptions().upsert(true));
+    }
+}
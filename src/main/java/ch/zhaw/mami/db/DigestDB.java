@@ -0,0 +1,188 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Cache of SHA-1 digests of files (and of files within SequenceFiles). The
+ * digest of a file is only valid as long as length and modification time of
+ * the file are the same as when the digest was computed. SequenceFiles change
+ * with every append, so the digest of a record is kept with the offset of the
+ * record in the SequenceFile (as in the SeqIndexDB) instead: records are
+ * never changed once written. This is a cache: failures are logged but not
+ * passed on, callers then just compute the digest.
+ *
+ */
+public class DigestDB {
+
+    private final MongoCollection<Document> collection;
+
+    private final static Logger logger = LogManager.getLogger(DigestDB.class);
+
+    public DigestDB(final RuntimeConfiguration runtimeConfiguration) {
+        collection = runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getUploadDBName())
+                .getCollection("digests");
+    }
+
+    /**
+     * Returns the cached digest or null if there's none (or the file has
+     * changed since).
+     */
+    public String getDigest(final String path, String seqKey,
+            final long length, final long mtime) {
+        if (seqKey == null) {
+            seqKey = "";
+        }
+
+        try {
+            Document queryDoc = new Document();
+
+            queryDoc.append("path", path);
+            queryDoc.append("seqKey", seqKey);
+            queryDoc.append("length", length);
+            queryDoc.append("mtime", mtime);
+
+            FindIterable<Document> results = collection.find(queryDoc);
+            for (Document doc : results) {
+                return doc.getString("sha1");
+            }
+        } catch (Exception ex) {
+            DigestDB.logger.catching(ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the cached digest of the record of <code>seqKey</code> at
+     * <code>offset</code> or null if there's none.
+     */
+    public String getRecordDigest(final String path, final String seqKey,
+            final long offset) {
+        try {
+            Document queryDoc = queryDoc(path, seqKey);
+            queryDoc.append("offset", offset);
+
+            FindIterable<Document> results = collection.find(queryDoc);
+            for (Document doc : results) {
+                return doc.getString("sha1");
+            }
+        } catch (Exception ex) {
+            DigestDB.logger.catching(ex);
+        }
+
+        return null;
+    }
+
+    public void putDigest(final String path, String seqKey, final long length,
+            final long mtime, final String sha1) {
+        if (seqKey == null) {
+            seqKey = "";
+        }
+
+        try {
+            collection.updateOne(queryDoc(path, seqKey),
+                    updateDoc(length, mtime, sha1),
+                    new UpdateOptions().upsert(true));
+        } catch (Exception ex) {
+            DigestDB.logger.catching(ex);
+            DigestDB.logger.error("Could not cache digest of " + path);
+        }
+    }
+
+    public void putRecordDigest(final String path, final String seqKey,
+            final long offset, final String sha1) {
+        try {
+            collection.updateOne(queryDoc(path, seqKey),
+                    recordUpdateDoc(offset, sha1),
+                    new UpdateOptions().upsert(true));
+        } catch (Exception ex) {
+            DigestDB.logger.catching(ex);
+            DigestDB.logger.error("Could not cache digest of " + seqKey
+                    + " in " + path);
+        }
+    }
+
+    /**
+     * Caches the digests of several records of the same SequenceFile.
+     * <code>offsets</code> and <code>sha1s</code> are keyed by seqKey, keys
+     * without an offset are left out.
+     */
+    public void putRecordDigests(final String path,
+            final Map<String, Long> offsets, final Map<String, String> sha1s) {
+        try {
+            List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>();
+            for (Map.Entry<String, String> entry : sha1s.entrySet()) {
+                Long offset = offsets.get(entry.getKey());
+                if (offset != null) {
+                    models.add(new UpdateOneModel<Document>(queryDoc(path,
+                            entry.getKey()), recordUpdateDoc(offset,
+                            entry.getValue()), new UpdateOptions()
+                            .upsert(true)));
+                }
+            }
+            if (models.isEmpty()) {
+                return;
+            }
+
+            collection
+                    .bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (Exception ex) {
+            DigestDB.logger.catching(ex);
+            DigestDB.logger.error("Could not cache digests of " + path);
+        }
+    }
+
+    private Document queryDoc(final String path, final String seqKey) {
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
+        return queryDoc;
+    }
+
+    private Document recordUpdateDoc(final long offset, final String sha1) {
+        Document modDoc = new Document();
+        modDoc.append("offset", offset);
+        modDoc.append("sha1", sha1);
+        modDoc.append("timestamp", new Date().getTime() / 1000);
+
+        /* digests cached before by length and mtime of the SequenceFile */
+        Document unsetDoc = new Document();
+        unsetDoc.append("length", "");
+        unsetDoc.append("mtime", "");
+
+        Document updateDoc = new Document();
+        updateDoc.append("$set", modDoc);
+        updateDoc.append("$unset", unsetDoc);
+        return updateDoc;
+    }
+
+    private Document updateDoc(final long length, final long mtime,
+            final String sha1) {
+        Document modDoc = new Document();
+        modDoc.append("length", length);
+        modDoc.append("mtime", mtime);
+        modDoc.append("sha1", sha1);
+        modDoc.append("timestamp", new Date().getTime() / 1000);
+
+        Document updateDoc = new Document();
+        updateDoc.append("$set", modDoc);
+        return updateDoc;
+    }
+}
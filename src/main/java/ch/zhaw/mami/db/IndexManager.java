@@ -0,0 +1,533 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+
+/**
+ * The indexes of all collections the service uses, in one place. Missing
+ * indexes are created on startup (unless CREATE_INDEXES is false); indexes
+ * that exist already are left as they are. An existing index whose unique or
+ * expireAfterSeconds option differs from the declared one is an error: it is
+ * logged and reported as mismatched, and has to be dropped by hand to be
+ * built again.
+ * Indexes are built in the background so a large collection doesn't block
+ * the database. Unique indexes can't be built if there are duplicates
+ * already: that is logged and the other indexes are still created, but
+ * startup fails if one of the unique indexes the locks and uploads rely on
+ * (see UploadDB) is missing (see {@link #checkRequired()}).
+ *
+ * Also knows the queries the service runs most and reports how MongoDB
+ * executes them (see {@link #report()}).
+ *
+ */
+public class IndexManager {
+
+    private static class DeclaredIndex {
+
+        private final String db;
+        private final String collection;
+        private final Document keys;
+        private final IndexOptions options;
+        /* the service can't run without it */
+        private final boolean required;
+
+        public DeclaredIndex(final String db, final String collection,
+                final Document keys, final IndexOptions options,
+                final boolean required) {
+            this.db = db;
+            this.collection = collection;
+            this.keys = keys;
+            this.options = options.background(true);
+            this.required = required;
+        }
+    }
+
+    private static class HotQuery {
+
+        private final String name;
+        private final String db;
+        private final String collection;
+        private final Document filter;
+        private final Document sort;
+        private final int limit;
+
+        public HotQuery(final String name, final String db,
+                final String collection, final Document filter,
+                final Document sort, final int limit) {
+            this.name = name;
+            this.db = db;
+            this.collection = collection;
+            this.filter = filter;
+            this.sort = sort;
+            this.limit = limit;
+        }
+    }
+
+    private final static Logger logger = LogManager
+            .getLogger(IndexManager.class);
+
+    /**
+     * Collects the stages of a query plan (depth first).
+     */
+    private static void collectStages(final Document plan,
+            final List<Document> stages) {
+        if (plan == null) {
+            return;
+        }
+
+        stages.add(plan);
+        IndexManager.collectStages((Document) plan.get("inputStage"), stages);
+
+        @SuppressWarnings("unchecked")
+        List<Document> inputs = (List<Document>) plan.get("inputStages");
+        if (inputs != null) {
+            for (Document input : inputs) {
+                IndexManager.collectStages(input, stages);
+            }
+        }
+    }
+
+    /**
+     * The options compared with the existing indexes, as stored in
+     * <code>listIndexes</code>.
+     */
+    private static JSONObject options(final boolean unique,
+            final Long expireAfterSeconds) {
+        JSONObject obj = new JSONObject();
+        obj.put("unique", unique);
+        if (expireAfterSeconds != null) {
+            obj.put("expireAfterSeconds", expireAfterSeconds.longValue());
+        }
+        return obj;
+    }
+
+    /**
+     * The options of an existing index (from <code>listIndexes</code>).
+     */
+    private static JSONObject options(final Document index) {
+        Object expire = index.get("expireAfterSeconds");
+        return IndexManager.options(index.getBoolean("unique", false),
+                expire instanceof Number ? ((Number) expire).longValue()
+                        : null);
+    }
+
+    /**
+     * Whether two index key documents have the same fields in the same order
+     * and direction (the shell stores directions as doubles).
+     */
+    private static boolean sameKeys(final Document a, final Document b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+
+        List<String> aNames = new ArrayList<String>(a.keySet());
+        List<String> bNames = new ArrayList<String>(b.keySet());
+        for (int i = 0; i < aNames.size(); i++) {
+            if (!aNames.get(i).equals(bNames.get(i))) {
+                return false;
+            }
+            Object aValue = a.get(aNames.get(i));
+            Object bValue = b.get(bNames.get(i));
+            if (aValue instanceof Number && bValue instanceof Number) {
+                if (((Number) aValue).intValue() != ((Number) bValue)
+                        .intValue()) {
+                    return false;
+                }
+            }
+            else if (!aValue.equals(bValue)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether an existing index (from <code>listIndexes</code>) has the
+     * declared unique and expireAfterSeconds options.
+     */
+    private static boolean sameOptions(final Document index,
+            final IndexOptions options) {
+        return IndexManager.options(index).similar(
+                IndexManager.options(options.isUnique(),
+                        options.getExpireAfter(TimeUnit.SECONDS)));
+    }
+
+    private final MongoClient mongoClient;
+    private final List<DeclaredIndex> indexes = new ArrayList<DeclaredIndex>();
+    private final List<HotQuery> queries = new ArrayList<HotQuery>();
+
+    public IndexManager(final RuntimeConfiguration runtimeConfiguration) {
+        mongoClient = runtimeConfiguration.getMongoClient();
+
+        String uploadDB = runtimeConfiguration.getUploadDBName();
+        String authDB = runtimeConfiguration.getAuthDBName();
+        String logDB = runtimeConfiguration.getLogDBName();
+
+        /* plain uploads have no seqKey, i.e. are unique by path */
+        require(uploadDB, "uploads",
+                new Document().append("path", 1).append("seqKey", 1),
+                new IndexOptions().unique(true));
+        /* the scrubber's pending uploads */
+        declare(uploadDB, "uploads", new Document().append("complete", 1)
+                .append("validated", 1).append("_id", 1), new IndexOptions());
+        require(uploadDB, "locks", new Document().append("path", 1),
+                new IndexOptions().unique(true));
+        declare(uploadDB, "locks", new Document().append("expires", 1),
+                new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+        require(uploadDB, "upload_sessions",
+                new Document().append("session", 1),
+                new IndexOptions().unique(true));
+        declare(uploadDB, "seq_index",
+                new Document().append("path", 1).append("seqKey", 1),
+                new IndexOptions().unique(true));
+        declare(uploadDB, "digests",
+                new Document().append("path", 1).append("seqKey", 1),
+                new IndexOptions().unique(true));
+        declare(uploadDB, "contents", new Document().append("sha1", 1),
+                new IndexOptions().unique(true));
+        /* not unique, revoking a key removes all its entries */
+        declare(authDB, "api_keys", new Document().append("api_key", 1),
+                new IndexOptions());
+        declare(logDB, "log", new Document().append("path", 1),
+                new IndexOptions());
+        declare(logDB, "log", new Document().append("timestamp", 1),
+                new IndexOptions());
+        declare(logDB, "log_rollups",
+                new Document().append("period", 1).append("start", 1)
+                        .append("name", 1).append("action", 1)
+                        .append("prefix", 1), new IndexOptions().unique(true));
+
+        hot("upload by path", uploadDB, "uploads",
+                new Document("path", ""), null, 1);
+        hot("upload by path and seqKey", uploadDB, "uploads",
+                new Document().append("path", "").append("seqKey", ""),
+                null, 1);
+        hot("keys of a SequenceFile", uploadDB, "uploads",
+                new Document().append("path", "").append("seqKey",
+                        new Document("$exists", true)), null, 0);
+        hot("unvalidated uploads", uploadDB, "uploads",
+                new Document().append("complete", true)
+                        .append("validated", false)
+                        .append("validationFailed",
+                                new Document("$ne", true)),
+                new Document("_id", 1), 100);
+        hot("expired lock by path", uploadDB, "locks",
+                new Document().append("path", "").append("expires",
+                        new Document("$lt", new Date(0))), null, 1);
+        hot("upload session", uploadDB, "upload_sessions", new Document(
+                "session", ""), null, 1);
+        hot("record offset", uploadDB, "seq_index", new Document().append(
+                "path", "").append("seqKey", ""), null, 1);
+        hot("cached digest", uploadDB, "digests", new Document().append(
+                "path", "").append("seqKey", ""), null, 1);
+        hot("content by sha1", uploadDB, "contents",
+                new Document("sha1", ""), null, 1);
+        hot("access statistics", logDB, "log_rollups", new Document()
+                .append("period", LogRollups.DAY).append("start",
+                        new Document("$gte", 0L).append("$lt", 0L)), null, 0);
+        hot("api key", authDB, "api_keys", new Document("api_key", ""), null,
+                0);
+    }
+
+    /**
+     * Fails with an IllegalStateException if one of the unique indexes the
+     * locks and uploads rely on doesn't exist (or isn't unique): without them
+     * concurrent requests could both get a lock or the same upload.
+     */
+    public void checkRequired() {
+        List<String> missing = new ArrayList<String>();
+
+        for (DeclaredIndex index : indexes) {
+            if (!index.required) {
+                continue;
+            }
+            MongoCollection<Document> collection = mongoClient.getDatabase(
+                    index.db).getCollection(index.collection);
+            Document existing = find(collection, index.keys);
+            if (existing == null
+                    || !IndexManager.sameOptions(existing, index.options)) {
+                missing.add(index.keys.toJson() + " on "
+                        + collection.getNamespace());
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException(
+                    "Missing or mismatched unique indexes: " + missing);
+        }
+    }
+
+    private void declare(final String db, final String collection,
+            final Document keys, final IndexOptions options) {
+        indexes.add(new DeclaredIndex(db, collection, keys, options, false));
+    }
+
+    /**
+     * Creates the declared indexes that don't exist. Returns the number of
+     * indexes created. Fails if a required index is still missing
+     * afterwards (see {@link #checkRequired()}).
+     */
+    public int ensureIndexes() {
+        int created = 0;
+
+        for (DeclaredIndex index : indexes) {
+            MongoCollection<Document> collection = mongoClient.getDatabase(
+                    index.db).getCollection(index.collection);
+            try {
+                Document existing = find(collection, index.keys);
+                if (existing != null) {
+                    if (!IndexManager.sameOptions(existing, index.options)) {
+                        IndexManager.logger.error("Index "
+                                + index.keys.toJson() + " on "
+                                + collection.getNamespace()
+                                + " has different options: "
+                                + existing.toJson());
+                    }
+                    continue;
+                }
+                collection.createIndex(index.keys, index.options);
+                IndexManager.logger.info("Created index " + index.keys.toJson()
+                        + " on " + collection.getNamespace());
+                created++;
+            } catch (MongoException ex) {
+                /* e.g. duplicates from before a unique index */
+                IndexManager.logger.catching(ex);
+                IndexManager.logger.error("Could not create index "
+                        + index.keys.toJson() + " on "
+                        + collection.getNamespace());
+            }
+        }
+
+        checkRequired();
+        return created;
+    }
+
+
+    /**
+     * Runs <code>query</code> with explain and reports its plan: the stages,
+     * the index used (if any), how many keys and documents were examined and
+     * whether it is slow (scans the collection or sorts in memory).
+     */
+    private JSONObject explain(final HotQuery query) {
+        JSONObject obj = new JSONObject();
+        obj.put("name", query.name);
+        obj.put("collection", query.db + "." + query.collection);
+
+        Document find = new Document();
+        find.append("find", query.collection);
+        find.append("filter", query.filter);
+        if (query.sort != null) {
+            find.append("sort", query.sort);
+        }
+        if (query.limit > 0) {
+            find.append("limit", query.limit);
+        }
+
+        try {
+            Document explain = mongoClient.getDatabase(query.db).runCommand(
+                    new Document().append("explain", find).append(
+                            "verbosity", "executionStats"));
+
+            List<Document> stages = new ArrayList<Document>();
+            IndexManager.collectStages(
+                    (Document) ((Document) explain.get("queryPlanner"))
+                            .get("winningPlan"), stages);
+
+            JSONArray stageNames = new JSONArray();
+            boolean slow = false;
+            for (Document stage : stages) {
+                String name = stage.getString("stage");
+                stageNames.put(name);
+                if (name.equals("COLLSCAN") || name.equals("SORT")) {
+                    slow = true;
+                }
+                if (name.equals("IXSCAN") && !obj.has("index")) {
+                    obj.put("index", stage.getString("indexName"));
+                }
+            }
+            obj.put("stages", stageNames);
+            obj.put("slow", slow);
+
+            Document stats = (Document) explain.get("executionStats");
+            obj.put("keysExamined",
+                    ((Number) stats.get("totalKeysExamined")).longValue());
+            obj.put("docsExamined",
+                    ((Number) stats.get("totalDocsExamined")).longValue());
+            obj.put("millis",
+                    ((Number) stats.get("executionTimeMillis")).longValue());
+        } catch (Exception ex) {
+            IndexManager.logger.catching(ex);
+            obj.put("error", ex.getMessage());
+        }
+
+        return obj;
+    }
+
+    /**
+     * The existing index with the given keys (null if there is none).
+     */
+    private Document find(final MongoCollection<Document> collection,
+            final Document keys) {
+        for (Document index : collection.listIndexes()) {
+            if (IndexManager.sameKeys((Document) index.get("key"), keys)) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private void hot(final String name, final String db,
+            final String collection, final Document filter,
+            final Document sort, final int limit) {
+        queries.add(new HotQuery(name, db, collection, filter, sort, limit));
+    }
+
+    private boolean isDeclared(final String db, final String collection,
+            final Document keys) {
+        for (DeclaredIndex declared : indexes) {
+            if (declared.db.equals(db)
+                    && declared.collection.equals(collection)
+                    && IndexManager.sameKeys(declared.keys, keys)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The indexes of every collection with an index declared: for each
+     * index its keys, options, how often it was used since when (from
+     * $indexStats, counted per server since its start) and whether it is
+     * declared, plus the declared indexes that are missing or whose options
+     * differ. Also the plans of the hot queries (see
+     * {@link #explain(HotQuery)}).
+     */
+    public JSONObject report() {
+        JSONObject obj = new JSONObject();
+
+        JSONArray collections = new JSONArray();
+        List<String> seen = new ArrayList<String>();
+        for (DeclaredIndex declared : indexes) {
+            String ns = declared.db + "." + declared.collection;
+            if (seen.contains(ns)) {
+                continue;
+            }
+            seen.add(ns);
+            collections.put(reportCollection(declared.db,
+                    declared.collection));
+        }
+        obj.put("collections", collections);
+
+        JSONArray plans = new JSONArray();
+        for (HotQuery query : queries) {
+            plans.put(explain(query));
+        }
+        obj.put("queries", plans);
+
+        return obj;
+    }
+
+    private JSONObject reportCollection(final String db,
+            final String collectionName) {
+        JSONObject obj = new JSONObject();
+        obj.put("collection", db + "." + collectionName);
+
+        MongoDatabase database = mongoClient.getDatabase(db);
+        MongoCollection<Document> collection = database
+                .getCollection(collectionName);
+
+        try {
+            obj.put("documents", collection.count());
+
+            Map<String, Document> listed = new HashMap<String, Document>();
+            for (Document index : collection.listIndexes()) {
+                listed.put(index.getString("name"), index);
+            }
+
+            JSONArray existing = new JSONArray();
+            for (Document stats : collection.aggregate(Arrays
+                    .asList(new Document("$indexStats", new Document())))) {
+                Document keys = (Document) stats.get("key");
+                Document accesses = (Document) stats.get("accesses");
+                Document listing = listed.get(stats.getString("name"));
+
+                JSONObject index = new JSONObject();
+                index.put("name", stats.getString("name"));
+                index.put("key", new JSONObject(keys.toJson()));
+                if (listing != null) {
+                    index.put("options", IndexManager.options(listing));
+                }
+                index.put("ops", ((Number) accesses.get("ops")).longValue());
+                index.put("since",
+                        ((Date) accesses.get("since")).getTime() / 1000);
+                index.put("declared", isDeclared(db, collectionName, keys));
+                existing.put(index);
+            }
+            obj.put("indexes", existing);
+
+            JSONArray missing = new JSONArray();
+            JSONArray mismatched = new JSONArray();
+            for (DeclaredIndex declared : indexes) {
+                if (!declared.db.equals(db)
+                        || !declared.collection.equals(collectionName)) {
+                    continue;
+                }
+                Document found = null;
+                for (Document index : listed.values()) {
+                    if (IndexManager.sameKeys((Document) index.get("key"),
+                            declared.keys)) {
+                        found = index;
+                    }
+                }
+                if (found == null) {
+                    missing.put(new JSONObject(declared.keys.toJson()));
+                }
+                else if (!IndexManager.sameOptions(found, declared.options)) {
+                    JSONObject index = new JSONObject();
+                    index.put("name", found.getString("name"));
+                    index.put("key", new JSONObject(declared.keys.toJson()));
+                    index.put("declared", IndexManager.options(
+                            declared.options.isUnique(), declared.options
+                                    .getExpireAfter(TimeUnit.SECONDS)));
+                    mismatched.put(index);
+                }
+            }
+            obj.put("missing", missing);
+            obj.put("mismatched", mismatched);
+        } catch (Exception ex) {
+            IndexManager.logger.catching(ex);
+            obj.put("error", ex.getMessage());
+        }
+
+        return obj;
+    }
+
+    /**
+     * Declares an index the service can't run without (see
+     * {@link #checkRequired()}).
+     */
+    private void require(final String db, final String collection,
+            final Document keys, final IndexOptions options) {
+        indexes.add(new DeclaredIndex(db, collection, keys, options, true));
+    }
+}
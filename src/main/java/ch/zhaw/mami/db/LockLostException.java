@@ -0,0 +1,23 @@
+package ch.zhaw.mami.db;
+
+/**
+ * Thrown when committing an upload whose lock has expired (and may have been
+ * taken over by another process) since it was taken, or which isn't covered
+ * by a lock of this process.
+ *
+ */
+public class LockLostException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The lock of <code>path</code> wasn't taken by this process at all.
+     */
+    public LockLostException(final String path) {
+        super("Not holding the lock of " + path);
+    }
+
+    public LockLostException(final String path, final long token) {
+        super("Lost the lock of " + path + " (token " + token + ")");
+    }
+}
@@ -1,22 +1,111 @@
 package ch.zhaw.mami.db;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.bson.Document;
+import org.json.JSONObject;
 
 import ch.zhaw.mami.RuntimeConfiguration;
 
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
 
+/**
+ * Access log. Entries are written asynchronously and in batches (see
+ * LogWriter), so they show up in the collection with a short delay. Every
+ * batch is also added to the access statistics (see LogRollups). Entries
+ * older than LOG_RETENTION days are removed once an hour.
+ *
+ */
 public class LogDB {
 
+    private final static Logger logger = LogManager.getLogger(LogDB.class);
+
     private final MongoCollection<Document> collection;
+    private final LogRollups rollups;
+    private final LogWriter writer;
+    /* seconds, 0: keep forever */
+    private final long retention;
+    private final ScheduledExecutorService purger;
 
     public LogDB(final RuntimeConfiguration runtimeConfiguration) {
         collection = runtimeConfiguration.getMongoClient()
                 .getDatabase(runtimeConfiguration.getLogDBName())
                 .getCollection("log");
+        rollups = new LogRollups(runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getLogDBName())
+                .getCollection("log_rollups"),
+                runtimeConfiguration.getLogRollupDepth());
+
+        writer = new LogWriter("log-writer", new LogWriter.Sink() {
+
+            @Override
+            public void write(final List<Document> batch) {
+                List<Document> entries = new ArrayList<Document>();
+                for (Document doc : batch) {
+                    if (!doc.containsKey("transfer")) {
+                        entries.add(doc);
+                    }
+                }
+                if (!entries.isEmpty()) {
+                    collection.insertMany(entries,
+                            new InsertManyOptions().ordered(false));
+                }
+                rollups.record(batch);
+            }
+        }, runtimeConfiguration.getLogQueueSize(),
+                runtimeConfiguration.getLogBatchSize(),
+                runtimeConfiguration.getLogOverflow(),
+                runtimeConfiguration.getLogSampleRate());
+
+        retention = runtimeConfiguration.getLogRetention() * 86400;
+        purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "log-purger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (retention > 0) {
+            purger.scheduleWithFixedDelay(new Runnable() {
 
+                @Override
+                public void run() {
+                    purge();
+                }
+            }, 1, 60, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Writes the queued entries (on shutdown). Entries logged afterwards are
+     * dropped.
+     */
+    public void close() throws InterruptedException {
+        purger.shutdownNow();
+        writer.close(10000);
+    }
+
+    /**
+     * Access statistics, see LogRollups#query.
+     */
+    public List<Document> getStats(final String period, final long from,
+            final long to, final Map<String, String> filter,
+            final List<String> by, final boolean perPeriod, final String sort,
+            final int limit) {
+        return rollups.query(period, from, to, filter, by, perPeriod, sort,
+                limit);
     }
 
     public void insertLogEntry(final String path, final String action,
@@ -27,6 +116,45 @@ public class LogDB {
         doc.append("action", action);
         doc.append("name", name);
         doc.append("timestamp", new Date().getTime() / 1000);
-        collection.insertOne(doc);
+        writer.add(doc);
+    }
+
+    /**
+     * Counts <code>bytes</code> transferred by a request logged with
+     * {@link #insertLogEntry(String, String, String)} in the access
+     * statistics (only, there's no log entry).
+     */
+    public void insertTransfer(final String path, final String action,
+            final String name, final long bytes) {
+
+        Document doc = new Document();
+        doc.append("path", path);
+        doc.append("action", action);
+        doc.append("name", name);
+        doc.append("timestamp", new Date().getTime() / 1000);
+        doc.append("bytes", bytes);
+        doc.append("transfer", true);
+        writer.add(doc);
+    }
+
+    /**
+     * Removes entries (and hourly statistics) older than the retention.
+     */
+    private void purge() {
+        long before = new Date().getTime() / 1000 - retention;
+
+        try {
+            long deleted = collection.deleteMany(
+                    new Document("timestamp", new Document("$lt", before)))
+                    .getDeletedCount();
+            rollups.purge(before);
+            LogDB.logger.debug("Removed " + deleted + " log entries");
+        } catch (Exception ex) {
+            LogDB.logger.catching(ex);
+        }
+    }
+
+    public JSONObject stats() {
+        return writer.stats();
     }
 }
@@ -0,0 +1,228 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Access statistics kept up to date as the access log is written: for every
+ * hour and every day (UTC) the number of requests and the bytes transferred
+ * per user (<code>name</code>), action and path prefix (the first
+ * <code>depth</code> directories of the path). Hourly rollups are removed
+ * with the raw log entries (see LogDB), daily ones are kept.
+ *
+ * The schema is
+ * <code>{period, start, name, action, prefix, requests, bytes}</code> with
+ * <code>period</code> "hour" or "day" and <code>start</code> the start of the
+ * period (unix timestamp).
+ *
+ */
+public class LogRollups {
+
+    public final static String HOUR = "hour";
+    public final static String DAY = "day";
+
+    private final static Map<String, Long> periods = new LinkedHashMap<String, Long>();
+    static {
+        LogRollups.periods.put(LogRollups.HOUR, 3600L);
+        LogRollups.periods.put(LogRollups.DAY, 86400L);
+    }
+
+    /* what stats can be grouped and filtered by */
+    public final static List<String> dimensions = Arrays.asList("name",
+            "action", "prefix");
+
+    /**
+     * Adds up the entries of the access log per rollup. Returns the rollup
+     * keys (period, start, name, action, prefix) with their
+     * <code>{requests, bytes}</code>. Transfer entries (see
+     * LogDB#insertTransfer) only count bytes.
+     */
+    public static Map<Document, long[]> aggregate(final List<Document> entries,
+            final int depth) {
+        Map<Document, long[]> rollups = new LinkedHashMap<Document, long[]>();
+
+        for (Document entry : entries) {
+            long timestamp = ((Number) entry.get("timestamp")).longValue();
+            boolean transfer = Boolean.TRUE.equals(entry.get("transfer"));
+            Object bytes = entry.get("bytes");
+
+            for (Map.Entry<String, Long> period : LogRollups.periods
+                    .entrySet()) {
+                Document key = new Document();
+                key.append("period", period.getKey());
+                key.append("start", timestamp - timestamp % period.getValue());
+                key.append("name", entry.getString("name"));
+                key.append("action", entry.getString("action"));
+                key.append("prefix",
+                        LogRollups.prefix(entry.getString("path"), depth));
+
+                long[] counts = rollups.get(key);
+                if (counts == null) {
+                    counts = new long[2];
+                    rollups.put(key, counts);
+                }
+                if (!transfer) {
+                    counts[0]++;
+                }
+                if (bytes instanceof Number) {
+                    counts[1] += ((Number) bytes).longValue();
+                }
+            }
+        }
+
+        return rollups;
+    }
+
+    /**
+     * The first <code>depth</code> components of the directory of
+     * <code>path</code> (without leading or duplicate slashes). The last
+     * component is left out so file names don't make up prefixes of their
+     * own.
+     */
+    public static String prefix(final String path, final int depth) {
+        if (path == null) {
+            return "";
+        }
+
+        List<String> components = new ArrayList<String>();
+        for (String component : path.split("/")) {
+            if (!component.isEmpty()) {
+                components.add(component);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Math.min(depth, components.size() - 1); i++) {
+            if (i > 0) {
+                sb.append('/');
+            }
+            sb.append(components.get(i));
+        }
+
+        return sb.toString();
+    }
+
+    private final MongoCollection<Document> collection;
+    private final int depth;
+
+    public LogRollups(final MongoCollection<Document> collection,
+            final int depth) {
+        this.collection = collection;
+        this.depth = depth;
+    }
+
+    /**
+     * Removes the hourly rollups of periods that started before
+     * <code>before</code> (unix timestamp).
+     */
+    public void purge(final long before) {
+        Document queryDoc = new Document();
+        queryDoc.append("period", LogRollups.HOUR);
+        queryDoc.append("start", new Document("$lt", before));
+
+        collection.deleteMany(queryDoc);
+    }
+
+    /**
+     * Requests and bytes of the <code>period</code> rollups starting in
+     * [<code>from</code>, <code>to</code>) matching <code>filter</code>
+     * (dimension -&gt; value), grouped by the dimensions in <code>by</code>
+     * (and by <code>start</code> if <code>perPeriod</code>). Sorted by
+     * <code>sort</code> (requests or bytes, descending), at most
+     * <code>limit</code>.
+     */
+    public List<Document> query(final String period, final long from,
+            final long to, final Map<String, String> filter,
+            final List<String> by, final boolean perPeriod, final String sort,
+            final int limit) {
+        Document match = new Document();
+        match.append("period", period);
+        match.append("start", new Document("$gte", from).append("$lt", to));
+        for (Map.Entry<String, String> entry : filter.entrySet()) {
+            match.append(entry.getKey(), entry.getValue());
+        }
+
+        Document id = new Document();
+        if (perPeriod) {
+            id.append("start", "$start");
+        }
+        for (String dimension : by) {
+            id.append(dimension, "$" + dimension);
+        }
+
+        Document group = new Document();
+        group.append("_id", id);
+        group.append("requests", new Document("$sum", "$requests"));
+        group.append("bytes", new Document("$sum", "$bytes"));
+
+        List<Document> pipeline = new ArrayList<Document>();
+        pipeline.add(new Document("$match", match));
+        pipeline.add(new Document("$group", group));
+        pipeline.add(new Document("$sort", new Document(sort, -1)));
+        pipeline.add(new Document("$limit", limit));
+
+        List<Document> results = new ArrayList<Document>();
+        for (Document doc : collection.aggregate(pipeline)) {
+            Document result = new Document();
+            result.putAll((Document) doc.get("_id"));
+            result.append("requests", ((Number) doc.get("requests"))
+                    .longValue());
+            result.append("bytes", ((Number) doc.get("bytes")).longValue());
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Adds a batch of access log entries to the rollups.
+     */
+    public void record(final List<Document> entries) {
+        Map<Document, long[]> rollups = LogRollups.aggregate(entries, depth);
+        if (rollups.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>();
+        for (Map.Entry<Document, long[]> rollup : rollups.entrySet()) {
+            Document incDoc = new Document();
+            incDoc.append("requests", rollup.getValue()[0]);
+            incDoc.append("bytes", rollup.getValue()[1]);
+
+            models.add(new UpdateOneModel<Document>(rollup.getKey(),
+                    new Document("$inc", incDoc), new UpdateOptions()
+                            .upsert(true)));
+        }
+
+        try {
+            collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            /*
+             * Two servers inserting the same rollup at once: one upsert fails
+             * on the unique index, as an update it succeeds.
+             */
+            List<WriteModel<Document>> retry = new ArrayList<WriteModel<Document>>();
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw ex;
+                }
+                retry.add(models.get(error.getIndex()));
+            }
+            collection.bulkWrite(retry, new BulkWriteOptions().ordered(false));
+        }
+    }
+}
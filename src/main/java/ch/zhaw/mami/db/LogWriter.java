@@ -0,0 +1,194 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.json.JSONObject;
+
+/**
+ * Writes log entries in the background: entries are put into a bounded queue
+ * and a thread writes them to the sink in batches of up to
+ * <code>batchSize</code>, so requests don't wait for the database. What
+ * happens when the queue is full depends on the overflow policy:
+ * <ul>
+ * <li>BLOCK: wait for space (no entry is lost, but requests slow down to the
+ * speed of the database),</li>
+ * <li>DROP: drop the entry,</li>
+ * <li>SAMPLE: keep every <code>sampleRate</code>th entry that doesn't fit
+ * (waiting for space as with BLOCK) and drop the others.</li>
+ * </ul>
+ * Entries of a batch the sink fails to write are lost (and counted).
+ *
+ */
+public class LogWriter {
+
+    public enum Overflow {
+        BLOCK, DROP, SAMPLE
+    }
+
+    /**
+     * Where the batches go. A batch must not be kept, its list is reused.
+     */
+    public interface Sink {
+
+        public void write(List<Document> batch) throws Exception;
+    }
+
+    private final static Logger logger = LogManager.getLogger(LogWriter.class);
+
+    /* how long the writer waits for entries before checking for close */
+    private final static long pollMillis = 100;
+
+    private final Sink sink;
+    private final BlockingQueue<Document> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final Overflow overflow;
+    private final int sampleRate;
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public LogWriter(final String name, final Sink sink, final int capacity,
+            final int batchSize, final Overflow overflow, final int sampleRate) {
+        this.sink = sink;
+        this.capacity = Math.max(1, capacity);
+        this.queue = new ArrayBlockingQueue<Document>(this.capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.overflow = overflow;
+        this.sampleRate = Math.max(1, sampleRate);
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an entry (see above for a full queue).
+     */
+    public void add(final Document doc) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        if (queue.offer(doc)) {
+            return;
+        }
+
+        long n = overflowed.incrementAndGet();
+        if (overflow == Overflow.BLOCK
+                || (overflow == Overflow.SAMPLE && n % sampleRate == 0)) {
+            put(doc);
+        }
+        else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops taking entries and waits up to <code>timeout</code> milliseconds
+     * for the queued ones to be written. Returns false if they weren't.
+     */
+    public boolean close(final long timeout) throws InterruptedException {
+        closed = true;
+        thread.join(timeout);
+        if (thread.isAlive()) {
+            return false;
+        }
+
+        /* added while closing */
+        List<Document> rest = new ArrayList<Document>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            write(rest);
+        }
+        return true;
+    }
+
+    private void drain() {
+        List<Document> batch = new ArrayList<Document>(batchSize);
+
+        while (true) {
+            Document first;
+            try {
+                first = queue.poll(LogWriter.pollMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                LogWriter.logger.catching(ex);
+                return;
+            }
+
+            if (first == null) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void put(final Document doc) {
+        try {
+            /* the writer is gone once closed */
+            while (!queue.offer(doc, LogWriter.pollMillis,
+                    TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
+    }
+
+    public JSONObject stats() {
+        JSONObject obj = new JSONObject();
+        obj.put("queued", queue.size());
+        obj.put("capacity", capacity);
+        obj.put("overflow", overflow.toString());
+        obj.put("written", written.get());
+        obj.put("batches", batches.get());
+        obj.put("overflowed", overflowed.get());
+        obj.put("dropped", dropped.get());
+        obj.put("failed", failed.get());
+        return obj;
+    }
+
+    private void write(final List<Document> batch) {
+        try {
+            sink.write(batch);
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+        } catch (Exception ex) {
+            LogWriter.logger.catching(ex);
+            LogWriter.logger.error("Could not write " + batch.size()
+                    + " log entries!");
+            failed.addAndGet(batch.size());
+        }
+    }
+}
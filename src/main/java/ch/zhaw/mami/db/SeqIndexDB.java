@@ -0,0 +1,148 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Key to offset index of SequenceFiles. For every key in a SequenceFile the
+ * offset of the record (or for block compressed SequenceFiles the offset from
+ * which to look for the sync mark of the block containing the record) is
+ * stored.
+ *
+ */
+public class SeqIndexDB {
+
+    private final MongoCollection<Document> collection;
+
+    public SeqIndexDB(final RuntimeConfiguration runtimeConfiguration) {
+        collection = runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getUploadDBName())
+                .getCollection("seq_index");
+    }
+
+    public void clear(final String path) {
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+
+        collection.deleteMany(queryDoc);
+    }
+
+    /**
+     * Keys indexed at offsets from <code>from</code> (inclusive) to
+     * <code>to</code> (exclusive).
+     */
+    public Set<String> getKeys(final String path, final long from,
+            final long to) {
+        Document queryDoc = new Document();
+
+        queryDoc.append("path", path);
+        queryDoc.append("offset", new Document("$gte", from).append("$lt", to));
+
+        Set<String> seqKeys = new HashSet<String>();
+        for (Document doc : collection.find(queryDoc).projection(
+                Projections.include("seqKey"))) {
+            seqKeys.add(doc.getString("seqKey"));
+        }
+
+        return seqKeys;
+    }
+
+    public Long getOffset(final String path, final String seqKey) {
+        Document queryDoc = new Document();
+
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
+
+        FindIterable<Document> results = collection.find(queryDoc);
+        for (Document doc : results) {
+            Object offset = doc.get("offset");
+            if (offset instanceof Number) {
+                return ((Number) offset).longValue();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Offsets of several keys at once. Keys that aren't indexed are missing
+     * from the result.
+     */
+    public Map<String, Long> getOffsets(final String path,
+            final Collection<String> seqKeys) {
+        Document queryDoc = new Document();
+
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", new Document("$in", new ArrayList<String>(
+                seqKeys)));
+
+        Map<String, Long> offsets = new HashMap<String, Long>();
+
+        FindIterable<Document> results = collection.find(queryDoc);
+        for (Document doc : results) {
+            Object offset = doc.get("offset");
+            if (offset instanceof Number) {
+                offsets.put(doc.getString("seqKey"),
+                        ((Number) offset).longValue());
+            }
+        }
+
+        return offsets;
+    }
+
+    /**
+     * Records the offset of a key. If the key occurs more than once in the
+     * SequenceFile the smallest offset wins (that's the one a linear scan
+     * would find first).
+     */
+    public void putOffset(final String path, final String seqKey,
+            final long offset) {
+        collection.updateOne(queryDoc(path, seqKey), updateDoc(offset),
+                new UpdateOptions().upsert(true));
+    }
+
+    public void putOffsets(final String path, final Map<String, Long> offsets) {
+        if (offsets.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>();
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            models.add(new UpdateOneModel<Document>(queryDoc(path,
+                    entry.getKey()), updateDoc(entry.getValue()),
+                    new UpdateOptions().upsert(true)));
+        }
+
+        collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+    }
+
+    private Document queryDoc(final String path, final String seqKey) {
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
+        return queryDoc;
+    }
+
+    private Document updateDoc(final long offset) {
+        Document updateDoc = new Document();
+        updateDoc.append("$min", new Document("offset", offset));
+        return updateDoc;
+    }
+}
@@ -1,6 +1,19 @@
 package ch.zhaw.mami.db;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -8,18 +21,109 @@ import org.bson.Document;
 
 import ch.zhaw.mami.RuntimeConfiguration;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+
+/**
+ * Entries of uploads, locks, errors, upload sessions and tree imports. There
+ * is no locking in here: unique indexes (on path and seqKey of uploads, path
+ * of locks and session of upload sessions, see IndexManager) make inserting
+ * an entry that exists already fail, so concurrent requests (and servers)
+ * can't both get it.
+ *
+ * Locks are leases: they expire after LOCK_TTL seconds unless they are
+ * renewed, which is done for the locks held by this process every third of
+ * that. An expired lock can be taken by anybody (and is removed by a TTL
+ * index eventually), so a crashed process doesn't leave its locks behind.
+ * Every lock gets a new token from a counter shared by all processes.
+ * Completing an upload renews the lock of its path if it still has the token
+ * it was taken with (so it can't expire before the entry is written) and
+ * fails with a LockLostException otherwise, also if this process doesn't
+ * hold the lock at all. The entry is only updated if no newer lock holder
+ * wrote it (its <code>lockToken</code> isn't larger).
+ *
+ */
 public class UploadDB {
 
-    private final static Object mutex = new Object();
+    /**
+     * A lock held by this process.
+     */
+    private static class Lease {
+
+        private final long token;
+        /* renewal found the lock gone or taken over */
+        private volatile boolean lost = false;
+
+        public Lease(final long token) {
+            this.token = token;
+        }
+    }
+
+    /* who holds a lock (for humans only, the token identifies the lease) */
+    private final static String owner = ManagementFactory.getRuntimeMXBean()
+            .getName();
+
     private final MongoCollection<Document> collection;
     private final MongoCollection<Document> lockCollection;
+    private final MongoCollection<Document> counterCollection;
     private final MongoCollection<Document> errorCollection;
+    private final MongoCollection<Document> sessionCollection;
+    private final MongoCollection<Document> importCollection;
+
+    /* milliseconds */
+    private final long lockTTL;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+    private final ScheduledExecutorService heartbeat;
 
     private final static Logger logger = LogManager.getLogger(UploadDB.class);
 
+    /**
+     * <code>queryDoc</code> restricted to entries not written under a newer
+     * lock than <code>token</code>.
+     */
+    private static Document fenced(final Document queryDoc, final long token) {
+        return new Document(queryDoc).append("lockToken", new Document("$not",
+                new Document("$gt", token)));
+    }
+
+    /**
+     * Whether <code>ex</code> only failed because of (a) duplicate key(s).
+     */
+    private static boolean isDuplicateKey(final MongoException ex) {
+        if (ex instanceof MongoWriteException) {
+            return ((MongoWriteException) ex).getError().getCategory()
+                    == ErrorCategory.DUPLICATE_KEY;
+        }
+
+        if (ex instanceof MongoBulkWriteException) {
+            for (BulkWriteError error : ((MongoBulkWriteException) ex)
+                    .getWriteErrors()) {
+                if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    return false;
+                }
+            }
+            return ((MongoBulkWriteException) ex).getWriteConcernError()
+                    == null;
+        }
+
+        return false;
+    }
+
     public UploadDB(final RuntimeConfiguration runtimeConfiguration) {
 
         collection = runtimeConfiguration.getMongoClient()
@@ -28,252 +132,766 @@ public class UploadDB {
         lockCollection = runtimeConfiguration.getMongoClient()
                 .getDatabase(runtimeConfiguration.getUploadDBName())
                 .getCollection("locks");
+        counterCollection = runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getUploadDBName())
+                .getCollection("counters");
         errorCollection = runtimeConfiguration.getMongoClient()
                 .getDatabase(runtimeConfiguration.getUploadDBName())
                 .getCollection("upload_errors");
+        sessionCollection = runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getUploadDBName())
+                .getCollection("upload_sessions");
+        importCollection = runtimeConfiguration.getMongoClient()
+                .getDatabase(runtimeConfiguration.getUploadDBName())
+                .getCollection("seq_imports");
+
+        lockTTL = runtimeConfiguration.getLockTTL() * 1000;
+        /* locks from before leases never expire otherwise */
+        lockCollection.updateMany(new Document("expires", new Document(
+                "$exists", false)), new Document("$set", new Document(
+                "expires", new Date(System.currentTimeMillis() + lockTTL))));
+
+        heartbeat = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread thread = new Thread(r, "lock-heartbeat");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        long period = Math.max(1, lockTTL / 3);
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                renewLocks();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Throws a LockLostException if an entry matching <code>queryDoc</code>
+     * was written under a newer lock than <code>token</code> (the lock was
+     * lost and taken over in between).
+     */
+    private void checkSuperseded(final Document queryDoc, final String path,
+            final long token) {
+        if (collection.find(
+                new Document(queryDoc).append("lockToken", new Document("$gt",
+                        token))).first() != null) {
+            Lease lease = leases.get(path);
+            if (lease != null && lease.token == token) {
+                lease.lost = true;
+            }
+            throw new LockLostException(path, token);
+        }
+    }
+
+    /**
+     * Stops renewing locks and releases those still held (on shutdown).
+     */
+    public void close() {
+        heartbeat.shutdownNow();
+        for (String path : new ArrayList<String>(leases.keySet())) {
+            try {
+                releaseLock(path);
+            } catch (Exception ex) {
+                UploadDB.logger.catching(ex);
+            }
+        }
     }
 
     public void completeSeqUpload(final String path, final String seqKey,
             final String sha1) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
-            Document updateDoc = new Document();
-            Document modDoc = new Document();
+        long token = fence(path);
 
-            queryDoc.append("path", path);
-            queryDoc.append("seqKey", seqKey);
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
 
-            modDoc.append("complete", true);
-            modDoc.append("sha1", sha1);
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
 
-            updateDoc.append("$set", modDoc);
+        modDoc.append("complete", true);
+        modDoc.append("sha1", sha1);
+        modDoc.append("lockToken", token);
 
-            collection.updateOne(queryDoc, updateDoc);
+        updateDoc.append("$set", modDoc);
+
+        if (collection.updateOne(UploadDB.fenced(queryDoc, token), updateDoc)
+                .getMatchedCount() == 0) {
+            checkSuperseded(queryDoc, path, token);
         }
     }
 
-    public void completeUpload(final String path, final String sha1) {
-        synchronized (UploadDB.mutex) {
+    /**
+     * Completes several uploads into the SequenceFile at <code>path</code> at
+     * once. <code>sha1s</code> is keyed by seqKey.
+     */
+    public void completeSeqUploads(final String path,
+            final Map<String, String> sha1s) {
+        if (sha1s.isEmpty()) {
+            return;
+        }
+
+        long token = fence(path);
+
+        List<WriteModel<Document>> models = new ArrayList<WriteModel<Document>>();
+        for (Map.Entry<String, String> entry : sha1s.entrySet()) {
             Document queryDoc = new Document();
-            Document updateDoc = new Document();
+            queryDoc.append("path", path);
+            queryDoc.append("seqKey", entry.getKey());
+
             Document modDoc = new Document();
+            modDoc.append("complete", true);
+            modDoc.append("sha1", entry.getValue());
+            modDoc.append("lockToken", token);
+
+            models.add(new UpdateOneModel<Document>(UploadDB.fenced(queryDoc,
+                    token), new Document("$set", modDoc)));
+        }
 
+        if (collection.bulkWrite(models, new BulkWriteOptions().ordered(false))
+                .getMatchedCount() < models.size()) {
+            Document queryDoc = new Document();
             queryDoc.append("path", path);
+            queryDoc.append("seqKey", new Document("$in",
+                    new ArrayList<String>(sha1s.keySet())));
+            checkSuperseded(queryDoc, path, token);
+        }
+    }
 
-            modDoc.append("complete", true);
-            modDoc.append("sha1", sha1);
+    public void completeUpload(final String path, final String sha1) {
+        long token = fence(path);
+
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
+
+        queryDoc.append("path", path);
+
+        modDoc.append("complete", true);
+        modDoc.append("sha1", sha1);
+        modDoc.append("lockToken", token);
+
+        updateDoc.append("$set", modDoc);
+
+        if (collection.updateOne(UploadDB.fenced(queryDoc, token), updateDoc)
+                .getMatchedCount() == 0) {
+            checkSuperseded(queryDoc, path, token);
+        }
+    }
+
+    /**
+     * Completes an upload and stores the hashes of its blocks (see
+     * BlockDigest).
+     *
+     * @param ref
+     *            Path of the stored content of a deduplicated upload (see
+     *            ContentStore), null otherwise.
+     */
+    public void completeUpload(final String path, final String sha1,
+            final long blockSize, final List<String> blockSha1s,
+            final String treeSha1, final String ref) {
+        long token = fence(path);
+
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
+
+        queryDoc.append("path", path);
+
+        modDoc.append("complete", true);
+        modDoc.append("sha1", sha1);
+        modDoc.append("lockToken", token);
+        modDoc.append("blockSize", blockSize);
+        modDoc.append("blockSha1s", blockSha1s);
+        modDoc.append("treeSha1", treeSha1);
+        if (ref != null) {
+            modDoc.append("ref", ref);
+        }
+
+        updateDoc.append("$set", modDoc);
 
-            updateDoc.append("$set", modDoc);
+        if (collection.updateOne(UploadDB.fenced(queryDoc, token), updateDoc)
+                .getMatchedCount() == 0) {
+            checkSuperseded(queryDoc, path, token);
+        }
+    }
+
+    /**
+     * Checks that this process still holds the lock of <code>path</code> with
+     * the token it was taken with and renews it in the same write, so it
+     * doesn't expire before an update following within LOCK_TTL. Returns the
+     * token. Throws a LockLostException otherwise (also if this process
+     * didn't take the lock).
+     */
+    public long fence(final String path) {
+        Lease lease = leases.get(path);
+        if (lease == null) {
+            throw new LockLostException(path);
+        }
 
-            collection.updateOne(queryDoc, updateDoc);
+        Date now = new Date();
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("token", lease.token);
+        queryDoc.append("expires", new Document("$gt", now));
+
+        if (lease.lost
+                || lockCollection.updateOne(
+                        queryDoc,
+                        new Document("$set", new Document("expires",
+                                new Date(now.getTime() + lockTTL))))
+                        .getMatchedCount() == 0) {
+            lease.lost = true;
+            throw new LockLostException(path, lease.token);
         }
+        return lease.token;
     }
 
+    /**
+     * Sessions without a chunk received since <code>before</code> (unix
+     * timestamp).
+     */
+    public List<Document> getIdleSessions(final long before) {
+        /* sessions of older versions only have the time they were opened */
+        Document queryDoc = new Document("$or", Arrays.asList(new Document(
+                "active", new Document("$lt", before)), new Document("active",
+                new Document("$exists", false)).append("timestamp",
+                new Document("$lt", before))));
+
+        List<Document> sessions = new ArrayList<Document>();
+        for (Document doc : sessionCollection.find(queryDoc)) {
+            sessions.add(doc);
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Takes the lock of <code>path</code> (see above). Returns false if it's
+     * held already (also if this process holds it).
+     */
     public boolean getLock(final String path) {
-        /*
-         * TODO: this is not atomic if other processes write to the lock
-         * collection. Is there some kind of insertIfNotExists (that is atomic)?
-         */
-        synchronized (UploadDB.mutex) {
+        if (leases.containsKey(path)) {
+            return false;
+        }
+
+        long token = nextLockToken();
+        Date now = new Date();
+
+        Document doc = new Document();
+        doc.append("path", path);
+        doc.append("owner", UploadDB.owner);
+        doc.append("token", token);
+        doc.append("expires", new Date(now.getTime() + lockTTL));
+        doc.append("timestamp", now.getTime() / 1000);
+
+        try {
+            lockCollection.insertOne(doc);
+        } catch (MongoException ex) {
+            if (!UploadDB.isDuplicateKey(ex)) {
+                throw ex;
+            }
+
+            /* the TTL index removes expired locks only once a minute */
             Document queryDoc = new Document();
             queryDoc.append("path", path);
-
-            /* Entry with path exists. */
-            FindIterable<Document> results = lockCollection.find(queryDoc);
-            for (@SuppressWarnings("unused")
-            Document doc : results) {
-                System.out.println(doc.toJson());
+            queryDoc.append("expires", new Document("$lt", now));
+            if (lockCollection.findOneAndUpdate(queryDoc, new Document(
+                    "$set", doc)) == null) {
                 return false;
             }
+            UploadDB.logger.warn("Took over the expired lock of " + path);
+        }
 
-            /* Does not exist. Let's create it then */
+        leases.put(path, new Lease(token));
+        return true;
+    }
 
-            Document doc = new Document();
-            doc.append("path", path);
-            doc.append("timestamp", new Date().getTime() / 1000);
+    /**
+     * Returns the keys of all uploads into the SequenceFile at
+     * <code>path</code>.
+     */
+    public Set<String> getSeqKeys(final String path) {
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", new Document("$exists", true));
+
+        Set<String> seqKeys = new HashSet<String>();
+        for (Document doc : collection.find(queryDoc).projection(
+                Projections.include("seqKey"))) {
+            seqKeys.add(doc.getString("seqKey"));
+        }
 
-            lockCollection.insertOne(doc);
+        return seqKeys;
+    }
 
-            return true;
+    public Document getSeqUploadEntry(final String path, final String seqKey) {
+        Document queryDoc = new Document();
+
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
+
+        FindIterable<Document> results = collection.find(queryDoc);
+        for (Document doc : results) {
+            return doc;
         }
+
+        return null;
     }
 
-    public Document getSeqUploadEntry(final String path, final String seqKey) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
+    /**
+     * Returns up to <code>limit</code> complete uploads (plain and within
+     * SequenceFiles) that have neither been validated nor failed validation,
+     * ordered by id and starting after the id <code>after</code> (if not
+     * null).
+     */
+    public List<Document> getUnvalidatedUploads(final Object after,
+            final int limit) {
+        Document queryDoc = new Document();
+
+        queryDoc.append("complete", true);
+        queryDoc.append("validated", false);
+        queryDoc.append("validationFailed", new Document("$ne", true));
+
+        FindIterable<Document> results = collection
+                .find(after == null ? queryDoc : Filters.and(queryDoc,
+                        Filters.gt("_id", after)))
+                .sort(Sorts.ascending("_id")).limit(limit);
+
+        return results.into(new ArrayList<Document>());
+    }
 
-            queryDoc.append("path", path);
-            queryDoc.append("seqKey", seqKey);
+    public Document getUploadEntry(final String path) {
+        Document queryDoc = new Document();
 
-            FindIterable<Document> results = collection.find(queryDoc);
-            for (Document doc : results) {
-                return doc;
-            }
+        queryDoc.append("path", path);
 
-            return null;
+        FindIterable<Document> results = collection.find(queryDoc);
+        for (Document doc : results) {
+            return doc;
         }
+
+        return null;
     }
 
-    public Document getUploadEntry(final String path) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
+    public Document getSession(final String session) {
+        Document queryDoc = new Document();
 
-            queryDoc.append("path", path);
+        queryDoc.append("session", session);
 
-            FindIterable<Document> results = collection.find(queryDoc);
-            for (Document doc : results) {
-                return doc;
+        FindIterable<Document> results = sessionCollection.find(queryDoc);
+        for (Document doc : results) {
+            return doc;
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether this process holds the lock of <code>path</code> (as far as it
+     * knows, i.e. renewing it hasn't failed).
+     */
+    public boolean holdsLock(final String path) {
+        Lease lease = leases.get(path);
+        return lease != null && !lease.lost;
+    }
+
+    public void insertError(final String path, String seqKey, final String msg) {
+        try {
+            if (seqKey == null) {
+                seqKey = "";
             }
 
-            return null;
+            Document doc = new Document();
+            doc.append("path", path);
+            doc.append("seqKey", seqKey);
+            doc.append("msg", msg);
+            doc.append("timestamp", new Date().getTime() / 1000);
+
+            errorCollection.insertOne(doc);
+        } catch (Exception ex) {
+            UploadDB.logger.catching(ex);
+            UploadDB.logger.fatal("Could not insert error into DB!");
         }
     }
 
-    public void insertError(final String path, String seqKey, final String msg) {
-        synchronized (UploadDB.mutex) {
-            try {
-                if (seqKey == null) {
-                    seqKey = "";
-                }
+    /**
+     * Inserts entries of complete uploads into the SequenceFile at
+     * <code>path</code> at once. <code>metas</code> and <code>sha1s</code>
+     * are keyed by seqKey. Entries that exist already are left as they are.
+     */
+    public void insertCompleteSeqUploads(final String path,
+            final Map<String, String> metas, final Map<String, String> sha1s,
+            final String name) {
+        if (sha1s.isEmpty()) {
+            return;
+        }
 
-                Document doc = new Document();
-                doc.append("path", path);
-                doc.append("seqKey", seqKey);
-                doc.append("msg", msg);
-                doc.append("timestamp", new Date().getTime() / 1000);
+        long token = fence(path);
 
-                errorCollection.insertOne(doc);
-            } catch (Exception ex) {
-                UploadDB.logger.catching(ex);
-                UploadDB.logger.fatal("Could not insert error into DB!");
+        long timestamp = new Date().getTime() / 1000;
+
+        List<Document> docs = new ArrayList<Document>();
+        for (Map.Entry<String, String> entry : sha1s.entrySet()) {
+            Document doc = new Document();
+            doc.append("path", path);
+            doc.append("meta", Document.parse(metas.get(entry.getKey())));
+            doc.append("sha1", entry.getValue());
+            doc.append("complete", true);
+            doc.append("validated", false);
+            doc.append("seqKey", entry.getKey());
+            doc.append("uploader", name);
+            doc.append("timestamp", timestamp);
+            doc.append("lockToken", token);
+            docs.add(doc);
+        }
+
+        try {
+            collection.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoException ex) {
+            if (!UploadDB.isDuplicateKey(ex)) {
+                throw ex;
             }
         }
     }
 
     public boolean insertSeqUpload(final String path, final String jsonData,
             final String seqKey, final String name) {
-        synchronized (UploadDB.mutex) {
+        Document metaDoc = Document.parse(jsonData);
+        Document doc = new Document();
+        doc.append("path", path);
+        doc.append("meta", metaDoc);
+        doc.append("sha1", "");
+        doc.append("complete", false);
+        doc.append("validated", false);
+        doc.append("seqKey", seqKey);
+        doc.append("uploader", name);
+        doc.append("timestamp", new Date().getTime() / 1000);
+
+        return insertUnique(doc);
+    }
 
-            if (seqUploadExists(path, seqKey)) {
-                return false;
-            }
+    /**
+     * Inserts the entries of several uploads into the SequenceFile at
+     * <code>path</code> (not complete yet) at once. <code>metas</code> is
+     * keyed by seqKey. Returns the seqKeys that have an entry already (and
+     * weren't inserted).
+     */
+    public Set<String> insertSeqUploads(final String path,
+            final Map<String, String> metas, final String name) {
+        Set<String> existing = new HashSet<String>();
+        if (metas.isEmpty()) {
+            return existing;
+        }
 
-            Document metaDoc = Document.parse(jsonData);
+        long timestamp = new Date().getTime() / 1000;
+
+        List<String> seqKeys = new ArrayList<String>();
+        List<Document> docs = new ArrayList<Document>();
+        for (Map.Entry<String, String> entry : metas.entrySet()) {
             Document doc = new Document();
             doc.append("path", path);
-            doc.append("meta", metaDoc);
+            doc.append("meta", Document.parse(entry.getValue()));
             doc.append("sha1", "");
             doc.append("complete", false);
             doc.append("validated", false);
-            doc.append("seqKey", seqKey);
+            doc.append("seqKey", entry.getKey());
             doc.append("uploader", name);
-            doc.append("timestamp", new Date().getTime() / 1000);
+            doc.append("timestamp", timestamp);
+            seqKeys.add(entry.getKey());
+            docs.add(doc);
+        }
 
-            collection.insertOne(doc);
+        try {
+            collection.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException ex) {
+            if (!UploadDB.isDuplicateKey(ex)) {
+                throw ex;
+            }
+            for (BulkWriteError error : ex.getWriteErrors()) {
+                existing.add(seqKeys.get(error.getIndex()));
+            }
+        }
 
-            return true;
+        return existing;
+    }
+
+    /**
+     * Records a SequenceFile written by a tree import: its name and the range
+     * of keys in it.
+     */
+    public void insertSeqImport(final String path, final String seq,
+            final String firstKey, final String lastKey, final long records,
+            final long bytes, final String name) {
+        Document doc = new Document();
+        doc.append("path", path);
+        doc.append("seq", seq);
+        doc.append("firstKey", firstKey);
+        doc.append("lastKey", lastKey);
+        doc.append("records", records);
+        doc.append("bytes", bytes);
+        doc.append("uploader", name);
+        doc.append("timestamp", new Date().getTime() / 1000);
+
+        importCollection.insertOne(doc);
+    }
+
+    public void insertSession(final String session, final String path,
+            final String fileName, final long chunkSize, final String name) {
+        Document doc = new Document();
+        doc.append("session", session);
+        doc.append("path", path);
+        doc.append("fileName", fileName);
+        doc.append("chunkSize", chunkSize);
+        doc.append("chunks", new Document());
+        doc.append("uploader", name);
+        doc.append("timestamp", new Date().getTime() / 1000);
+        doc.append("active", new Date().getTime() / 1000);
+
+        sessionCollection.insertOne(doc);
+    }
+
+    /**
+     * Inserts an upload entry. Returns false if there's one for the same path
+     * (and seqKey) already.
+     */
+    private boolean insertUnique(final Document doc) {
+        try {
+            collection.insertOne(doc);
+        } catch (MongoException ex) {
+            if (UploadDB.isDuplicateKey(ex)) {
+                return false;
+            }
+            throw ex;
         }
+
+        return true;
     }
 
     public boolean insertUpload(final String path, final String jsonData,
             final String name, final String fileName) {
-        synchronized (UploadDB.mutex) {
-            if (uploadExists(path)) {
-                return false;
-            }
+        Document metaDoc = Document.parse(jsonData);
+        Document doc = new Document();
+        doc.append("path", path);
+        doc.append("meta", metaDoc);
+        doc.append("sha1", "");
+        doc.append("complete", false);
+        doc.append("uploader", name);
+        doc.append("validated", false);
+        doc.append("timestamp", new Date().getTime() / 1000);
+        doc.append("fileName", fileName);
+
+        return insertUnique(doc);
+    }
 
-            Document metaDoc = Document.parse(jsonData);
-            Document doc = new Document();
-            doc.append("path", path);
-            doc.append("meta", metaDoc);
-            doc.append("sha1", "");
-            doc.append("complete", false);
-            doc.append("uploader", name);
-            doc.append("validated", false);
-            doc.append("timestamp", new Date().getTime() / 1000);
-            doc.append("fileName", fileName);
+    public void markSeqUploadValidated(final String path, final String seqKey) {
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
 
-            collection.insertOne(doc);
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
 
-            return true;
-        }
+        modDoc.append("validated", true);
+
+        updateDoc.append("$set", modDoc);
+
+        collection.updateOne(queryDoc, updateDoc);
     }
 
-    public void markSeqUploadValidated(final String path, final String seqKey) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
-            Document updateDoc = new Document();
-            Document modDoc = new Document();
+    public void markSeqUploadValidationFailed(final String path,
+            final String seqKey) {
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
 
-            queryDoc.append("path", path);
-            queryDoc.append("seqKey", seqKey);
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
 
-            modDoc.append("validated", true);
+        modDoc.append("validationFailed", true);
 
-            updateDoc.append("$set", modDoc);
+        updateDoc.append("$set", modDoc);
 
-            collection.updateOne(queryDoc, updateDoc);
-        }
+        collection.updateOne(queryDoc, updateDoc);
     }
 
     public void markUploadValidated(final String path) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
-            Document updateDoc = new Document();
-            Document modDoc = new Document();
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
 
-            queryDoc.append("path", path);
+        queryDoc.append("path", path);
 
-            modDoc.append("validated", true);
+        modDoc.append("validated", true);
 
-            updateDoc.append("$set", modDoc);
+        updateDoc.append("$set", modDoc);
 
-            collection.updateOne(queryDoc, updateDoc);
-        }
+        collection.updateOne(queryDoc, updateDoc);
+    }
+
+    public void markUploadValidationFailed(final String path) {
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
+
+        queryDoc.append("path", path);
+
+        modDoc.append("validationFailed", true);
+
+        updateDoc.append("$set", modDoc);
+
+        collection.updateOne(queryDoc, updateDoc);
+    }
+
+    /**
+     * Next fencing token, increasing across all processes.
+     */
+    private long nextLockToken() {
+        Document counter = counterCollection.findOneAndUpdate(new Document(
+                "_id", "locks"), new Document("$inc", new Document("seq", 1L)),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(
+                        ReturnDocument.AFTER));
+        return counter.getLong("seq");
+    }
+
+    /**
+     * Records a chunk of an upload session that has been written.
+     */
+    public void putSessionChunk(final String session, final long chunk,
+            final long length, final String sha1) {
+        Document queryDoc = new Document();
+        Document updateDoc = new Document();
+        Document modDoc = new Document();
+
+        queryDoc.append("session", session);
+
+        modDoc.append("chunks." + chunk, new Document("length", length)
+                .append("sha1", sha1));
+        modDoc.append("active", new Date().getTime() / 1000);
+
+        updateDoc.append("$set", modDoc);
+
+        sessionCollection.updateOne(queryDoc, updateDoc);
     }
 
+    /**
+     * Releases the lock of <code>path</code> taken by this process. Returns
+     * false if it wasn't held (anymore).
+     */
     public boolean releaseLock(final String path) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
-            queryDoc.append("path", path);
+        Lease lease = leases.remove(path);
+        if (lease == null) {
+            return false;
+        }
+
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("token", lease.token);
+
+        return lockCollection.deleteOne(queryDoc).getDeletedCount() > 0;
+    }
 
-            lockCollection.deleteOne(queryDoc);
+    /**
+     * Removes the entries of uploads into the SequenceFile at
+     * <code>path</code> that are not complete.
+     */
+    public void removeSeqUploads(final String path,
+            final Collection<String> seqKeys) {
+        if (seqKeys.isEmpty()) {
+            return;
         }
-        return false;
+
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", new Document("$in", new ArrayList<String>(
+                seqKeys)));
+        queryDoc.append("complete", false);
+
+        collection.deleteMany(queryDoc);
     }
 
-    public boolean seqUploadExists(final String path, final String seqKey) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
+    public void removeSession(final String session) {
+        Document queryDoc = new Document();
+        queryDoc.append("session", session);
 
-            queryDoc.append("path", path);
-            queryDoc.append("seqKey", seqKey);
+        sessionCollection.deleteOne(queryDoc);
+    }
 
-            FindIterable<Document> results = collection.find(queryDoc);
-            for (@SuppressWarnings("unused")
-            Document doc : results) {
-                return true;
+    /**
+     * Removes the entry of an upload that is not complete.
+     */
+    public void removeUpload(final String path) {
+        Document queryDoc = new Document();
+        queryDoc.append("path", path);
+        queryDoc.append("complete", false);
+
+        collection.deleteOne(queryDoc);
+    }
+
+    /**
+     * Extends the locks held by this process by another LOCK_TTL.
+     */
+    private void renewLocks() {
+        Date expires = new Date(System.currentTimeMillis() + lockTTL);
+
+        for (Map.Entry<String, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (lease.lost) {
+                continue;
             }
 
-            return false;
+            Document queryDoc = new Document();
+            queryDoc.append("path", entry.getKey());
+            queryDoc.append("token", lease.token);
+
+            try {
+                UpdateResult result = lockCollection.updateOne(queryDoc,
+                        new Document("$set", new Document("expires", expires)));
+                if (result.getMatchedCount() == 0
+                        && leases.get(entry.getKey()) == lease) {
+                    lease.lost = true;
+                    UploadDB.logger.error("Lost the lock of "
+                            + entry.getKey());
+                }
+            } catch (Exception ex) {
+                /* tried again next time, unless it has expired by then */
+                UploadDB.logger.catching(ex);
+            }
         }
     }
 
-    public boolean uploadExists(final String path) {
-        synchronized (UploadDB.mutex) {
-            Document queryDoc = new Document();
+    public boolean seqUploadExists(final String path, final String seqKey) {
+        Document queryDoc = new Document();
 
-            queryDoc.append("path", path);
+        queryDoc.append("path", path);
+        queryDoc.append("seqKey", seqKey);
 
-            FindIterable<Document> results = collection.find(queryDoc);
+        FindIterable<Document> results = collection.find(queryDoc);
+        for (@SuppressWarnings("unused")
+        Document doc : results) {
+            return true;
+        }
 
-            for (@SuppressWarnings("unused")
-            Document doc : results) {
-                return true;
-            }
+        return false;
+    }
 
-            return false;
+    public boolean uploadExists(final String path) {
+        Document queryDoc = new Document();
+
+        queryDoc.append("path", path);
+
+        FindIterable<Document> results = collection.find(queryDoc);
+
+        for (@SuppressWarnings("unused")
+        Document doc : results) {
+            return true;
         }
+
+        return false;
     }
 }
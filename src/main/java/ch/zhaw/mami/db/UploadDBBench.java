@@ -0,0 +1,131 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Runs the UploadDB calls of an upload (take the lock, insert the entry,
+ * check it, complete it, record an error, release the lock) for distinct
+ * paths from several threads at once against the configured MongoDB and
+ * reports the uploads per second. "serialized" runs the same with every call
+ * under one global monitor, as UploadDB used to, for comparison. The entries
+ * are written below a random path and removed afterwards.
+ *
+ */
+public class UploadDBBench {
+
+    private final static int[] defaultThreads = { 1, 2, 4, 8, 16, 32 };
+
+    private static void cleanUp(final RuntimeConfiguration runtimeConfiguration,
+            final String prefix) {
+        MongoDatabase db = runtimeConfiguration.getMongoClient().getDatabase(
+                runtimeConfiguration.getUploadDBName());
+        Document queryDoc = new Document();
+        queryDoc.append("path",
+                new Document("$regex", "^" + Pattern.quote(prefix)));
+
+        for (String name : new String[] { "uploads", "locks", "upload_errors" }) {
+            db.getCollection(name).deleteMany(queryDoc);
+        }
+    }
+
+    private static void run(final String mode, final UploadDB uploadDB,
+            final String prefix, final int threads, final int uploads)
+            throws Exception {
+        final Object mutex = mode.equals("serialized") ? new Object() : null;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final String dir = prefix + mode + "/" + threads + "/" + t + "/";
+            futures.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    for (int i = 0; i < uploads; i++) {
+                        if (mutex == null) {
+                            UploadDBBench.upload(uploadDB, dir + i);
+                        }
+                        else {
+                            synchronized (mutex) {
+                                UploadDBBench.upload(uploadDB, dir + i);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long nanos = System.nanoTime() - start;
+
+        System.out.println(String.format("%-12s %8d %12.1f", mode, threads,
+                threads * (double) uploads / (nanos / 1e9)));
+    }
+
+    private static void upload(final UploadDB uploadDB, final String path) {
+        if (!uploadDB.getLock(path)) {
+            throw new IllegalStateException("Lock of " + path + " taken");
+        }
+        try {
+            if (!uploadDB.insertUpload(path, "{}", "bench", "bench")) {
+                throw new IllegalStateException(path + " exists");
+            }
+            uploadDB.uploadExists(path);
+            uploadDB.completeUpload(path, "");
+            uploadDB.insertError(path, null, "bench");
+        } finally {
+            uploadDB.releaseLock(path);
+        }
+    }
+
+    public static void uploadDBBench(final String[] args) throws Exception {
+        int uploads = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int[] threads = UploadDBBench.defaultThreads;
+        if (args.length > 2) {
+            threads = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                threads[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        RuntimeConfiguration runtimeConfiguration = RuntimeConfiguration
+                .getInstance();
+        UploadDB uploadDB = runtimeConfiguration.getUploadDB();
+        String prefix = "/.bench/" + UUID.randomUUID().toString() + "/";
+
+        System.out.println("Uploads per thread: " + uploads);
+        System.out.println(String.format("%-12s %8s %12s", "mode", "threads",
+                "uploads/s"));
+
+        try {
+            for (int t : threads) {
+                UploadDBBench.run("serialized", uploadDB, prefix, t, uploads);
+            }
+            for (int t : threads) {
+                UploadDBBench.run("concurrent", uploadDB, prefix, t, uploads);
+            }
+        } finally {
+            UploadDBBench.cleanUp(runtimeConfiguration, prefix);
+        }
+    }
+}
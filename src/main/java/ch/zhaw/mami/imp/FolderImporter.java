@@ -4,21 +4,32 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.BytesWritable;
-import org.apache.hadoop.io.SequenceFile;
-import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.json.JSONObject;
 
 import ch.zhaw.mami.RuntimeConfiguration;
 import ch.zhaw.mami.Util;
 import ch.zhaw.mami.db.UploadDB;
 
+/**
+ * Imports the files of a local directory into a SequenceFile. Files are read
+ * and hashed in parallel (see {@link ImportPipeline}) and appended in order,
+ * their upload entries are written in batches after syncing the SequenceFile
+ * (see {@link SeqImport}).
+ *
+ * Imports can be resumed: files already in the SequenceFile (according to the
+ * UploadDB or to the checkpoint kept in the directory, see
+ * {@link ImportCheckpoint}) are skipped. The checkpoint is removed once all
+ * files have been imported.
+ *
+ */
 public class FolderImporter {
 
     private final String msmntCampaign;
@@ -30,10 +41,11 @@ public class FolderImporter {
     private final JSONObject allMetaData;
 
     private final File dir;
-    private final boolean locked;
     private final Path pt;
-    private final SequenceFile.Writer seqWriter;
+    private final ImportCheckpoint checkpoint;
+    private final SeqImport seqImport;
     private boolean useDb = true;
+    private boolean complete = false;
 
     public FolderImporter(final String lPath, final String uploader)
             throws IOException {
@@ -91,30 +103,38 @@ public class FolderImporter {
                 + "/"
                 + this.seq + ".seq");
 
-        locked = uploadDB.getLock(pt.toString());
-        if (!locked) {
-            throw new RuntimeException("Could not get lock.");
+        checkpoint = ImportCheckpoint.open(new File(dir,
+                ImportCheckpoint.fileName), pt.toString());
+        try {
+            seqImport = new SeqImport(runtimeConfiguration, pt, msmntCampaign,
+                    format, uploader, checkpoint);
+        } catch (IOException ex) {
+            checkpoint.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            checkpoint.close();
+            throw ex;
         }
-
-        seqWriter = SequenceFile.createWriter(
-                runtimeConfiguration.getFSConfiguration(),
-                SequenceFile.Writer.compression(CompressionType.RECORD),
-                SequenceFile.Writer.keyClass(BytesWritable.class),
-                SequenceFile.Writer.valueClass(BytesWritable.class),
-                SequenceFile.Writer.appendIfExists(true),
-                SequenceFile.Writer.file(pt));
     }
 
+    /**
+     * Closes the SequenceFile. The checkpoint is kept unless all files have
+     * been imported.
+     */
     public void close() throws IOException {
-        if (locked) {
-            uploadDB.releaseLock(pt.toString());
+        try {
+            seqImport.close();
+        } finally {
+            if (complete) {
+                checkpoint.delete();
+            }
+            else {
+                checkpoint.close();
+            }
         }
-        seqWriter.hflush();
-        seqWriter.hsync();
-        seqWriter.close();
     }
 
-    public void importFiles() throws IOException, NoSuchAlgorithmException {
+    public void importFiles() throws Exception {
         System.out.println("Importing files...");
         String[] listing = dir.list();
 
@@ -122,11 +142,10 @@ public class FolderImporter {
 
         /* Enumerate all files. Skipping over *.meta files. */
         for (String l : listing) {
-            if (l.endsWith(".meta")) {
+            if (l.endsWith(".meta") || l.equals(ImportCheckpoint.fileName)) {
                 continue;
             }
             String path = dir.getAbsolutePath() + File.separatorChar + l;
-            System.out.println(path);
             File f = new File(path);
             if (f.isFile()) {
                 if (!Util.validateFileName(l)) {
@@ -136,67 +155,91 @@ public class FolderImporter {
             }
         }
 
-        for (String l : files) {
-
-            System.out.println("Importing (db:" + useDb + ") " + l + "...");
+        /* one query instead of one per file */
+        Set<String> existing = new HashSet<String>(checkpoint.getSha1s()
+                .keySet());
+        if (useDb) {
+            Set<String> recorded = uploadDB.getSeqKeys(pt.toString());
+            restore(recorded);
+            existing.addAll(recorded);
+        }
 
-            if (useDb) {
-                if (uploadDB.seqUploadExists(pt.toString(), l)) {
-                    throw new RuntimeException("Error: " + l
-                            + " already has an upload entry!");
-                }
+        List<ImportPipeline.Entry> entries = new ArrayList<ImportPipeline.Entry>();
+        for (String l : files) {
+            if (!existing.contains(l)) {
+                entries.add(new ImportPipeline.Entry(l, new File(dir, l),
+                        new File(dir, l + ".meta")));
             }
+        }
 
-            File metaFile = new File(dir.getAbsolutePath() + File.separatorChar
-                    + l + ".meta");
-
-            JSONObject metaData = allMetaData;
-
-            if (metaFile.exists() && metaFile.isFile()) {
-
-                byte[] metaDataBytes = Files.readAllBytes(Paths.get(dir
-                        .getAbsolutePath() + File.separatorChar + l + ".meta"));
+        System.out.println("Importing (db:" + useDb + ") " + entries.size()
+                + " files (skipping " + (files.size() - entries.size())
+                + " already imported)...");
 
-                metaData = new JSONObject(new String(metaDataBytes, "UTF-8"));
-                metaData.put("msmntCampaign", msmntCampaign);
-                metaData.put("format", format);
-                metaData.put("seq", seq);
-                metaData.put("folderImport", true);
+        runtimeConfiguration.getImportPipeline().run(entries,
+                new ImportPipeline.Consumer() {
 
-            }
+                    @Override
+                    public void accept(final ImportPipeline.Entry entry)
+                            throws Exception {
+                        seqImport.append(entry.getSeqKey(), entry.getData(),
+                                entry.getSha1(), metaData(entry.getMeta())
+                                        .toString());
+                    }
+                });
 
-            if (useDb) {
-                uploadDB.insertSeqUpload(pt.toString(), metaData.toString(), l,
-                        uploader);
-            }
+        seqImport.commit();
+        complete = true;
 
-            byte[] data = Files.readAllBytes(Paths.get(dir.getAbsolutePath()
-                    + File.separatorChar + l));
-            byte[] keyBytes = l.getBytes("UTF-8");
+        System.out.println("Done.");
+    }
 
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(data);
-            String sha1 = Util.byteArr2HexStr(md.digest());
+    private JSONObject metaData(final byte[] meta) throws IOException {
+        if (meta == null) {
+            return allMetaData;
+        }
 
-            BytesWritable key = new BytesWritable(keyBytes);
-            BytesWritable val = new BytesWritable(data);
+        JSONObject metaData = new JSONObject(new String(meta, "UTF-8"));
+        metaData.put("msmntCampaign", msmntCampaign);
+        metaData.put("format", format);
+        metaData.put("seq", seq);
+        metaData.put("folderImport", true);
+        return metaData;
+    }
 
-            seqWriter.append(key, val);
-            // seqWriter.hflush();
-            // seqWriter.hsync();
-            if (useDb) {
-                uploadDB.completeSeqUpload(pt.toString(), l, sha1);
+    /**
+     * Inserts the upload entries of files in the checkpoint that the UploadDB
+     * doesn't know about (the import stopped between syncing the checkpoint
+     * and inserting them).
+     */
+    private void restore(final Set<String> recorded) throws IOException {
+        Map<String, String> metas = new HashMap<String, String>();
+        Map<String, String> sha1s = new HashMap<String, String>();
+        Map<String, Long> offsets = new HashMap<String, Long>();
+
+        for (Map.Entry<String, String> entry : checkpoint.getSha1s()
+                .entrySet()) {
+            String l = entry.getKey();
+            if (recorded.contains(l)) {
+                continue;
             }
-
+            File metaFile = new File(dir, l + ".meta");
+            byte[] meta = metaFile.isFile() ? Files.readAllBytes(metaFile
+                    .toPath()) : null;
+            metas.put(l, metaData(meta).toString());
+            sha1s.put(l, entry.getValue());
+            offsets.put(l, checkpoint.getOffsets().get(l));
         }
 
-        seqWriter.hflush();
-        seqWriter.hsync();
-
-        System.out.println("Done.");
+        if (!sha1s.isEmpty()) {
+            System.out.println("Recording " + sha1s.size()
+                    + " files of the checkpoint missing in the db...");
+            seqImport.restore(metas, sha1s, offsets);
+        }
     }
 
     public void setUseDb(final boolean useDb) {
         this.useDb = useDb;
+        seqImport.setUseDb(useDb);
     }
 }
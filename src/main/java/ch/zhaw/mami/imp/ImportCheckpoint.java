@@ -0,0 +1,173 @@
+package ch.zhaw.mami.imp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local record of what an import has committed to a SequenceFile, so an
+ * interrupted import can be resumed. It's a text file with one line per
+ * committed file (<code>K &lt;seqKey&gt; &lt;sha1&gt; &lt;offset&gt;</code>)
+ * followed by the length of the SequenceFile after the commit
+ * (<code>L &lt;length&gt;</code>). Every run starts with a line
+ * <code>S &lt;path&gt;</code>. Records not followed by a length within their
+ * run were not committed (the SequenceFile may end in garbage there) and are
+ * dropped on loading.
+ *
+ * Each commit is synced to disk before the upload entries of the files are
+ * inserted, so the checkpoint is never behind the UploadDB.
+ *
+ */
+public class ImportCheckpoint {
+
+    /* name of the checkpoint in the imported directory */
+    public final static String fileName = ".import.checkpoint";
+
+    /**
+     * Loads the checkpoint in <code>file</code> (if there is one) and opens it
+     * for further commits. Fails if it belongs to a different SequenceFile.
+     */
+    public static ImportCheckpoint open(final File file, final String path)
+            throws IOException {
+        ImportCheckpoint checkpoint = new ImportCheckpoint(file);
+
+        if (file.exists()) {
+            checkpoint.load(path);
+        }
+
+        checkpoint.fos = new FileOutputStream(file, true);
+        checkpoint.out = new OutputStreamWriter(checkpoint.fos, "UTF-8");
+        if (file.length() > 0) {
+            /* the last line may have been cut off */
+            checkpoint.out.write("\n");
+        }
+        /* starts a new run, records of the last one still pending are dropped */
+        checkpoint.out.write("S " + path + "\n");
+        checkpoint.out.flush();
+        return checkpoint;
+    }
+
+    private final File file;
+    private FileOutputStream fos;
+    private Writer out;
+
+    /* length of the SequenceFile at the last commit (-1 if none) */
+    private long length = -1;
+    private final Map<String, String> sha1s = new HashMap<String, String>();
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+
+    private ImportCheckpoint(final File file) {
+        this.file = file;
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Records files appended to the SequenceFile and its length after they
+     * were synced.
+     */
+    public void commit(final Map<String, String> batchSha1s,
+            final Map<String, Long> batchOffsets, final long seqLength)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : batchSha1s.entrySet()) {
+            sb.append("K ").append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append(' ')
+                    .append(batchOffsets.get(entry.getKey())).append('\n');
+        }
+        sb.append("L ").append(seqLength).append('\n');
+
+        out.write(sb.toString());
+        out.flush();
+        fos.getFD().sync();
+
+        sha1s.putAll(batchSha1s);
+        offsets.putAll(batchOffsets);
+        length = seqLength;
+    }
+
+    /**
+     * Removes the checkpoint (once the import is complete).
+     */
+    public void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException("Could not delete " + file.getPath());
+        }
+    }
+
+    /**
+     * Length of the SequenceFile at the last commit, 0 if it didn't exist
+     * when the import started, -1 if nothing is known.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Offsets of the committed files.
+     */
+    public Map<String, Long> getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * SHA-1 hashes of the committed files.
+     */
+    public Map<String, String> getSha1s() {
+        return sha1s;
+    }
+
+    private void load(final String path) throws IOException {
+        Map<String, String> pendingSha1s = new HashMap<String, String>();
+        Map<String, Long> pendingOffsets = new HashMap<String, Long>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts[0].equals("S") && parts.length == 2) {
+                    if (!parts[1].equals(path)) {
+                        throw new IOException(file.getPath()
+                                + " is a checkpoint of " + parts[1]);
+                    }
+                    pendingSha1s.clear();
+                    pendingOffsets.clear();
+                }
+                else if (parts[0].equals("K") && parts.length == 4) {
+                    pendingSha1s.put(parts[1], parts[2]);
+                    pendingOffsets.put(parts[1], Long.parseLong(parts[3]));
+                }
+                else if (parts[0].equals("L") && parts.length == 2) {
+                    sha1s.putAll(pendingSha1s);
+                    offsets.putAll(pendingOffsets);
+                    pendingSha1s.clear();
+                    pendingOffsets.clear();
+                    length = Long.parseLong(parts[1]);
+                }
+                /* anything else is a line cut off by a crash */
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Records the length of the SequenceFile before anything was appended.
+     */
+    public void start(final long seqLength) throws IOException {
+        commit(new HashMap<String, String>(), new HashMap<String, Long>(),
+                seqLength);
+    }
+}
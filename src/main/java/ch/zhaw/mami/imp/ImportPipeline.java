@@ -0,0 +1,251 @@
+package ch.zhaw.mami.imp;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ch.zhaw.mami.Util;
+
+/**
+ * Reads and hashes local files in parallel and hands them to a single
+ * consumer in their original order:
+ *
+ * <pre>
+ * readers --(hash queue)--> hashers --(write queue)--> consumer
+ * </pre>
+ *
+ * Both queues are bounded and readers don't get more than
+ * <code>readers + hashers + 2 * queueSize</code> files ahead of the consumer,
+ * so that many files at most are held in memory (a large file being read
+ * doesn't let the others pile up behind it). The consumer runs in the calling
+ * thread. Progress is printed every few seconds.
+ *
+ */
+public class ImportPipeline {
+
+    /**
+     * Receives the files in order.
+     */
+    public interface Consumer {
+
+        void accept(Entry entry) throws Exception;
+    }
+
+    /**
+     * A file to import. <code>data</code>, <code>meta</code> and
+     * <code>sha1</code> are filled in by the pipeline.
+     */
+    public static class Entry {
+
+        private final String seqKey;
+        private final File file;
+        private final File metaFile;
+        private int index;
+        private byte[] data;
+        private byte[] meta;
+        private String sha1;
+
+        /**
+         * @param metaFile
+         *            Metadata of the file (may be null or not exist).
+         */
+        public Entry(final String seqKey, final File file, final File metaFile) {
+            this.seqKey = seqKey;
+            this.file = file;
+            this.metaFile = metaFile;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Contents of the metadata file (null if there is none).
+         */
+        public byte[] getMeta() {
+            return meta;
+        }
+
+        public String getSeqKey() {
+            return seqKey;
+        }
+
+        public String getSha1() {
+            return sha1;
+        }
+    }
+
+    /* seconds between progress reports */
+    private final static long reportInterval = 5;
+
+    private final int readers;
+    private final int hashers;
+    private final int queueSize;
+
+    public ImportPipeline(final int readers, final int hashers,
+            final int queueSize) {
+        this.readers = Math.max(1, readers);
+        this.hashers = Math.max(1, hashers);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    private ExecutorService pool(final int threads, final String name) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void report(final String prefix, final int done, final int total,
+            final long bytes, final long start,
+            final BlockingQueue<Entry> hashQueue,
+            final BlockingQueue<Entry> writeQueue) {
+        double secs = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        System.out.println(String.format(
+                "%s %d/%d files, %.1f MB, %.1f files/s, %.1f MB/s"
+                        + " (queued for hashing: %d, for writing: %d)",
+                prefix, done, total, bytes / (1024.0 * 1024.0), done / secs,
+                bytes / (1024.0 * 1024.0) / secs, hashQueue.size(),
+                writeQueue.size()));
+    }
+
+    /**
+     * Passes all entries through the pipeline. Stops at the first error (of
+     * any stage) and rethrows it.
+     */
+    public void run(final List<Entry> entries, final Consumer consumer)
+            throws Exception {
+        final BlockingQueue<Entry> hashQueue = new ArrayBlockingQueue<Entry>(
+                queueSize);
+        final BlockingQueue<Entry> writeQueue = new ArrayBlockingQueue<Entry>(
+                queueSize);
+        final AtomicInteger next = new AtomicInteger();
+        final Semaphore window = new Semaphore(readers + hashers + 2
+                * queueSize);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        ExecutorService readerPool = pool(readers, "import-reader");
+        ExecutorService hasherPool = pool(hashers, "import-hasher");
+
+        try {
+            for (int i = 0; i < readers; i++) {
+                readerPool.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                window.acquire();
+                                int index = next.getAndIncrement();
+                                if (index >= entries.size()) {
+                                    return;
+                                }
+                                Entry entry = entries.get(index);
+                                entry.index = index;
+                                entry.data = Files.readAllBytes(entry.file
+                                        .toPath());
+                                if (entry.metaFile != null
+                                        && entry.metaFile.isFile()) {
+                                    entry.meta = Files
+                                            .readAllBytes(entry.metaFile
+                                                    .toPath());
+                                }
+                                hashQueue.put(entry);
+                            }
+                        } catch (InterruptedException ex) {
+                            return;
+                        } catch (Exception ex) {
+                            failure.compareAndSet(null, ex);
+                        }
+                    }
+                });
+            }
+
+            for (int i = 0; i < hashers; i++) {
+                hasherPool.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            MessageDigest md = MessageDigest
+                                    .getInstance("SHA-1");
+                            while (true) {
+                                Entry entry = hashQueue.take();
+                                md.update(entry.data);
+                                entry.sha1 = Util.byteArr2HexStr(md.digest());
+                                writeQueue.put(entry);
+                            }
+                        } catch (InterruptedException ex) {
+                            return;
+                        } catch (Exception ex) {
+                            failure.compareAndSet(null, ex);
+                        }
+                    }
+                });
+            }
+
+            /* entries finish out of order, keep them until it's their turn */
+            Map<Integer, Entry> pending = new HashMap<Integer, Entry>();
+            int done = 0;
+            long bytes = 0;
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+
+            while (done < entries.size()) {
+                Entry entry = pending.remove(done);
+                if (entry == null) {
+                    if (failure.get() != null) {
+                        throw failure.get();
+                    }
+                    entry = writeQueue.poll(1, TimeUnit.SECONDS);
+                    if (entry != null) {
+                        pending.put(entry.index, entry);
+                    }
+                    continue;
+                }
+
+                consumer.accept(entry);
+                window.release();
+                done++;
+                bytes += entry.data.length;
+                /* don't keep the data of files already written */
+                entry.data = null;
+                entry.meta = null;
+
+                if (System.currentTimeMillis() - lastReport >= ImportPipeline.reportInterval
+                        * 1000) {
+                    lastReport = System.currentTimeMillis();
+                    report("Progress:", done, entries.size(), bytes, start,
+                            hashQueue, writeQueue);
+                }
+            }
+
+            report("Done:", done, entries.size(), bytes, start, hashQueue,
+                    writeQueue);
+        } finally {
+            readerPool.shutdownNow();
+            hasherPool.shutdownNow();
+        }
+    }
+}
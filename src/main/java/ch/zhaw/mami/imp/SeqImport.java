@@ -0,0 +1,272 @@
+package ch.zhaw.mami.imp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+import ch.zhaw.mami.db.SeqIndexDB;
+import ch.zhaw.mami.db.UploadDB;
+import ch.zhaw.mami.seq.SeqCompression;
+
+/**
+ * Writes imported files into one SequenceFile. Holds the lock of the
+ * SequenceFile until closed. Upload entries are inserted (as complete) in
+ * batches after the SequenceFile has been synced.
+ *
+ * With an {@link ImportCheckpoint} every batch is recorded in the checkpoint
+ * before it is recorded in the UploadDB. When resuming from a checkpoint
+ * anything appended to the SequenceFile after the last commit is cut off
+ * first, unless it may hold records of other uploads.
+ *
+ */
+public class SeqImport {
+
+    /* number of files recorded in the db at once */
+    private final static int batchSize = 1000;
+
+    private final RuntimeConfiguration runtimeConfiguration;
+    private final UploadDB uploadDB;
+    private final Path pt;
+    private final String uploader;
+    private final SequenceFile.Writer seqWriter;
+    private final SeqCompression compression;
+    private final ImportCheckpoint checkpoint;
+    private boolean useDb = true;
+
+    private final Map<String, String> metas = new HashMap<String, String>();
+    private final Map<String, String> batchSha1s = new HashMap<String, String>();
+    private final Map<String, Long> offsets = new HashMap<String, Long>();
+    private long records = 0;
+    private long bytes = 0;
+
+    /**
+     * @param checkpoint
+     *            Checkpoint to resume from and to record commits in (may be
+     *            null).
+     */
+    public SeqImport(final RuntimeConfiguration runtimeConfiguration,
+            final Path pt, final String msmntCampaign, final String format,
+            final String uploader, final ImportCheckpoint checkpoint)
+            throws IOException {
+        this.runtimeConfiguration = runtimeConfiguration;
+        this.uploadDB = runtimeConfiguration.getUploadDB();
+        this.pt = pt;
+        this.uploader = uploader;
+        this.checkpoint = checkpoint;
+
+        if (!uploadDB.getLock(pt.toString())) {
+            throw new RuntimeException("Could not get lock.");
+        }
+
+        try {
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+
+            if (checkpoint != null) {
+                if (checkpoint.getLength() >= 0) {
+                    rollback(fs, checkpoint.getLength());
+                }
+                else {
+                    checkpoint.start(fs.exists(pt) ? fs.getFileStatus(pt)
+                            .getLen() : 0);
+                }
+            }
+
+            /* existing SequenceFiles keep their compression */
+            compression = SeqCompression.forFile(fs, pt,
+                    runtimeConfiguration.getFSConfiguration(),
+                    runtimeConfiguration.getSeqCompression(msmntCampaign,
+                            format));
+
+            seqWriter = SequenceFile.createWriter(
+                    runtimeConfiguration.getFSConfiguration(),
+                    compression.writerOption(),
+                    SequenceFile.Writer.keyClass(BytesWritable.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class),
+                    SequenceFile.Writer.appendIfExists(true),
+                    SequenceFile.Writer.file(pt));
+        } catch (InterruptedException ex) {
+            uploadDB.releaseLock(pt.toString());
+            throw new IOException(ex);
+        } catch (IOException ex) {
+            uploadDB.releaseLock(pt.toString());
+            throw ex;
+        } catch (RuntimeException ex) {
+            uploadDB.releaseLock(pt.toString());
+            throw ex;
+        }
+    }
+
+    public void append(final String seqKey, final byte[] data,
+            final String sha1, final String meta) throws IOException {
+        offsets.put(seqKey, seqWriter.getLength());
+        seqWriter.append(new BytesWritable(seqKey.getBytes("UTF-8")),
+                new BytesWritable(data));
+        records++;
+        bytes += data.length;
+
+        metas.put(seqKey, meta);
+        batchSha1s.put(seqKey, sha1);
+        if (batchSha1s.size() >= SeqImport.batchSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the last batch, closes the SequenceFile and releases its lock.
+     */
+    public void close() throws IOException {
+        try {
+            commit();
+            seqWriter.close();
+        } finally {
+            uploadDB.releaseLock(pt.toString());
+        }
+    }
+
+    /**
+     * Syncs the SequenceFile and records the files appended since the last
+     * commit.
+     */
+    public void commit() throws IOException {
+        if (compression.getType() == CompressionType.BLOCK) {
+            /* writes out the buffered block */
+            seqWriter.sync();
+        }
+        seqWriter.hflush();
+        seqWriter.hsync();
+
+        if (checkpoint != null && !batchSha1s.isEmpty()) {
+            checkpoint.commit(batchSha1s, offsets, seqWriter.getLength());
+        }
+
+        if (useDb) {
+            uploadDB.insertCompleteSeqUploads(pt.toString(), metas,
+                    batchSha1s, uploader);
+            runtimeConfiguration.getSeqIndex().record(pt.toString(), offsets);
+            runtimeConfiguration.getDigestDB().putRecordDigests(pt.toString(),
+                    offsets, batchSha1s);
+        }
+
+        metas.clear();
+        batchSha1s.clear();
+        offsets.clear();
+    }
+
+    /**
+     * Bytes (uncompressed) appended so far.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public Path getPath() {
+        return pt;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Records files committed to the SequenceFile by an earlier (interrupted)
+     * import that are missing in the UploadDB.
+     */
+    public void restore(final Map<String, String> restoreMetas,
+            final Map<String, String> restoreSha1s,
+            final Map<String, Long> restoreOffsets) {
+        if (!useDb || restoreSha1s.isEmpty()) {
+            return;
+        }
+
+        uploadDB.insertCompleteSeqUploads(pt.toString(), restoreMetas,
+                restoreSha1s, uploader);
+        runtimeConfiguration.getSeqIndex().record(pt.toString(),
+                restoreOffsets);
+        runtimeConfiguration.getDigestDB().putRecordDigests(pt.toString(),
+                restoreOffsets, restoreSha1s);
+    }
+
+    /**
+     * Cuts the SequenceFile back to <code>length</code> (removes it if
+     * <code>length</code> is 0). Refuses to if records after
+     * <code>length</code> may belong to other uploads: keys indexed there, or
+     * keys with upload entries that are neither in the checkpoint nor indexed
+     * before <code>length</code>.
+     */
+    private void rollback(final FileSystem fs, final long length)
+            throws IOException, InterruptedException {
+        if (!fs.exists(pt)) {
+            return;
+        }
+
+        if (fs instanceof DistributedFileSystem) {
+            /* the writer of an import that crashed may still hold the lease */
+            DistributedFileSystem dfs = (DistributedFileSystem) fs;
+            while (!dfs.recoverLease(pt)) {
+                Thread.sleep(1000);
+            }
+        }
+
+        long current = fs.getFileStatus(pt).getLen();
+        if (current <= length) {
+            return;
+        }
+
+        SeqIndexDB seqIndexDB = runtimeConfiguration.getSeqIndexDB();
+        Set<String> conflicts = seqIndexDB.getKeys(pt.toString(), length,
+                Long.MAX_VALUE);
+        Set<String> unplaced = uploadDB.getSeqKeys(pt.toString());
+        unplaced.removeAll(checkpoint.getSha1s().keySet());
+        unplaced.removeAll(seqIndexDB.getKeys(pt.toString(), 0, length));
+        conflicts.addAll(unplaced);
+        if (!conflicts.isEmpty()) {
+            List<String> keys = new ArrayList<String>(conflicts);
+            Collections.sort(keys);
+            throw new IOException("Not cutting " + pt.toString() + " back to "
+                    + length + " bytes, " + keys.size()
+                    + " uploads may have been appended after the checkpoint: "
+                    + keys.subList(0, Math.min(10, keys.size())));
+        }
+
+        System.out.println("Removing " + (current - length)
+                + " uncommitted bytes from " + pt.toString());
+
+        /* the lock may have expired while waiting for the lease */
+        uploadDB.fence(pt.toString());
+
+        if (length == 0) {
+            fs.delete(pt, false);
+            return;
+        }
+
+        boolean done;
+        try {
+            done = fs.truncate(pt, length);
+        } catch (UnsupportedOperationException ex) {
+            throw new IOException("Can't cut " + pt.toString() + " back to "
+                    + length + " bytes on this filesystem.");
+        }
+        if (!done && fs instanceof DistributedFileSystem) {
+            /* the last block is being recovered */
+            while (!((DistributedFileSystem) fs).isFileClosed(pt)) {
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+    public void setUseDb(final boolean useDb) {
+        this.useDb = useDb;
+    }
+}
@@ -0,0 +1,493 @@
+package ch.zhaw.mami.imp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.json.JSONObject;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+import ch.zhaw.mami.Util;
+import ch.zhaw.mami.db.UploadDB;
+
+/**
+ * Imports a local directory tree into several SequenceFiles. All files below
+ * the directory (except *.meta) are sorted by name and split into consecutive
+ * parts of at most <code>IMPORT_ROLL_SIZE</code> bytes (uncompressed) and
+ * <code>IMPORT_ROLL_RECORDS</code> files. Every part goes into a new
+ * SequenceFile <code>&lt;seq&gt;-&lt;nnnn&gt;.seq</code>, numbered after the
+ * ones already there, and up to <code>IMPORT_TARGETS</code> of them are
+ * written in parallel.
+ *
+ * As the keys are the file names, names must be unique within the tree. The
+ * directory of a file (relative to the root) is added to its metadata as
+ * <code>dir</code>. Every SequenceFile written is recorded with its range of
+ * keys in <code>seq_imports</code>.
+ *
+ * Every SequenceFile has a checkpoint
+ * <code>.import.checkpoint.&lt;seq&gt;-&lt;nnnn&gt;</code> in the directory
+ * (see {@link ImportCheckpoint}) until it is complete. A rerun after an
+ * interruption skips the files in these checkpoints and (with the db) the
+ * files recorded for any <code>&lt;seq&gt;-&lt;nnnn&gt;.seq</code>, and
+ * continues the unfinished SequenceFiles before starting new ones.
+ *
+ */
+public class TreeImporter {
+
+    /**
+     * Number of the next SequenceFile <code>&lt;seq&gt;-&lt;nnnn&gt;.seq</code>
+     * in <code>dir</code>.
+     */
+    public static int nextNumber(final FileSystem fs, final Path dir,
+            final String seq) throws IOException {
+        int next = 0;
+        for (String name : TreeImporter.numbered(fs, dir, seq)) {
+            next = Math.max(next,
+                    Integer.parseInt(name.substring(seq.length() + 1)) + 1);
+        }
+        return next;
+    }
+
+    /**
+     * Names (without .seq) of the SequenceFiles
+     * <code>&lt;seq&gt;-&lt;nnnn&gt;.seq</code> in <code>dir</code>.
+     */
+    public static List<String> numbered(final FileSystem fs, final Path dir,
+            final String seq) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if (!fs.exists(dir)) {
+            return names;
+        }
+
+        Pattern pattern = Pattern.compile(Pattern.quote(seq)
+                + "-(\\d+)\\.seq");
+        for (FileStatus status : fs.listStatus(dir)) {
+            Matcher matcher = pattern.matcher(status.getPath().getName());
+            if (matcher.matches()) {
+                names.add(status.getPath().getName()
+                        .substring(0, status.getPath().getName().length() - 4));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Splits the (sorted) entries into consecutive parts of at most
+     * <code>rollSize</code> bytes and <code>rollRecords</code> files. A file
+     * larger than <code>rollSize</code> gets a part of its own.
+     */
+    public static List<List<ImportPipeline.Entry>> partition(
+            final List<ImportPipeline.Entry> entries, final long rollSize,
+            final long rollRecords) {
+        List<List<ImportPipeline.Entry>> parts = new ArrayList<List<ImportPipeline.Entry>>();
+        List<ImportPipeline.Entry> part = new ArrayList<ImportPipeline.Entry>();
+        long size = 0;
+
+        for (ImportPipeline.Entry entry : entries) {
+            long length = entry.getFile().length();
+            if (!part.isEmpty()
+                    && (size + length > rollSize || part.size() >= rollRecords)) {
+                parts.add(part);
+                part = new ArrayList<ImportPipeline.Entry>();
+                size = 0;
+            }
+            part.add(entry);
+            size += length;
+        }
+
+        if (!part.isEmpty()) {
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    private final String msmntCampaign;
+    private final String format;
+    private final String seq;
+    private final RuntimeConfiguration runtimeConfiguration;
+    private final UploadDB uploadDB;
+    private final String uploader;
+    private final JSONObject allMetaData;
+    private final File root;
+    private boolean useDb = true;
+
+    public TreeImporter(final String lPath, final String uploader)
+            throws IOException {
+        root = new File(lPath).getAbsoluteFile();
+        if (!root.isDirectory()) {
+            throw new IOException("Not a directory!");
+        }
+
+        this.runtimeConfiguration = RuntimeConfiguration.getInstance();
+        uploadDB = runtimeConfiguration.getUploadDB();
+
+        File allMetaFile = new File(root, "ALL.meta");
+        if (!allMetaFile.exists()) {
+            throw new RuntimeException("No ALL.meta!");
+        }
+
+        allMetaData = new JSONObject(new String(
+                Files.readAllBytes(allMetaFile.toPath()), "UTF-8"));
+
+        try {
+            this.msmntCampaign = allMetaData.getString("msmntCampaign");
+            this.seq = allMetaData.getString("seq");
+            this.format = allMetaData.getString("format");
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            throw new RuntimeException("Invalid metadata in ALL.meta!");
+        }
+
+        this.uploader = uploader;
+
+        if (!Util.validatePathPart(this.msmntCampaign)
+                || !Util.validatePathPart(this.format)
+                || !Util.validatePathPart(this.seq + "-0000")) {
+            throw new RuntimeException("Invalid msmntCampaign, format or seq!");
+        }
+    }
+
+    private File checkpointFile(final String name) {
+        return new File(root, ImportCheckpoint.fileName + "." + name);
+    }
+
+    private void collect(final File dir, final Map<String, File> files) {
+        File[] listing = dir.listFiles();
+        if (listing == null) {
+            return;
+        }
+
+        for (File f : listing) {
+            if (f.isDirectory()) {
+                collect(f, files);
+            }
+            else if (f.isFile() && !f.getName().endsWith(".meta")
+                    && !f.getName().startsWith(ImportCheckpoint.fileName)) {
+                if (!Util.validateFileName(f.getName())) {
+                    throw new RuntimeException("Illegal filename: "
+                            + f.getPath());
+                }
+                File other = files.put(f.getName(), f);
+                if (other != null) {
+                    throw new RuntimeException("Duplicate filename: "
+                            + f.getPath() + " and " + other.getPath());
+                }
+            }
+        }
+    }
+
+    public void importFiles() throws Exception {
+        System.out.println("Scanning " + root.getPath() + "...");
+
+        final Map<String, File> files = new HashMap<String, File>();
+        collect(root, files);
+
+        FileSystem fs = runtimeConfiguration.getFileSystem();
+        Path dir = new Path(runtimeConfiguration.getPathPrefix()
+                + msmntCampaign + "/" + format);
+
+        /* SequenceFiles an interrupted run didn't finish, continued first */
+        Map<String, ImportCheckpoint> unfinished = openUnfinished();
+        List<String> names;
+        List<List<ImportPipeline.Entry>> parts;
+        int skipped;
+        try {
+            Set<String> existing = new HashSet<String>();
+            for (ImportCheckpoint checkpoint : unfinished.values()) {
+                existing.addAll(checkpoint.getSha1s().keySet());
+            }
+            if (useDb) {
+                for (String name : TreeImporter.numbered(fs, dir, seq)) {
+                    existing.addAll(uploadDB.getSeqKeys(seqPath(name)
+                            .toString()));
+                }
+            }
+
+            List<String> keys = new ArrayList<String>(files.keySet());
+            Collections.sort(keys);
+
+            List<ImportPipeline.Entry> entries = new ArrayList<ImportPipeline.Entry>();
+            for (String key : keys) {
+                if (!existing.contains(key)) {
+                    File f = files.get(key);
+                    entries.add(new ImportPipeline.Entry(key, f, new File(f
+                            .getParentFile(), key + ".meta")));
+                }
+            }
+            skipped = keys.size() - entries.size();
+
+            parts = TreeImporter.partition(entries,
+                    runtimeConfiguration.getImportRollSize(),
+                    runtimeConfiguration.getImportRollRecords());
+
+            names = new ArrayList<String>(unfinished.keySet());
+            int next = TreeImporter.nextNumber(fs, dir, seq);
+            while (names.size() < parts.size()) {
+                names.add(String.format("%s-%04d", seq, next++));
+            }
+            while (parts.size() < names.size()) {
+                /* nothing left for it, but its last batch may need recording */
+                parts.add(new ArrayList<ImportPipeline.Entry>());
+            }
+        } catch (Exception ex) {
+            for (ImportCheckpoint checkpoint : unfinished.values()) {
+                checkpoint.close();
+            }
+            throw ex;
+        }
+
+        System.out.println("Importing (db:" + useDb + ") "
+                + (files.size() - skipped) + " files into " + parts.size()
+                + " SequenceFiles (skipping " + skipped
+                + " already imported, continuing " + unfinished.size()
+                + ")...");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                runtimeConfiguration.getImportTargets()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < parts.size(); i++) {
+                final String name = names.get(i);
+                final List<ImportPipeline.Entry> part = parts.get(i);
+                final ImportCheckpoint checkpoint = unfinished.get(name);
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        importPart(name, part, checkpoint, files);
+                        return null;
+                    }
+                }));
+            }
+
+            /* let the other parts finish (and release their locks) */
+            Exception failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (failure == null) {
+                        failure = (Exception) ex.getCause();
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        System.out.println("Done.");
+    }
+
+    /**
+     * Writes <code>part</code> into the SequenceFile <code>name</code>.
+     *
+     * @param resumed
+     *            Checkpoint of an earlier run that didn't finish the
+     *            SequenceFile (null for a new one).
+     */
+    private void importPart(final String name,
+            final List<ImportPipeline.Entry> part,
+            final ImportCheckpoint resumed, final Map<String, File> files)
+            throws Exception {
+        Path pt = seqPath(name);
+        ImportCheckpoint checkpoint = resumed != null ? resumed
+                : ImportCheckpoint.open(checkpointFile(name), pt.toString());
+
+        /* the files committed before, in sorted order */
+        TreeSet<String> keys = new TreeSet<String>(checkpoint.getSha1s()
+                .keySet());
+
+        System.out.println("Writing " + pt.toString() + " (" + part.size()
+                + " files, " + keys.size() + " from an earlier run)");
+
+        final SeqImport seqImport;
+        try {
+            seqImport = new SeqImport(runtimeConfiguration, pt, msmntCampaign,
+                    format, uploader, checkpoint);
+        } catch (IOException ex) {
+            checkpoint.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            checkpoint.close();
+            throw ex;
+        }
+        seqImport.setUseDb(useDb);
+
+        boolean complete = false;
+        try {
+            try {
+                if (useDb) {
+                    restore(seqImport, checkpoint, name, files);
+                }
+                runtimeConfiguration.getImportPipeline().run(part,
+                        new ImportPipeline.Consumer() {
+
+                            @Override
+                            public void accept(
+                                    final ImportPipeline.Entry entry)
+                                    throws Exception {
+                                seqImport.append(entry.getSeqKey(), entry
+                                        .getData(), entry.getSha1(),
+                                        metaData(entry.getMeta(),
+                                                entry.getFile(), name)
+                                                .toString());
+                            }
+                        });
+            } finally {
+                seqImport.close();
+            }
+            complete = true;
+        } finally {
+            if (complete) {
+                checkpoint.delete();
+            }
+            else {
+                checkpoint.close();
+            }
+        }
+
+        long bytes = seqImport.getBytes();
+        for (String key : keys) {
+            if (files.containsKey(key)) {
+                bytes += files.get(key).length();
+            }
+        }
+        for (ImportPipeline.Entry entry : part) {
+            keys.add(entry.getSeqKey());
+        }
+
+        if (keys.isEmpty()) {
+            /* an earlier run stopped before its first commit */
+            runtimeConfiguration.getFileSystem().delete(pt, false);
+            return;
+        }
+
+        if (useDb) {
+            uploadDB.insertSeqImport(pt.toString(), name, keys.first(),
+                    keys.last(), keys.size(), bytes, uploader);
+        }
+    }
+
+    /**
+     * @param file
+     *            The imported file (null if it isn't in the tree any more).
+     */
+    private JSONObject metaData(final byte[] meta, final File file,
+            final String name) throws IOException {
+        JSONObject metaData = meta == null ? new JSONObject(
+                allMetaData.toString()) : new JSONObject(new String(meta,
+                "UTF-8"));
+        metaData.put("msmntCampaign", msmntCampaign);
+        metaData.put("format", format);
+        metaData.put("seq", name);
+        metaData.put("folderImport", true);
+        if (file != null) {
+            metaData.put("dir",
+                    root.toURI().relativize(file.getParentFile().toURI())
+                            .getPath());
+        }
+        return metaData;
+    }
+
+    /**
+     * Opens the checkpoints of the SequenceFiles an earlier run didn't
+     * finish, sorted by name.
+     */
+    private Map<String, ImportCheckpoint> openUnfinished() throws IOException {
+        Map<String, ImportCheckpoint> unfinished = new TreeMap<String, ImportCheckpoint>();
+        Pattern pattern = Pattern.compile(Pattern
+                .quote(ImportCheckpoint.fileName + "." + seq) + "-\\d+");
+
+        File[] listing = root.listFiles();
+        if (listing == null) {
+            return unfinished;
+        }
+
+        try {
+            for (File f : listing) {
+                if (f.isFile() && pattern.matcher(f.getName()).matches()) {
+                    String name = f.getName().substring(
+                            ImportCheckpoint.fileName.length() + 1);
+                    unfinished.put(name, ImportCheckpoint.open(f,
+                            seqPath(name).toString()));
+                }
+            }
+        } catch (IOException ex) {
+            for (ImportCheckpoint checkpoint : unfinished.values()) {
+                checkpoint.close();
+            }
+            throw ex;
+        }
+        return unfinished;
+    }
+
+    /**
+     * Inserts the upload entries of files in the checkpoint that the UploadDB
+     * doesn't know about (the earlier run stopped between syncing the
+     * checkpoint and inserting them).
+     */
+    private void restore(final SeqImport seqImport,
+            final ImportCheckpoint checkpoint, final String name,
+            final Map<String, File> files) throws IOException {
+        Set<String> recorded = uploadDB.getSeqKeys(seqImport.getPath()
+                .toString());
+        Map<String, String> metas = new HashMap<String, String>();
+        Map<String, String> sha1s = new HashMap<String, String>();
+        Map<String, Long> offsets = new HashMap<String, Long>();
+
+        for (Map.Entry<String, String> entry : checkpoint.getSha1s()
+                .entrySet()) {
+            String key = entry.getKey();
+            if (recorded.contains(key)) {
+                continue;
+            }
+            File f = files.get(key);
+            File metaFile = f == null ? null : new File(f.getParentFile(),
+                    key + ".meta");
+            byte[] meta = metaFile != null && metaFile.isFile() ? Files
+                    .readAllBytes(metaFile.toPath()) : null;
+            metas.put(key, metaData(meta, f, name).toString());
+            sha1s.put(key, entry.getValue());
+            offsets.put(key, checkpoint.getOffsets().get(key));
+        }
+
+        if (!sha1s.isEmpty()) {
+            System.out.println("Recording " + sha1s.size() + " files of "
+                    + seqImport.getPath().toString()
+                    + " missing in the db...");
+            seqImport.restore(metas, sha1s, offsets);
+        }
+    }
+
+    private Path seqPath(final String name) {
+        return new Path(runtimeConfiguration.getPathPrefix() + msmntCampaign
+                + "/" + format + "/" + name + ".seq");
+    }
+
+    public void setUseDb(final boolean useDb) {
+        this.useDb = useDb;
+    }
+}
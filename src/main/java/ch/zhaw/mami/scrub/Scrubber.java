@@ -0,0 +1,422 @@
+package ch.zhaw.mami.scrub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.Document;
+import org.json.JSONObject;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+import ch.zhaw.mami.Util;
+import ch.zhaw.mami.db.DigestDB;
+import ch.zhaw.mami.db.UploadDB;
+import ch.zhaw.mami.seq.SeqIndex;
+import ch.zhaw.mami.seq.SeqRecordInputStream;
+
+/**
+ * Validates complete uploads in the background: reads them from HDFS again,
+ * compares their SHA-1 hash with the one stored in the UploadDB and marks them
+ * validated. Mismatches (and missing files) are recorded in
+ * <code>upload_errors</code> and the upload is marked with
+ * <code>validationFailed</code> so it isn't read again.
+ *
+ * Uploads are processed in the order of their ids by a fixed number of
+ * threads, reads of all threads together are limited to a configured rate.
+ * The state of the Scrubber is the state of the upload entries themselves, so
+ * after a restart it continues with whatever isn't validated yet. Uploads
+ * whose file is locked are skipped and picked up again in the next pass;
+ * records of SequenceFiles are read without the lock.
+ *
+ */
+public class Scrubber implements Runnable {
+
+    private final static Logger logger = LogManager.getLogger(Scrubber.class);
+
+    /* number of uploads fetched from the db at once */
+    private final static int pageSize = 100;
+
+    private final RuntimeConfiguration runtimeConfiguration;
+    private final UploadDB uploadDB;
+    private final DigestDB digestDB;
+    private final SeqIndex seqIndex;
+    private final int threads;
+    private final long interval;
+    private final Throttle throttle;
+
+    private final AtomicLong validated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long lastPass = 0;
+
+    private ExecutorService executor;
+    private Thread coordinator;
+    private volatile boolean running = false;
+
+    /**
+     * @param threads
+     *            Number of uploads validated in parallel (0 disables the
+     *            Scrubber).
+     * @param rate
+     *            Bytes per second read by all threads together (0 means
+     *            unlimited).
+     * @param interval
+     *            Seconds to wait after a pass before looking for unvalidated
+     *            uploads again.
+     */
+    public Scrubber(final RuntimeConfiguration runtimeConfiguration,
+            final int threads, final long rate, final long interval) {
+        this.runtimeConfiguration = runtimeConfiguration;
+        this.uploadDB = runtimeConfiguration.getUploadDB();
+        this.digestDB = runtimeConfiguration.getDigestDB();
+        this.seqIndex = runtimeConfiguration.getSeqIndex();
+        this.threads = threads;
+        this.interval = interval;
+        this.throttle = new Throttle(rate);
+    }
+
+    /**
+     * Whether the file changed while it was read without its lock. Records
+     * of a SequenceFile don't change when something is appended, only if the
+     * file got shorter.
+     */
+    private static boolean changed(final FileStatus before,
+            final FileStatus after, final String seqKey) {
+        if (before == null || after == null) {
+            return before != after;
+        }
+
+        if (seqKey != null) {
+            return after.getLen() < before.getLen();
+        }
+
+        return after.getLen() != before.getLen()
+                || after.getModificationTime() != before
+                        .getModificationTime();
+    }
+
+    private void fail(final String path, final String seqKey,
+            final String msg) {
+        Scrubber.logger.error(msg + " (" + path + " " + seqKey + ")");
+        uploadDB.insertError(path, seqKey, msg);
+        if (seqKey == null) {
+            uploadDB.markUploadValidationFailed(path);
+        }
+        else {
+            uploadDB.markSeqUploadValidationFailed(path, seqKey);
+        }
+        failed.incrementAndGet();
+    }
+
+    private String hash(final InputStream in) throws IOException,
+            NoSuchAlgorithmException, InterruptedException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte[] chunk = runtimeConfiguration.getTransferBuffers().acquire();
+        try {
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                throttle.acquire(read);
+                bytesRead.addAndGet(read);
+                md.update(chunk, 0, read);
+            }
+        } finally {
+            runtimeConfiguration.getTransferBuffers().release(chunk);
+        }
+        return Util.byteArr2HexStr(md.digest());
+    }
+
+    /**
+     * Hashes a plain upload. Returns null if the file doesn't exist.
+     */
+    private String hashFile(final FileSystem fs, final Path pt)
+            throws IOException, NoSuchAlgorithmException, InterruptedException {
+        if (!fs.isFile(pt)) {
+            return null;
+        }
+
+        InputStream in = fs.open(pt);
+        try {
+            return hash(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hashes a file within a SequenceFile. Returns null if the SequenceFile or
+     * the key don't exist.
+     */
+    private String hashSeqRecord(final FileSystem fs, final Path pt,
+            final String seqKey) throws IOException, NoSuchAlgorithmException,
+            InterruptedException {
+        if (!fs.isFile(pt)) {
+            return null;
+        }
+
+        SequenceFile.Reader seqReader = new SequenceFile.Reader(
+                runtimeConfiguration.getFSConfiguration(),
+                SequenceFile.Reader.file(pt));
+
+        try {
+            BytesWritable key = new BytesWritable();
+            long position = seqIndex.locate(seqReader, pt.toString(), seqKey,
+                    key);
+            if (position < 0) {
+                return null;
+            }
+
+            if (SeqRecordInputStream.canStream(seqReader)) {
+                InputStream in = SeqRecordInputStream.open(fs, pt, seqReader,
+                        position);
+                try {
+                    return hash(in);
+                } finally {
+                    in.close();
+                }
+            }
+
+            BytesWritable value = new BytesWritable();
+            seqReader.getCurrentValue(value);
+            throttle.acquire(value.getLength());
+            bytesRead.addAndGet(value.getLength());
+
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(value.getBytes(), 0, value.getLength());
+            return Util.byteArr2HexStr(md.digest());
+        } finally {
+            seqReader.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                scrub();
+                lastPass = System.currentTimeMillis() / 1000;
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                Scrubber.logger.catching(ex);
+            }
+
+            try {
+                Thread.sleep(interval * 1000);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Validates all uploads that aren't validated yet (one pass).
+     */
+    public void scrub() throws InterruptedException {
+        Object after = null;
+
+        while (running) {
+            List<Document> uploads = uploadDB.getUnvalidatedUploads(after,
+                    Scrubber.pageSize);
+            if (uploads.isEmpty()) {
+                return;
+            }
+
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Document upload : uploads) {
+                futures.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        validate(upload);
+                    }
+                }));
+                after = upload.get("_id");
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    Scrubber.logger.catching(ex);
+                }
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (threads <= 0 || running) {
+            return;
+        }
+
+        Scrubber.logger.info("Starting scrubber with " + threads
+                + " threads at " + throttle.getRate() + " bytes/s");
+
+        running = true;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "scrubber-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        coordinator = new Thread(this, "scrubber");
+        coordinator.setDaemon(true);
+        coordinator.start();
+    }
+
+    public JSONObject stats() {
+        JSONObject obj = new JSONObject();
+        obj.put("running", running);
+        obj.put("threads", threads);
+        obj.put("rate", throttle.getRate());
+        obj.put("validated", validated.get());
+        obj.put("failed", failed.get());
+        obj.put("skipped", skipped.get());
+        obj.put("bytesRead", bytesRead.get());
+        obj.put("lastPass", lastPass);
+        return obj;
+    }
+
+    /**
+     * Status of the file of an upload (resolved for deduplicated uploads) or
+     * null if it doesn't exist.
+     */
+    private FileStatus status(final FileSystem fs, final Path pt,
+            final String seqKey) throws IOException {
+        if (!fs.exists(pt)) {
+            return null;
+        }
+
+        FileStatus status = fs.getFileStatus(pt);
+        if (seqKey == null) {
+            status = runtimeConfiguration.getContentStore().resolve(pt, status);
+        }
+        return status;
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        coordinator.interrupt();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The path of a plain upload is only locked to take the status of the
+     * file and to record the result, not while the file is read (which can
+     * take long at the throttled rate). SequenceFiles aren't locked at all, so
+     * their open writers aren't disturbed. If the file changed in between the
+     * result is dropped and the upload is validated again in the next pass.
+     */
+    private void validate(final Document upload) {
+        String path = upload.getString("path");
+        String seqKey = upload.getString("seqKey");
+        String sha1 = upload.getString("sha1");
+
+        try {
+            FileSystem fs = runtimeConfiguration.getFileSystem();
+            Path pt = new Path(path);
+
+            /*
+             * records of a SequenceFile don't change while others are
+             * appended (by whoever holds its lock), a shorter file is caught
+             * below
+             */
+            boolean lock = seqKey == null;
+
+            if (lock && !uploadDB.getLock(path)) {
+                /* busy, try again in the next pass */
+                skipped.incrementAndGet();
+                return;
+            }
+            FileStatus before;
+            try {
+                before = status(fs, pt, seqKey);
+            } finally {
+                if (lock) {
+                    uploadDB.releaseLock(path);
+                }
+            }
+
+            String digest = null;
+            if (before != null) {
+                if (seqKey == null) {
+                    /* deduplicated uploads are checked against their content */
+                    digest = hashFile(fs, before.getPath());
+                }
+                else {
+                    digest = hashSeqRecord(fs, pt, seqKey);
+                }
+            }
+
+            if (lock && !uploadDB.getLock(path)) {
+                skipped.incrementAndGet();
+                return;
+            }
+            try {
+                FileStatus after = status(fs, pt, seqKey);
+                if (Scrubber.changed(before, after, seqKey)) {
+                    skipped.incrementAndGet();
+                }
+                else if (digest == null) {
+                    fail(path, seqKey, "Validation failed: file not found");
+                }
+                else if (!digest.equals(sha1)) {
+                    fail(path, seqKey, "Validation failed: sha1 is " + digest
+                            + " but should be " + sha1);
+                }
+                else {
+                    if (seqKey == null) {
+                        uploadDB.markUploadValidated(path);
+                        digestDB.putDigest(path, null, after.getLen(),
+                                after.getModificationTime(), digest);
+                    }
+                    else {
+                        uploadDB.markSeqUploadValidated(path, seqKey);
+                        Long offset = seqIndex.offset(path, seqKey);
+                        if (offset != null) {
+                            digestDB.putRecordDigest(path, seqKey, offset,
+                                    digest);
+                        }
+                    }
+                    validated.incrementAndGet();
+                }
+            } finally {
+                if (lock) {
+                    uploadDB.releaseLock(path);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            /* possibly transient, try again in the next pass */
+            Scrubber.logger.catching(ex);
+            skipped.incrementAndGet();
+        }
+    }
+}
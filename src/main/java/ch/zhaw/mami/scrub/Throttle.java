@@ -0,0 +1,53 @@
+package ch.zhaw.mami.scrub;
+
+/**
+ * Limits the rate at which bytes are read. Callers acquire the number of bytes
+ * they have read (or are about to read) and are put to sleep for as long as
+ * they exceed the rate. Shared by all threads of the Scrubber so the rate
+ * applies to all of them together. At most one second worth of unused bytes
+ * is saved up for bursts.
+ *
+ */
+public class Throttle {
+
+    private final long rate;
+
+    private double available = 0;
+    private long last;
+
+    /**
+     * @param rate
+     *            Bytes per second (0 or less means unlimited).
+     */
+    public Throttle(final long rate) {
+        this.rate = rate;
+        this.last = System.nanoTime();
+    }
+
+    public void acquire(final long bytes) throws InterruptedException {
+        if (rate <= 0) {
+            return;
+        }
+
+        long wait;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            available = Math.min(rate, available + (now - last)
+                    * (double) rate / 1000000000L);
+            last = now;
+
+            /* go into debt and sleep it off */
+            available -= bytes;
+            wait = available < 0 ? (long) (-available * 1000 / rate) : 0;
+        }
+
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    public long getRate() {
+        return rate;
+    }
+}
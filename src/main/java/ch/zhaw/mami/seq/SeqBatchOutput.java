@@ -0,0 +1,149 @@
+package ch.zhaw.mami.seq;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Streams several records of one SequenceFile. Indexed keys are fetched by
+ * seeking to them in file order, all other keys are picked up in a single
+ * pass over the SequenceFile. Records are sent in the order they appear in the
+ * SequenceFile, keys that don't exist are left out.
+ *
+ * Records are either sent as a tar archive or framed as
+ * <code>int keyLength, key, long valueLength, value</code> (big endian)
+ * followed by a key length of -1.
+ *
+ */
+public class SeqBatchOutput implements StreamingOutput {
+
+    private final static Logger logger = LogManager
+            .getLogger(SeqBatchOutput.class);
+
+    private final Configuration conf;
+    private final SeqIndex seqIndex;
+    private final Path pt;
+    private final Set<String> remaining;
+    private final boolean tar;
+
+    private DataOutputStream framedOut;
+    private TarArchiveOutputStream tarOut;
+
+    public SeqBatchOutput(final Configuration conf, final SeqIndex seqIndex,
+            final Path pt, final List<String> seqKeys, final boolean tar) {
+        this.conf = conf;
+        this.seqIndex = seqIndex;
+        this.pt = pt;
+        this.remaining = new LinkedHashSet<String>(seqKeys);
+        this.tar = tar;
+    }
+
+    private void emit(final String seqKey, final BytesWritable value)
+            throws IOException {
+        if (tar) {
+            TarArchiveEntry entry = new TarArchiveEntry(seqKey);
+            entry.setSize(value.getLength());
+            tarOut.putArchiveEntry(entry);
+            tarOut.write(value.getBytes(), 0, value.getLength());
+            tarOut.closeArchiveEntry();
+        }
+        else {
+            byte[] keyBytes = seqKey.getBytes("UTF-8");
+            framedOut.writeInt(keyBytes.length);
+            framedOut.write(keyBytes);
+            framedOut.writeLong(value.getLength());
+            framedOut.write(value.getBytes(), 0, value.getLength());
+        }
+    }
+
+    @Override
+    public void write(final OutputStream os) throws IOException,
+            WebApplicationException {
+        SequenceFile.Reader seqReader = null;
+
+        OutputStream bos = new BufferedOutputStream(os, 64 * 1024);
+        if (tar) {
+            tarOut = new TarArchiveOutputStream(bos);
+            tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+        }
+        else {
+            framedOut = new DataOutputStream(bos);
+        }
+
+        try {
+            seqReader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(pt));
+
+            BytesWritable key = new BytesWritable();
+            BytesWritable value = new BytesWritable();
+
+            /* indexed keys: seek to them in file order */
+            final Map<String, Long> offsets = seqIndex.offsets(pt.toString(),
+                    remaining);
+            List<String> indexed = new ArrayList<String>(offsets.keySet());
+            Collections.sort(indexed, new Comparator<String>() {
+
+                @Override
+                public int compare(final String a, final String b) {
+                    return offsets.get(a).compareTo(offsets.get(b));
+                }
+            });
+
+            for (String seqKey : indexed) {
+                if (SeqIndex.find(seqReader, offsets.get(seqKey), seqKey, key) >= 0) {
+                    seqReader.getCurrentValue(value);
+                    emit(seqKey, value);
+                    remaining.remove(seqKey);
+                }
+            }
+
+            /* everything else: one pass over the whole file */
+            if (!remaining.isEmpty()) {
+                SeqBatchOutput.logger.debug(remaining.size()
+                        + " keys not indexed in " + pt.toString());
+
+                SeqIndex.rewind(seqReader);
+                while (!remaining.isEmpty() && seqReader.next(key)) {
+                    String keyAsStr = new String(key.getBytes(), 0,
+                            key.getLength(), "UTF-8");
+                    if (remaining.remove(keyAsStr)) {
+                        seqReader.getCurrentValue(value);
+                        emit(keyAsStr, value);
+                    }
+                }
+            }
+
+            if (tar) {
+                tarOut.finish();
+            }
+            else {
+                framedOut.writeInt(-1);
+            }
+            bos.flush();
+        } finally {
+            if (seqReader != null) {
+                seqReader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ch.zhaw.mami.seq;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * How a SequenceFile is compressed: the compression type (NONE, RECORD or
+ * BLOCK) and the codec. Written as <code>TYPE</code> or
+ * <code>TYPE:codec</code> where codec is a class name or an alias known to
+ * Hadoop (such as <code>gzip</code>, <code>bzip2</code>, <code>snappy</code>
+ * or <code>lz4</code>), the default codec is DefaultCodec.
+ *
+ * The compression of a SequenceFile is fixed when it is created, appending
+ * with a different one fails, so existing files keep theirs (see
+ * {@link #forFile}).
+ *
+ */
+public class SeqCompression {
+
+    /**
+     * The compression to append to <code>pt</code> with: that of the file if
+     * it exists (and isn't empty), otherwise <code>dflt</code>. Hadoop 2.7
+     * can't reopen uncompressed SequenceFiles for appending, so this fails for
+     * those.
+     */
+    public static SeqCompression forFile(final FileSystem fs, final Path pt,
+            final Configuration conf, final SeqCompression dflt)
+            throws IOException {
+        if (!fs.exists(pt) || fs.getFileStatus(pt).getLen() == 0) {
+            return dflt;
+        }
+
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                SequenceFile.Reader.file(pt));
+        try {
+            if (!reader.isCompressed()) {
+                throw new IOException("Can not append to uncompressed "
+                        + pt.toString());
+            }
+            return new SeqCompression(reader.getCompressionType(),
+                    reader.getCompressionCodec());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses <code>TYPE[:codec]</code>. Throws IllegalArgumentException if the
+     * type or codec is unknown.
+     */
+    public static SeqCompression parse(final String spec,
+            final Configuration conf) {
+        String[] parts = spec.trim().split(":", 2);
+        CompressionType type = CompressionType.valueOf(parts[0].trim()
+                .toUpperCase());
+
+        if (type == CompressionType.NONE) {
+            return new SeqCompression(type, null);
+        }
+
+        CompressionCodec codec;
+        if (parts.length == 1 || parts[1].trim().isEmpty()) {
+            codec = ReflectionUtils.newInstance(DefaultCodec.class, conf);
+        }
+        else {
+            codec = new CompressionCodecFactory(conf).getCodecByName(parts[1]
+                    .trim());
+            if (codec == null) {
+                throw new IllegalArgumentException("Unknown codec: "
+                        + parts[1]);
+            }
+        }
+
+        return new SeqCompression(type, codec);
+    }
+
+    /**
+     * Parses a compression for new SequenceFiles the service appends to later.
+     * Rejects NONE (with IllegalArgumentException) as Hadoop 2.7 can't reopen
+     * uncompressed SequenceFiles for appending (see {@link #forFile}).
+     */
+    public static SeqCompression parseAppendable(final String spec,
+            final Configuration conf) {
+        SeqCompression compression = SeqCompression.parse(spec, conf);
+        if (compression.getType() == CompressionType.NONE) {
+            throw new IllegalArgumentException(
+                    "Uncompressed SequenceFiles can't be appended to: " + spec);
+        }
+        return compression;
+    }
+
+    private final CompressionType type;
+    private final CompressionCodec codec;
+
+    public SeqCompression(final CompressionType type,
+            final CompressionCodec codec) {
+        this.type = type;
+        this.codec = codec;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof SeqCompression)) {
+            return false;
+        }
+        SeqCompression other = (SeqCompression) obj;
+        return type == other.type
+                && (codec == null ? other.codec == null : other.codec != null
+                        && codec.getClass().equals(other.codec.getClass()));
+    }
+
+    /**
+     * Codec (null for NONE).
+     */
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Codec to compress a value with before appending it with
+     * <code>appendRaw</code> (see {@link SpooledValue}). Only record
+     * compressed files take compressed values, block compressed files
+     * compress the (uncompressed) values themselves.
+     */
+    public CompressionCodec getValueCodec() {
+        return type == CompressionType.RECORD ? codec : null;
+    }
+
+    public CompressionType getType() {
+        return type;
+    }
+
+    @Override
+    public int hashCode() {
+        return type.hashCode() * 31
+                + (codec == null ? 0 : codec.getClass().hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return codec == null ? type.toString() : type.toString() + ":"
+                + codec.getClass().getName();
+    }
+
+    public SequenceFile.Writer.Option writerOption() {
+        return SequenceFile.Writer.compression(type, codec);
+    }
+}
@@ -0,0 +1,142 @@
+package ch.zhaw.mami.seq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+/**
+ * Compares SequenceFile compressions on sample data: writes the files of a
+ * local directory into a SequenceFile with each compression and reads it back.
+ * Reports write and scan throughput (of uncompressed data) and the size on
+ * disk. The SequenceFiles are written to the local temporary directory, so
+ * this measures the cost of the compression rather than that of HDFS.
+ *
+ */
+public class SeqCompressionBench {
+
+    private final static String[] defaultSpecs = { "NONE", "RECORD",
+            "BLOCK", "RECORD:bzip2", "BLOCK:bzip2", "RECORD:gzip",
+            "BLOCK:gzip", "BLOCK:snappy", "BLOCK:lz4" };
+
+    private static double mbPerSec(final long bytes, final long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    public static void seqBench(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out
+                    .println("Need more arguments: <dir> [<rounds> [<compression> ...]]");
+            return;
+        }
+
+        File dir = new File(args[1]);
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        String[] specs = args.length > 3 ? Arrays.copyOfRange(args, 3,
+                args.length) : SeqCompressionBench.defaultSpecs;
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+        List<byte[]> values = new ArrayList<byte[]>();
+        long bytes = 0;
+
+        String[] listing = dir.list();
+        if (listing == null) {
+            throw new IOException("Not a directory: " + args[1]);
+        }
+        for (String l : listing) {
+            File f = new File(dir, l);
+            if (!f.isFile() || l.endsWith(".meta")) {
+                continue;
+            }
+            keys.add(l.getBytes("UTF-8"));
+            values.add(Files.readAllBytes(f.toPath()));
+            bytes += f.length();
+        }
+
+        System.out.println("Files: " + keys.size() + ", bytes: " + bytes
+                + ", rounds: " + rounds);
+        System.out.println(String.format("%-50s %12s %12s %14s %8s",
+                "compression", "write MB/s", "scan MB/s", "size", "ratio"));
+
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+
+        for (String spec : specs) {
+            SeqCompression compression;
+            try {
+                compression = SeqCompression.parse(spec, conf);
+            } catch (IllegalArgumentException ex) {
+                System.out.println(String.format("%-50s %s", spec,
+                        ex.getMessage()));
+                continue;
+            }
+
+            File tmp = File.createTempFile("seqbench", ".seq");
+            tmp.delete();
+            Path pt = new Path(tmp.getAbsolutePath());
+
+            try {
+                long writeNanos = Long.MAX_VALUE;
+                long scanNanos = Long.MAX_VALUE;
+
+                /* best of several rounds */
+                for (int round = 0; round < rounds; round++) {
+                    fs.delete(pt, false);
+
+                    long start = System.nanoTime();
+                    SequenceFile.Writer writer = SequenceFile.createWriter(
+                            conf, compression.writerOption(),
+                            SequenceFile.Writer.keyClass(BytesWritable.class),
+                            SequenceFile.Writer
+                                    .valueClass(BytesWritable.class),
+                            SequenceFile.Writer.file(pt));
+                    try {
+                        for (int i = 0; i < keys.size(); i++) {
+                            writer.append(new BytesWritable(keys.get(i)),
+                                    new BytesWritable(values.get(i)));
+                        }
+                    } finally {
+                        writer.close();
+                    }
+                    writeNanos = Math.min(writeNanos, System.nanoTime()
+                            - start);
+
+                    start = System.nanoTime();
+                    SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                            SequenceFile.Reader.file(pt));
+                    try {
+                        BytesWritable key = new BytesWritable();
+                        BytesWritable value = new BytesWritable();
+                        while (reader.next(key, value)) {
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                    scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+                }
+
+                long size = fs.getFileStatus(pt).getLen();
+                System.out.println(String.format(
+                        "%-50s %12.1f %12.1f %14d %8.3f",
+                        compression.toString(),
+                        SeqCompressionBench.mbPerSec(bytes, writeNanos),
+                        SeqCompressionBench.mbPerSec(bytes, scanNanos), size,
+                        bytes > 0 ? (double) size / bytes : 0.0));
+            } catch (RuntimeException ex) {
+                /* e.g. codecs that need native libraries */
+                System.out.println(String.format("%-50s %s",
+                        compression.toString(), ex.getMessage()));
+            } finally {
+                fs.delete(pt, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package ch.zhaw.mami.seq;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import ch.zhaw.mami.RuntimeConfiguration;
+import ch.zhaw.mami.db.SeqIndexDB;
+
+/**
+ * Seeks SequenceFile readers straight to a key using the offsets kept in the
+ * SeqIndexDB. Falls back to a linear scan if a key isn't indexed (or the index
+ * is stale).
+ *
+ * Offsets are positions a reader can be moved to with
+ * {@link #position(SequenceFile.Reader, long)}: for uncompressed and record
+ * compressed files that is the start of the record, for block compressed files
+ * the reader syncs to the first block at or after the offset.
+ *
+ */
+public class SeqIndex {
+
+    private final static Logger logger = LogManager.getLogger(SeqIndex.class);
+
+    /* number of offsets written to the db at once when rebuilding */
+    private final static int batchSize = 1000;
+
+    /**
+     * Moves the reader to an offset taken from the index (or a cursor).
+     */
+    public static void position(final SequenceFile.Reader reader,
+            final long offset) throws IOException {
+        if (reader.isBlockCompressed()) {
+            reader.sync(offset);
+        }
+        else {
+            reader.seek(offset);
+        }
+    }
+
+    /**
+     * Moves the reader back to the first record.
+     */
+    public static void rewind(final SequenceFile.Reader reader)
+            throws IOException {
+        /* sync to anything before the end of the header seeks to the header */
+        reader.sync(0);
+    }
+
+    /**
+     * Reads records until <code>key</code> holds <code>seqKey</code>. If
+     * <code>bounded</code> only the record (or block) at the current position
+     * is looked at. Returns the position of the record or -1 if it wasn't
+     * found.
+     */
+    private static long scanTo(final SequenceFile.Reader reader,
+            final byte[] seqKey, final BytesWritable key, final boolean bounded)
+            throws IOException {
+        boolean first = true;
+        while (true) {
+            long before = reader.getPosition();
+            if (!reader.next(key)) {
+                return -1;
+            }
+
+            if (bounded && !first
+                    && (!reader.isBlockCompressed() || reader.syncSeen())) {
+                return -1;
+            }
+            first = false;
+
+            if (key.getLength() == seqKey.length
+                    && Arrays.equals(key.copyBytes(), seqKey)) {
+                return before;
+            }
+        }
+    }
+
+    /**
+     * Positions the reader at <code>offset</code> and looks for
+     * <code>seqKey</code> in the record (or block) there. Returns the position
+     * of the record or -1 if it isn't there.
+     */
+    public static long find(final SequenceFile.Reader reader,
+            final long offset, final String seqKey, final BytesWritable key)
+            throws IOException {
+        SeqIndex.position(reader, offset);
+        return SeqIndex.scanTo(reader, seqKey.getBytes("UTF-8"), key, true);
+    }
+
+    private final SeqIndexDB seqIndexDB;
+
+    private final RuntimeConfiguration runtimeConfiguration;
+
+    public SeqIndex(final RuntimeConfiguration runtimeConfiguration,
+            final SeqIndexDB seqIndexDB) {
+        this.runtimeConfiguration = runtimeConfiguration;
+        this.seqIndexDB = seqIndexDB;
+    }
+
+    /**
+     * Records the offset of a record just appended. Callers obtain the offset
+     * through <code>SequenceFile.Writer.getLength()</code> before appending.
+     * Failing to update the index is not fatal as lookups fall back to
+     * scanning.
+     */
+    public void record(final String path, final String seqKey,
+            final long offset) {
+        try {
+            seqIndexDB.putOffset(path, seqKey, offset);
+        } catch (Exception ex) {
+            SeqIndex.logger.catching(ex);
+            SeqIndex.logger.error("Could not index " + seqKey + " in " + path);
+        }
+    }
+
+    public void record(final String path, final Map<String, Long> offsets) {
+        try {
+            seqIndexDB.putOffsets(path, offsets);
+        } catch (Exception ex) {
+            SeqIndex.logger.catching(ex);
+            SeqIndex.logger.error("Could not index " + offsets.size()
+                    + " keys in " + path);
+        }
+    }
+
+    /**
+     * Scans a SequenceFile and replaces its index. Returns the number of
+     * records indexed.
+     */
+    public long rebuild(final Path pt) throws IOException {
+        SeqIndex.logger.entry(pt);
+
+        SequenceFile.Reader seqReader = null;
+        long records = 0;
+
+        try {
+            seqReader = new SequenceFile.Reader(
+                    runtimeConfiguration.getFSConfiguration(),
+                    SequenceFile.Reader.file(pt));
+
+            seqIndexDB.clear(pt.toString());
+
+            BytesWritable key = new BytesWritable();
+            Map<String, Long> offsets = new HashMap<String, Long>();
+            long offset = 0;
+
+            while (true) {
+                long before = seqReader.getPosition();
+                if (!seqReader.next(key)) {
+                    break;
+                }
+
+                if (!seqReader.isBlockCompressed() || seqReader.syncSeen()) {
+                    offset = before;
+                }
+
+                String keyAsStr = new String(key.getBytes(), 0,
+                        key.getLength(), "UTF-8");
+                if (!offsets.containsKey(keyAsStr)) {
+                    offsets.put(keyAsStr, offset);
+                }
+                records++;
+
+                if (offsets.size() >= SeqIndex.batchSize) {
+                    seqIndexDB.putOffsets(pt.toString(), offsets);
+                    offsets.clear();
+                }
+            }
+
+            seqIndexDB.putOffsets(pt.toString(), offsets);
+
+            return SeqIndex.logger.exit(records);
+        } finally {
+            if (seqReader != null) {
+                seqReader.close();
+            }
+        }
+    }
+
+    /**
+     * The indexed offset of <code>seqKey</code> or null if it isn't indexed
+     * (or the index can't be queried).
+     */
+    public Long offset(final String path, final String seqKey) {
+        try {
+            return seqIndexDB.getOffset(path, seqKey);
+        } catch (Exception ex) {
+            SeqIndex.logger.catching(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Offsets of the indexed keys among <code>seqKeys</code>. Returns an
+     * empty map if the index can't be queried.
+     */
+    public Map<String, Long> offsets(final String path,
+            final Collection<String> seqKeys) {
+        try {
+            return seqIndexDB.getOffsets(path, seqKeys);
+        } catch (Exception ex) {
+            SeqIndex.logger.catching(ex);
+            return new HashMap<String, Long>();
+        }
+    }
+
+    /**
+     * Positions the reader on the record with key <code>seqKey</code>. On
+     * success <code>key</code> holds the key and the value can be read with
+     * <code>getCurrentValue</code>.
+     */
+    public boolean seekTo(final SequenceFile.Reader reader, final String path,
+            final String seqKey, final BytesWritable key) throws IOException {
+        return locate(reader, path, seqKey, key) >= 0;
+    }
+
+    /**
+     * Like {@link #seekTo(SequenceFile.Reader, String, String, BytesWritable)}
+     * but returns the position the record starts at (-1 if there's no such
+     * record). For block compressed files the position is only good for
+     * {@link #position(SequenceFile.Reader, long)}.
+     */
+    public long locate(final SequenceFile.Reader reader, final String path,
+            final String seqKey, final BytesWritable key) throws IOException {
+        byte[] seqKeyBytes = seqKey.getBytes("UTF-8");
+
+        Long offset = null;
+        try {
+            offset = seqIndexDB.getOffset(path, seqKey);
+        } catch (Exception ex) {
+            SeqIndex.logger.catching(ex);
+        }
+
+        if (offset != null) {
+            long position = SeqIndex.find(reader, offset, seqKey, key);
+            if (position >= 0) {
+                return position;
+            }
+            SeqIndex.logger.warn("Stale index entry for " + seqKey + " in "
+                    + path);
+            SeqIndex.rewind(reader);
+        }
+
+        return SeqIndex.scanTo(reader, seqKeyBytes, key, false);
+    }
+}
@@ -0,0 +1,142 @@
+package ch.zhaw.mami.seq;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONObject;
+
+/**
+ * LRU cache of decoded SequenceFile record values bounded by the total number
+ * of bytes cached. Entries are keyed by path, key, length and modification
+ * time of the SequenceFile so values of a file that changed (for example
+ * through the folder importer) are never served. Appends through this service
+ * drop the entries of the file right away (see {@link #invalidate(String)}).
+ *
+ */
+public class SeqRecordCache {
+
+    private static class Entry {
+
+        private final String path;
+        private final byte[] value;
+
+        public Entry(final String path, final byte[] value) {
+            this.path = path;
+            this.value = value;
+        }
+    }
+
+    private final long capacity;
+    private final long maxEntrySize;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    private final Map<String, Set<String>> keysByPath = new HashMap<String, Set<String>>();
+
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity
+     *            Maximum number of bytes to cache (0 disables the cache).
+     */
+    public SeqRecordCache(final long capacity) {
+        this.capacity = capacity;
+        /* a single huge record shouldn't flush everything else */
+        this.maxEntrySize = capacity / 16;
+    }
+
+    private String cacheKey(final String path, final String seqKey,
+            final long length, final long mtime) {
+        return path + "\u0000" + seqKey + "\u0000" + length + "\u0000" + mtime;
+    }
+
+    public synchronized byte[] get(final String path, final String seqKey,
+            final long length, final long mtime) {
+        Entry entry = entries.get(cacheKey(path, seqKey, length, mtime));
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Drops all values of the SequenceFile at <code>path</code>.
+     */
+    public synchronized void invalidate(final String path) {
+        Set<String> keys = keysByPath.remove(path);
+        if (keys == null) {
+            return;
+        }
+        for (String key : keys) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.value.length;
+            }
+        }
+    }
+
+    /**
+     * Whether a value of <code>length</code> bytes would be cached.
+     */
+    public boolean isCacheable(final long length) {
+        return capacity > 0 && length <= maxEntrySize;
+    }
+
+    public synchronized void put(final String path, final String seqKey,
+            final long length, final long mtime, final byte[] value) {
+        if (!isCacheable(value.length)) {
+            return;
+        }
+
+        String key = cacheKey(path, seqKey, length, mtime);
+        Entry old = entries.put(key, new Entry(path, value));
+        if (old != null) {
+            size -= old.value.length;
+        }
+        size += value.length;
+
+        Set<String> keys = keysByPath.get(path);
+        if (keys == null) {
+            keys = new HashSet<String>();
+            keysByPath.put(path, keys);
+        }
+        keys.add(key);
+
+        /* evict least recently used entries */
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue().value.length;
+            evictions++;
+
+            Set<String> pathKeys = keysByPath.get(eldest.getValue().path);
+            if (pathKeys != null) {
+                pathKeys.remove(eldest.getKey());
+                if (pathKeys.isEmpty()) {
+                    keysByPath.remove(eldest.getValue().path);
+                }
+            }
+        }
+    }
+
+    public synchronized JSONObject stats() {
+        JSONObject obj = new JSONObject();
+        obj.put("capacity", capacity);
+        obj.put("size", size);
+        obj.put("entries", entries.size());
+        obj.put("hits", hits);
+        obj.put("misses", misses);
+        obj.put("evictions", evictions);
+        return obj;
+    }
+}
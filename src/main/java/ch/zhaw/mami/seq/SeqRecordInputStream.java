@@ -0,0 +1,123 @@
+package ch.zhaw.mami.seq;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * Streams the value of a single SequenceFile record (decompressing it on the
+ * fly) instead of materialising it like
+ * <code>SequenceFile.Reader.getCurrentValue</code> does. Only works for
+ * uncompressed and record compressed SequenceFiles with BytesWritable values.
+ *
+ * A record is laid out as
+ * <code>[sync escape, sync hash] record length, key length, key, value</code>
+ * where the value is the (compressed) serialized BytesWritable.
+ *
+ */
+public class SeqRecordInputStream extends FilterInputStream {
+
+    /* see SequenceFile */
+    private final static int SYNC_ESCAPE = -1;
+    private final static int SYNC_HASH_SIZE = 16;
+
+    /**
+     * Whether values of the SequenceFile read by <code>reader</code> can be
+     * streamed.
+     */
+    public static boolean canStream(final SequenceFile.Reader reader) {
+        return !reader.isBlockCompressed()
+                && BytesWritable.class.equals(reader.getValueClass());
+    }
+
+    /**
+     * Opens the value of the record at <code>position</code> (as returned by
+     * {@link SeqIndex#locate}). <code>reader</code> is only used to find out
+     * how the SequenceFile is compressed.
+     */
+    public static SeqRecordInputStream open(final FileSystem fs,
+            final Path pt, final SequenceFile.Reader reader,
+            final long position) throws IOException {
+        if (!SeqRecordInputStream.canStream(reader)) {
+            throw new IllegalArgumentException("Can not stream values of "
+                    + pt.toString());
+        }
+
+        FSDataInputStream in = fs.open(pt);
+        Decompressor decompressor = null;
+
+        try {
+            in.seek(position);
+
+            int recordLength = in.readInt();
+            if (recordLength == SeqRecordInputStream.SYNC_ESCAPE) {
+                in.readFully(new byte[SeqRecordInputStream.SYNC_HASH_SIZE]);
+                recordLength = in.readInt();
+            }
+            int keyLength = in.readInt();
+            in.seek(in.getPos() + keyLength);
+
+            InputStream valueIn = new BoundedInputStream(in, recordLength
+                    - keyLength);
+
+            if (reader.isCompressed()) {
+                CompressionCodec codec = reader.getCompressionCodec();
+                decompressor = CodecPool.getDecompressor(codec);
+                valueIn = codec.createInputStream(valueIn, decompressor);
+            }
+
+            /* serialized BytesWritable: length followed by the bytes */
+            int length = new DataInputStream(valueIn).readInt();
+
+            return new SeqRecordInputStream(new BoundedInputStream(valueIn,
+                    length), length, decompressor);
+        } catch (IOException ex) {
+            in.close();
+            if (decompressor != null) {
+                CodecPool.returnDecompressor(decompressor);
+            }
+            throw ex;
+        }
+    }
+
+    private final int length;
+
+    private Decompressor decompressor;
+
+    private SeqRecordInputStream(final InputStream in, final int length,
+            final Decompressor decompressor) {
+        super(in);
+        this.length = length;
+        this.decompressor = decompressor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (decompressor != null) {
+                CodecPool.returnDecompressor(decompressor);
+                decompressor = null;
+            }
+        }
+    }
+
+    /**
+     * Length of the (uncompressed) value.
+     */
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,553 @@
+package ch.zhaw.mami.seq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.util.Progressable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import ch.zhaw.mami.StripedLocks;
+import ch.zhaw.mami.db.UploadDB;
+
+/**
+ * Keeps one open (appending) SequenceFile.Writer per SequenceFile instead of
+ * opening and closing a writer for every record. Appends to the same file are
+ * serialized. Before an append is acknowledged the file is synced; concurrent
+ * appends share a sync (group commit): whoever syncs first covers every record
+ * appended up to that point.
+ *
+ * Syncs also update the length of the file in the NameNode so readers (which
+ * take the length of a SequenceFile from its FileStatus) see the new records
+ * right away. Appends wait while a sync waits for HDFS, so the length a sync
+ * publishes always ends with a complete record; the records appended in the
+ * meantime share the next sync.
+ *
+ * An open writer holds the lock of its SequenceFile in the UploadDB (taken
+ * when the writer is opened, released when it is closed), so whoever appends
+ * through the pool is covered by that lock. HDFS only allows one writer per
+ * file: other processes (such as the folder importer) find the SequenceFile
+ * locked while it has an open writer here instead of failing on the HDFS
+ * lease. Writers are closed once they have been idle for a while, or by
+ * {@link #close(Path)}.
+ *
+ * Opening and closing writers is serialized per file (with striped locks),
+ * not for the whole pool, so a slow open doesn't hold up appends to other
+ * files.
+ *
+ * Block compressed files buffer records in memory until a block is full, so
+ * a sync also writes out the current block. Records uploaded one at a time
+ * end up in blocks of their own there.
+ *
+ */
+public class SeqWriterPool {
+
+    /**
+     * A writer borrowed from the pool to append several records with a
+     * single sync. Must be released.
+     */
+    public class Handle {
+
+        private final Path pt;
+        private final PooledWriter pw;
+        private long last = 0;
+        private boolean ok = true;
+
+        private Handle(final Path pt, final PooledWriter pw) {
+            this.pt = pt;
+            this.pw = pw;
+        }
+
+        /**
+         * Appends a record (without syncing) and returns its offset.
+         */
+        public long append(final byte[] key,
+                final SequenceFile.ValueBytes value) throws IOException {
+            boolean appended = false;
+            try {
+                long offset;
+                synchronized (pw) {
+                    offset = pw.writer.getLength();
+                    pw.writer.appendRaw(key, 0, key.length, value);
+                    last = ++pw.appended;
+                }
+                appended = true;
+                appends.incrementAndGet();
+                return offset;
+            } finally {
+                ok = ok && appended;
+            }
+        }
+
+        public SeqCompression getCompression() {
+            return pw.compression;
+        }
+
+        public void release() {
+            SeqWriterPool.this.release(pt, pw, ok);
+        }
+
+        /**
+         * Returns once all records appended through this handle are synced.
+         */
+        public void sync() throws IOException {
+            boolean synced = false;
+            try {
+                SeqWriterPool.this.sync(pw, last);
+                synced = true;
+            } finally {
+                ok = ok && synced;
+            }
+        }
+    }
+
+    /**
+     * Remembers the stream it opens for appending. A SequenceFile.Writer
+     * appending to an existing file has to open the stream itself (it takes
+     * the sync marker from the header of the file), this is how the pool gets
+     * hold of it.
+     */
+    private static class AppendingFileSystem extends FilterFileSystem {
+
+        private FSDataOutputStream out;
+
+        public AppendingFileSystem(final FileSystem fs) {
+            super(fs);
+        }
+
+        @Override
+        public FSDataOutputStream append(final Path f, final int bufferSize,
+                final Progressable progress) throws IOException {
+            out = super.append(f, bufferSize, progress);
+            return out;
+        }
+    }
+
+    /**
+     * A path on a given file system (SequenceFile.Writer opens the file on
+     * the file system of its path).
+     */
+    private static class FileSystemPath extends Path {
+
+        private final FileSystem fs;
+
+        public FileSystemPath(final Path pt, final FileSystem fs) {
+            super(pt.toUri());
+            this.fs = fs;
+        }
+
+        @Override
+        public FileSystem getFileSystem(final Configuration conf) {
+            return fs;
+        }
+    }
+
+    private static class PooledWriter {
+
+        private final SequenceFile.Writer writer;
+        private final FSDataOutputStream out;
+        private final SeqCompression compression;
+        private final Object syncLock = new Object();
+
+        /* number of records appended/synced so far (guarded by this) */
+        private long appended = 0;
+        private volatile long synced = 0;
+
+        /* guarded by the pool */
+        private int users = 0;
+        private long lastUsed;
+        private boolean broken = false;
+
+        public PooledWriter(final SequenceFile.Writer writer,
+                final FSDataOutputStream out, final SeqCompression compression) {
+            this.writer = writer;
+            this.out = out;
+            this.compression = compression;
+        }
+    }
+
+    private final static Logger logger = LogManager
+            .getLogger(SeqWriterPool.class);
+
+    private final Configuration conf;
+    private final UploadDB uploadDB;
+    private final long idleTimeout;
+    private final Map<String, PooledWriter> writers = new HashMap<String, PooledWriter>();
+    /* taken before the pool, never the other way round */
+    private final StripedLocks openLocks = new StripedLocks(64);
+    private final ScheduledExecutorService reaper;
+
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+    private long opened = 0;
+
+    /**
+     * A pool whose writers don't take locks (for a process that is the only
+     * one writing its SequenceFiles).
+     */
+    public SeqWriterPool(final Configuration conf, final long idleTimeout) {
+        this(conf, null, idleTimeout);
+    }
+
+    /**
+     * @param idleTimeout
+     *            Seconds after which an unused writer is closed.
+     */
+    public SeqWriterPool(final Configuration conf, final UploadDB uploadDB,
+            final long idleTimeout) {
+        this.conf = conf;
+        this.uploadDB = uploadDB;
+        this.idleTimeout = idleTimeout * 1000;
+
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(r, "seq-writer-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, idleTimeout / 2);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                closeIdle();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns null if the SequenceFile is locked by somebody else.
+     */
+    private PooledWriter acquire(final Path pt,
+            final SeqCompression compression) throws IOException {
+        String path = pt.toString();
+
+        synchronized (openLocks.lockFor(path)) {
+            PooledWriter pw;
+            PooledWriter lost = null;
+            synchronized (this) {
+                pw = writers.get(path);
+                if (pw != null && uploadDB != null
+                        && !uploadDB.holdsLock(path)) {
+                    /* closed once its users are done, see release */
+                    SeqWriterPool.logger.error("Lost the lock of " + path
+                            + ", not using its writer anymore");
+                    pw.broken = true;
+                    writers.remove(path);
+                    if (pw.users == 0) {
+                        lost = pw;
+                    }
+                    pw = null;
+                }
+                if (pw != null) {
+                    if (!pw.compression.equals(compression)) {
+                        throw new IOException(path + " is " + pw.compression
+                                + " not " + compression);
+                    }
+                    pw.users++;
+                    return pw;
+                }
+            }
+            if (lost != null) {
+                closeWriter(path, lost);
+            }
+
+            /* the NameNode may take a while, other files can go on */
+            if (uploadDB != null && !uploadDB.getLock(path)) {
+                return null;
+            }
+            try {
+                pw = openWriter(pt, compression);
+            } catch (IOException ex) {
+                releaseLock(path);
+                throw ex;
+            } catch (RuntimeException ex) {
+                releaseLock(path);
+                throw ex;
+            }
+
+            synchronized (this) {
+                writers.put(path, pw);
+                opened++;
+                pw.users++;
+            }
+            return pw;
+        }
+    }
+
+    /**
+     * Appends a record and returns once it is synced to disk. Returns the
+     * offset of the record (for the SeqIndex) or -1 if the SequenceFile is
+     * locked by somebody else.
+     */
+    public long append(final Path pt, final SeqCompression compression,
+            final byte[] key, final SequenceFile.ValueBytes value)
+            throws IOException {
+        Handle handle = open(pt, compression);
+        if (handle == null) {
+            return -1;
+        }
+        try {
+            long offset = handle.append(key, value);
+            handle.sync();
+            return offset;
+        } finally {
+            handle.release();
+        }
+    }
+
+    /**
+     * Closes the writer of <code>pt</code> (if there is an unused one), which
+     * releases the lock of <code>pt</code>.
+     */
+    public void close(final Path pt) {
+        String path = pt.toString();
+
+        /* nobody may open the file again before the writer is closed */
+        synchronized (openLocks.lockFor(path)) {
+            PooledWriter pw;
+            synchronized (this) {
+                pw = writers.get(path);
+                if (pw == null || pw.users > 0) {
+                    return;
+                }
+                writers.remove(path);
+            }
+            closeWriter(path, pw);
+        }
+    }
+
+    /**
+     * Compression of the SequenceFile <code>pt</code>: that of its open writer
+     * or of the file if there is no open writer or <code>dflt</code> for new
+     * files. Values appended to <code>pt</code> must be prepared for it.
+     */
+    public SeqCompression compression(final Path pt, final SeqCompression dflt)
+            throws IOException {
+        synchronized (this) {
+            PooledWriter pw = writers.get(pt.toString());
+            if (pw != null) {
+                return pw.compression;
+            }
+        }
+        return SeqCompression.forFile(pt.getFileSystem(conf), pt, conf, dflt);
+    }
+
+    /**
+     * Closes all writers (on shutdown).
+     */
+    public void closeAll() {
+        reaper.shutdownNow();
+
+        List<Map.Entry<String, PooledWriter>> all;
+        synchronized (this) {
+            all = new ArrayList<Map.Entry<String, PooledWriter>>(
+                    writers.entrySet());
+            writers.clear();
+        }
+        for (Map.Entry<String, PooledWriter> entry : all) {
+            closeWriter(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void closeIdle() {
+        List<String> idle = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (Map.Entry<String, PooledWriter> entry : writers.entrySet()) {
+                PooledWriter pw = entry.getValue();
+                if (pw.users == 0 && now - pw.lastUsed >= idleTimeout) {
+                    idle.add(entry.getKey());
+                }
+            }
+        }
+
+        for (String path : idle) {
+            synchronized (openLocks.lockFor(path)) {
+                PooledWriter pw;
+                synchronized (this) {
+                    /* may have been used in the meantime */
+                    pw = writers.get(path);
+                    if (pw == null || pw.users > 0
+                            || now - pw.lastUsed < idleTimeout) {
+                        continue;
+                    }
+                    writers.remove(path);
+                }
+                closeWriter(path, pw);
+            }
+        }
+    }
+
+    private void closeWriter(final String path, final PooledWriter pw) {
+        try {
+            pw.writer.close();
+            /* not closed by the writer if it didn't open it */
+            pw.out.close();
+            SeqWriterPool.logger.debug("Closed writer of " + path);
+        } catch (Exception ex) {
+            SeqWriterPool.logger.catching(ex);
+        } finally {
+            releaseLock(path);
+        }
+    }
+
+    /**
+     * Whether <code>pt</code> has an open writer (which holds its lock).
+     */
+    public synchronized boolean isOpen(final Path pt) {
+        return writers.containsKey(pt.toString());
+    }
+
+    /**
+     * Borrows the writer of <code>pt</code> (opening it if necessary).
+     * Returns null if the SequenceFile is locked by somebody else.
+     */
+    public Handle open(final Path pt, final SeqCompression compression)
+            throws IOException {
+        PooledWriter pw = acquire(pt, compression);
+        return pw == null ? null : new Handle(pt, pw);
+    }
+
+    /**
+     * Opens a writer on a stream opened here, so syncs can go to the stream
+     * directly.
+     */
+    private PooledWriter openWriter(final Path pt,
+            final SeqCompression compression) throws IOException {
+        FileSystem fs = pt.getFileSystem(conf);
+
+        if (fs.exists(pt)) {
+            AppendingFileSystem afs = new AppendingFileSystem(fs);
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    compression.writerOption(),
+                    SequenceFile.Writer.keyClass(BytesWritable.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class),
+                    SequenceFile.Writer.appendIfExists(true),
+                    SequenceFile.Writer.file(new FileSystemPath(pt, afs)));
+            return new PooledWriter(writer, afs.out, compression);
+        }
+
+        FSDataOutputStream out = fs.create(pt, false);
+        try {
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    compression.writerOption(),
+                    SequenceFile.Writer.keyClass(BytesWritable.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class),
+                    SequenceFile.Writer.stream(out));
+            return new PooledWriter(writer, out, compression);
+        } catch (IOException ex) {
+            out.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            out.close();
+            throw ex;
+        }
+    }
+
+    private void release(final Path pt, final PooledWriter pw,
+            final boolean ok) {
+        String path = pt.toString();
+        boolean close = false;
+
+        synchronized (this) {
+            if (!ok && !pw.broken) {
+                /* don't hand out a writer in an unknown state again */
+                pw.broken = true;
+                if (writers.get(path) == pw) {
+                    writers.remove(path);
+                }
+            }
+            pw.users--;
+            pw.lastUsed = System.currentTimeMillis();
+            close = pw.broken && pw.users == 0;
+        }
+
+        if (close) {
+            synchronized (openLocks.lockFor(path)) {
+                closeWriter(path, pw);
+            }
+        }
+    }
+
+    private void releaseLock(final String path) {
+        if (uploadDB == null) {
+            return;
+        }
+
+        try {
+            uploadDB.releaseLock(path);
+        } catch (Exception ex) {
+            SeqWriterPool.logger.catching(ex);
+        }
+    }
+
+    public synchronized JSONObject stats() {
+        JSONObject obj = new JSONObject();
+        obj.put("open", writers.size());
+        obj.put("opened", opened);
+        obj.put("appends", appends.get());
+        obj.put("syncs", syncs.get());
+        return obj;
+    }
+
+    /**
+     * Syncs the writer unless record <code>seq</code> was already synced by
+     * somebody else.
+     */
+    private void sync(final PooledWriter pw, final long seq)
+            throws IOException {
+        synchronized (pw.syncLock) {
+            if (pw.synced >= seq) {
+                return;
+            }
+
+            long target;
+            /*
+             * appendRaw writes a record in several pieces, appends wait until
+             * the flush is done so the length published ends with a record
+             */
+            synchronized (pw) {
+                target = pw.appended;
+                if (pw.compression.getType() == CompressionType.BLOCK) {
+                    /* writes out the buffered block */
+                    pw.writer.sync();
+                }
+
+                pw.out.hflush();
+                if (pw.out instanceof HdfsDataOutputStream) {
+                    ((HdfsDataOutputStream) pw.out).hsync(EnumSet
+                            .of(HdfsDataOutputStream.SyncFlag.UPDATE_LENGTH));
+                }
+                else {
+                    pw.out.hsync();
+                }
+            }
+            pw.synced = target;
+            syncs.incrementAndGet();
+        }
+    }
+}
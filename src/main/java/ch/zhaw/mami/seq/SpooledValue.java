@@ -0,0 +1,193 @@
+package ch.zhaw.mami.seq;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+
+import ch.zhaw.mami.Util;
+
+/**
+ * The value of a SequenceFile record read from a stream without holding it in
+ * memory. The data is spooled (and hashed) while it is received. Up to
+ * <code>threshold</code> bytes are kept in memory, anything larger goes to a
+ * temporary file. As <code>SequenceFile.Writer.appendRaw</code> needs the
+ * size of the serialized value up front, values for record compressed
+ * SequenceFiles are compressed into a second spool before appending.
+ *
+ * Values are serialized like BytesWritable: the length followed by the bytes.
+ *
+ */
+public class SpooledValue implements SequenceFile.ValueBytes {
+
+    /**
+     * Serializes a key the way <code>SequenceFile.Writer.append</code> does.
+     */
+    public static byte[] serializeKey(final String seqKey) throws IOException {
+        DataOutputBuffer buf = new DataOutputBuffer();
+        new BytesWritable(seqKey.getBytes("UTF-8")).write(buf);
+        return Arrays.copyOf(buf.getData(), buf.getLength());
+    }
+
+    /**
+     * Reads <code>in</code> up to its end.
+     *
+     * @param codec
+     *            Codec of the SequenceFile (null if it isn't compressed).
+     */
+    public static SpooledValue spool(final InputStream in,
+            final CompressionCodec codec, final int threshold,
+            final File dir, final int bufferSize) throws IOException,
+            NoSuchAlgorithmException {
+        SpooledValue value = new SpooledValue(bufferSize);
+        try {
+            value.receive(in, threshold, dir);
+            if (codec != null) {
+                value.compress(codec, threshold, dir);
+            }
+            return value;
+        } catch (IOException ex) {
+            value.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            value.close();
+            throw ex;
+        }
+    }
+
+    private static void delete(final DeferredFileOutputStream spool) {
+        IOUtils.closeQuietly(spool);
+        if (spool != null && !spool.isInMemory()) {
+            File file = spool.getFile();
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private final int bufferSize;
+
+    private DeferredFileOutputStream raw;
+    private DeferredFileOutputStream compressed;
+    private long length;
+    private String sha1;
+
+    private SpooledValue(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    public void close() {
+        SpooledValue.delete(raw);
+        SpooledValue.delete(compressed);
+    }
+
+    private void compress(final CompressionCodec codec, final int threshold,
+            final File dir) throws IOException {
+        compressed = new DeferredFileOutputStream(threshold, "seqval", ".z",
+                dir);
+
+        Compressor compressor = CodecPool.getCompressor(codec);
+        try {
+            CompressionOutputStream cos = codec.createOutputStream(compressed,
+                    compressor);
+            DataOutputStream dos = new DataOutputStream(cos);
+            writeUncompressedBytes(dos);
+            dos.flush();
+            cos.finish();
+            compressed.close();
+
+            if (compressed.getByteCount() > Integer.MAX_VALUE - 4) {
+                throw new IOException("Value too large for a SequenceFile");
+            }
+        } finally {
+            CodecPool.returnCompressor(compressor);
+        }
+    }
+
+    private void copy(final DeferredFileOutputStream spool,
+            final OutputStream out) throws IOException {
+        InputStream in = spool.isInMemory() ? new ByteArrayInputStream(
+                spool.getData()) : new FileInputStream(spool.getFile());
+        try {
+            byte[] buf = new byte[bufferSize];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Length of the (uncompressed) data.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public String getSha1() {
+        return sha1;
+    }
+
+    @Override
+    public int getSize() {
+        return (int) (compressed != null ? compressed.getByteCount()
+                : 4 + length);
+    }
+
+    private void receive(final InputStream in, final int threshold,
+            final File dir) throws IOException, NoSuchAlgorithmException {
+        raw = new DeferredFileOutputStream(threshold, "seqval", ".raw", dir);
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+        byte[] buf = new byte[bufferSize];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            md.update(buf, 0, read);
+            raw.write(buf, 0, read);
+            length += read;
+            if (length > Integer.MAX_VALUE - 4) {
+                throw new IOException("Value too large for a SequenceFile");
+            }
+        }
+        raw.close();
+
+        sha1 = Util.byteArr2HexStr(md.digest());
+    }
+
+    @Override
+    public void writeCompressedBytes(final DataOutputStream outStream)
+            throws IllegalArgumentException, IOException {
+        if (compressed == null) {
+            throw new IllegalArgumentException("Value is not compressed");
+        }
+        copy(compressed, outStream);
+    }
+
+    @Override
+    public void writeUncompressedBytes(final DataOutputStream outStream)
+            throws IOException {
+        outStream.writeInt((int) length);
+        copy(raw, outStream);
+    }
+}
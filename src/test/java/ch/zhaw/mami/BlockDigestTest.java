@@ -0,0 +1,70 @@
+package ch.zhaw.mami;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class BlockDigestTest extends TestCase {
+
+    public void testBlocks() throws Exception {
+        byte[] data = Fixtures.data(2500);
+
+        BlockDigest bd = new BlockDigest(1000);
+        /* chunks not aligned to blocks */
+        for (int off = 0; off < data.length; off += 333) {
+            bd.update(data, off, Math.min(333, data.length - off));
+        }
+        List<String> blockSha1s = bd.finish();
+
+        assertEquals(3, blockSha1s.size());
+        assertEquals(Fixtures.sha1(data, 0, 1000), blockSha1s.get(0));
+        assertEquals(Fixtures.sha1(data, 1000, 1000),
+                blockSha1s.get(1));
+        assertEquals(Fixtures.sha1(data, 2000, 500), blockSha1s.get(2));
+    }
+
+    public void testVerify() throws Exception {
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File file = File.createTempFile("blocks", ".bin");
+        Path pt = new Path(file.getAbsolutePath());
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        try {
+            byte[] data = Fixtures.data(5500);
+
+            BlockDigest bd = new BlockDigest(1000);
+            bd.update(data, 0, data.length);
+            List<String> blockSha1s = bd.finish();
+
+            OutputStream os = fs.create(pt, true);
+            os.write(data);
+            os.close();
+
+            assertTrue(BlockDigest.verify(fs, pt, 1000, blockSha1s, executor,
+                    64).isEmpty());
+
+            data[1500]++;
+            data[2999]++;
+            data[5100]++;
+            os = fs.create(pt, true);
+            os.write(data, 0, 5200);
+            os.close();
+
+            assertEquals(Arrays.asList(1, 2, 5),
+                    BlockDigest.verify(fs, pt, 1000, blockSha1s, executor, 64));
+        } finally {
+            executor.shutdown();
+            fs.delete(pt, false);
+        }
+    }
+}
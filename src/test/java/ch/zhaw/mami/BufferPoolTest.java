@@ -0,0 +1,25 @@
+package ch.zhaw.mami;
+
+import junit.framework.TestCase;
+
+public class BufferPoolTest extends TestCase {
+
+    public void testReuse() {
+        BufferPool pool = new BufferPool(8, 1);
+
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        assertEquals(8, a.length);
+        assertNotSame(a, b);
+
+        pool.release(a);
+        /* only one buffer is kept */
+        pool.release(b);
+        /* and only buffers of the right size */
+        pool.release(new byte[4]);
+
+        assertSame(a, pool.acquire());
+        assertEquals(3, pool.stats().getLong("acquired"));
+        assertEquals(2, pool.stats().getLong("allocated"));
+    }
+}
@@ -0,0 +1,54 @@
+package ch.zhaw.mami;
+
+import junit.framework.TestCase;
+
+public class ByteRangeTest extends TestCase {
+
+    public void testAbsent() throws Exception {
+        assertNull(ByteRange.parse(null, 100));
+    }
+
+    public void testClosedRange() throws Exception {
+        ByteRange range = ByteRange.parse("bytes=10-19", 100);
+        assertEquals(10, range.getStart());
+        assertEquals(19, range.getEnd());
+        assertEquals(10, range.getLength());
+        assertEquals("bytes 10-19/100", range.contentRange(100));
+    }
+
+    public void testEndClamped() throws Exception {
+        ByteRange range = ByteRange.parse("bytes=90-500", 100);
+        assertEquals(90, range.getStart());
+        assertEquals(99, range.getEnd());
+    }
+
+    public void testIgnored() throws Exception {
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 100));
+        assertNull(ByteRange.parse("items=0-1", 100));
+        assertNull(ByteRange.parse("bytes=5-1", 100));
+        assertNull(ByteRange.parse("bytes=a-b", 100));
+    }
+
+    public void testOpenRange() throws Exception {
+        ByteRange range = ByteRange.parse("bytes=40-", 100);
+        assertEquals(40, range.getStart());
+        assertEquals(99, range.getEnd());
+    }
+
+    public void testSuffixRange() throws Exception {
+        ByteRange range = ByteRange.parse("bytes=-30", 100);
+        assertEquals(70, range.getStart());
+        assertEquals(99, range.getEnd());
+
+        range = ByteRange.parse("bytes=-300", 100);
+        assertEquals(0, range.getStart());
+    }
+
+    public void testUnsatisfiable() {
+        try {
+            ByteRange.parse("bytes=100-", 100);
+            fail();
+        } catch (ByteRange.UnsatisfiableException ex) {
+        }
+    }
+}
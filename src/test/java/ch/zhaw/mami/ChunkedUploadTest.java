@@ -0,0 +1,110 @@
+package ch.zhaw.mami;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.bson.Document;
+
+public class ChunkedUploadTest extends TestCase {
+
+    /**
+     * The first upload into a new campaign/format has no directory yet.
+     */
+    public void testAssembleIntoNewDirectory() throws Exception {
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File tmp = File.createTempFile("session", "");
+        tmp.delete();
+        Path dir = new Path(tmp.getAbsolutePath());
+        Path target = new Path(tmp.getAbsolutePath() + ".new");
+        Path pt = new Path(target, "campaign/format/file.bin");
+
+        try {
+            for (int count : new int[] { 1, 2 }) {
+                byte[] data = Fixtures.data(count * 1000);
+                for (int chunk = 0; chunk < count; chunk++) {
+                    ChunkedUpload.writeChunk(fs, dir, chunk,
+                            new ByteArrayInputStream(data, chunk * 1000, 1000),
+                            1000, 64);
+                }
+
+                ChunkedUpload.assemble(fs, ChunkedUpload.parts(dir, count),
+                        pt, 64);
+
+                InputStream in = fs.open(pt);
+                try {
+                    assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+                } finally {
+                    in.close();
+                }
+                fs.delete(target, true);
+            }
+        } finally {
+            fs.delete(dir, true);
+            fs.delete(target, true);
+        }
+    }
+
+    public void testChunks() throws Exception {
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File tmp = File.createTempFile("session", "");
+        tmp.delete();
+        Path dir = new Path(tmp.getAbsolutePath());
+        Path pt = new Path(tmp.getAbsolutePath() + ".bin");
+
+        try {
+            byte[] data = Fixtures.data(2500);
+
+            /* out of order and one chunk sent twice */
+            for (int chunk : new int[] { 2, 0, 1, 0 }) {
+                int off = chunk * 1000;
+                int len = Math.min(1000, data.length - off);
+                Document doc = ChunkedUpload.writeChunk(fs, dir, chunk,
+                        new ByteArrayInputStream(data, off, len), 1000, 64);
+                assertEquals(len, (long) doc.getLong("length"));
+                assertEquals(Fixtures.sha1(data, off, len),
+                        doc.getString("sha1"));
+            }
+
+            /* too large */
+            assertNull(ChunkedUpload.writeChunk(fs, dir, 3,
+                    new ByteArrayInputStream(data), 1000, 64));
+            assertFalse(fs.exists(ChunkedUpload.chunkPath(dir, 3)));
+
+            List<Path> parts = ChunkedUpload.parts(dir, 3);
+
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            BlockDigest bd = new BlockDigest(1024);
+            ChunkedUpload.hash(fs, parts, md, bd, 64);
+            assertEquals(Fixtures.sha1(data, 0, data.length),
+                    Util.byteArr2HexStr(md.digest()));
+            assertEquals(3, bd.finish().size());
+
+            ChunkedUpload.assemble(fs, parts, pt, 64);
+
+            InputStream in = fs.open(pt);
+            try {
+                assertTrue(Arrays.equals(data, IOUtils.toByteArray(in)));
+            } finally {
+                in.close();
+            }
+            for (Path part : parts) {
+                assertFalse(fs.exists(part));
+            }
+        } finally {
+            fs.delete(dir, true);
+            fs.delete(pt, false);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ch.zhaw.mami;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class ContentStoreTest extends TestCase {
+
+    private File dir;
+    private FileSystem fs;
+
+    private Path write(final String name, final int length) throws Exception {
+        Path pt = new Path(dir.getAbsolutePath(), name);
+        OutputStream os = fs.create(pt);
+        os.write(new byte[length]);
+        os.close();
+        return pt;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("content", "");
+        dir.delete();
+        dir.mkdirs();
+        fs = FileSystem.getLocal(new Configuration());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void testMoveInto() throws Exception {
+        Path blob = new Path(dir.getAbsolutePath(), "ab/abcd");
+
+        Path tmp = write("tmp1", 10);
+        assertTrue(ContentStore.moveInto(fs, tmp, blob));
+        assertFalse(fs.exists(tmp));
+        assertEquals(10, fs.getFileStatus(blob).getLen());
+
+        /* same content again */
+        tmp = write("tmp2", 10);
+        assertFalse(ContentStore.moveInto(fs, tmp, blob));
+        assertFalse(fs.exists(tmp));
+        assertEquals(10, fs.getFileStatus(blob).getLen());
+    }
+
+    public void testMoveIntoLengthMismatch() throws Exception {
+        Path blob = new Path(dir.getAbsolutePath(), "ab/abcd");
+        ContentStore.moveInto(fs, write("tmp1", 10), blob);
+
+        Path tmp = write("tmp2", 11);
+        try {
+            ContentStore.moveInto(fs, tmp, blob);
+            fail();
+        } catch (IOException ex) {
+        }
+        assertEquals(10, fs.getFileStatus(blob).getLen());
+    }
+}
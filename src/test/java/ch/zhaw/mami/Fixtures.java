@@ -0,0 +1,28 @@
+package ch.zhaw.mami;
+
+import java.security.MessageDigest;
+
+/**
+ * Test data shared by the tests of uploads.
+ *
+ */
+public class Fixtures {
+
+    /**
+     * Bytes that don't repeat within a block or chunk.
+     */
+    public static byte[] data(final int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+        return data;
+    }
+
+    public static String sha1(final byte[] data, final int off, final int len)
+            throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update(data, off, len);
+        return Util.byteArr2HexStr(md.digest());
+    }
+}
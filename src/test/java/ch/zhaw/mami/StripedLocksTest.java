@@ -0,0 +1,29 @@
+package ch.zhaw.mami;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class StripedLocksTest extends TestCase {
+
+    public void testSamePath() {
+        StripedLocks locks = new StripedLocks(16);
+        assertSame(locks.lockFor("/a/b.seq"),
+                locks.lockFor(new String("/a/b.seq")));
+    }
+
+    public void testSpread() {
+        StripedLocks locks = new StripedLocks(16);
+        Set<Object> used = new HashSet<Object>();
+        for (int i = 0; i < 1000; i++) {
+            used.add(locks.lockFor("/campaign/file" + i));
+        }
+        assertEquals(16, used.size());
+    }
+
+    public void testSingleStripe() {
+        StripedLocks locks = new StripedLocks(0);
+        assertSame(locks.lockFor("/a"), locks.lockFor("/b"));
+    }
+}
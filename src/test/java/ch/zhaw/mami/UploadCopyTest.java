@@ -0,0 +1,128 @@
+package ch.zhaw.mami;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class UploadCopyTest extends TestCase {
+
+    private ExecutorService writeExecutor;
+
+    /* returns at most 3 bytes per read, like a slow client */
+    private static InputStream trickle(final byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+
+            @Override
+            public int read(final byte[] b, final int off, final int len)
+                    throws IOException {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        writeExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        writeExecutor.shutdownNow();
+    }
+
+    public void testCopy() throws Exception {
+        for (int length : new int[] { 0, 1, 15, 16, 17, 1000 }) {
+            byte[] data = Fixtures.data(length);
+            BufferPool pool = new BufferPool(16, 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            BlockDigest blockDigest = new BlockDigest(100);
+
+            assertEquals(length, UploadCopy.copy(UploadCopyTest.trickle(data),
+                    out, md, blockDigest, pool, writeExecutor));
+
+            assertTrue(Arrays.equals(data, out.toByteArray()));
+            assertEquals(Fixtures.sha1(data, 0, data.length),
+                    Util.byteArr2HexStr(md.digest()));
+            assertEquals((length + 99) / 100, blockDigest.finish().size());
+
+            /* both buffers are back */
+            assertEquals(2, pool.stats().getInt("pooled"));
+        }
+    }
+
+    /**
+     * A failing read doesn't hand out the buffer of a write still running.
+     */
+    public void testReadError() throws Exception {
+        final byte[] data = Fixtures.data(16);
+        InputStream in = new InputStream() {
+
+            private int calls = 0;
+
+            @Override
+            public int read() throws IOException {
+                throw new IOException("reset");
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len)
+                    throws IOException {
+                if (calls++ > 0) {
+                    throw new IOException("reset");
+                }
+                System.arraycopy(data, 0, b, off, len);
+                return len;
+            }
+        };
+        OutputStream out = new OutputStream() {
+
+            @Override
+            public void write(final int b) throws IOException {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        };
+        BufferPool pool = new BufferPool(16, 2);
+
+        try {
+            UploadCopy.copy(in, out, MessageDigest.getInstance("SHA-1"), null,
+                    pool, writeExecutor);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("reset", ex.getMessage());
+        }
+        assertEquals(2, pool.stats().getInt("pooled"));
+    }
+
+    public void testWriteError() throws Exception {
+        OutputStream out = new OutputStream() {
+
+            @Override
+            public void write(final int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+
+        try {
+            UploadCopy.copy(new ByteArrayInputStream(Fixtures.data(100)),
+                    out, MessageDigest.getInstance("SHA-1"), null,
+                    new BufferPool(16, 2), writeExecutor);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("disk full", ex.getMessage());
+        }
+    }
+}
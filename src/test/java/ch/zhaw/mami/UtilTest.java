@@ -0,0 +1,35 @@
+package ch.zhaw.mami;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+public class UtilTest extends TestCase {
+
+    private static String lines(final String text, final long skipLines,
+            final long maxLines, final int bufSize) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Util.copyLines(new ByteArrayInputStream(text.getBytes("UTF-8")), bos,
+                skipLines, maxLines, new byte[bufSize]);
+        return new String(bos.toByteArray(), "UTF-8");
+    }
+
+    public void testCopyLines() throws Exception {
+        String text = "zero\none\ntwo\nthree\nfour";
+        for (int bufSize = 1; bufSize < 32; bufSize++) {
+            assertEquals(text, UtilTest.lines(text, 0, -1, bufSize));
+            assertEquals("zero\n", UtilTest.lines(text, 0, 1, bufSize));
+            assertEquals("one\ntwo\n", UtilTest.lines(text, 1, 2, bufSize));
+            assertEquals("three\nfour", UtilTest.lines(text, 3, -1, bufSize));
+            assertEquals("four", UtilTest.lines(text, 4, 10, bufSize));
+            assertEquals("", UtilTest.lines(text, 5, 10, bufSize));
+            assertEquals("", UtilTest.lines(text, 1, 0, bufSize));
+        }
+    }
+
+    public void testValidatePath() {
+        assertTrue(Util.validatePath("testing/txt/0003.seq"));
+        assertFalse(Util.validatePath("testing/../secret"));
+    }
+}
@@ -0,0 +1,73 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.bson.Document;
+
+public class LogRollupsTest extends TestCase {
+
+    private static Document entry(final String path, final String action,
+            final long timestamp) {
+        return new Document().append("path", path).append("action", action)
+                .append("name", "alice").append("timestamp", timestamp);
+    }
+
+    private static Document key(final String period, final long start,
+            final String action, final String prefix) {
+        return new Document().append("period", period).append("start", start)
+                .append("name", "alice").append("action", action)
+                .append("prefix", prefix);
+    }
+
+    public void testPrefix() {
+        assertEquals("a/b", LogRollups.prefix("a/b/c/d.bin", 2));
+        assertEquals("a/b", LogRollups.prefix("/a//b/c.bin", 2));
+        assertEquals("a", LogRollups.prefix("a/c.bin", 2));
+        assertEquals("a", LogRollups.prefix("a/b/c.bin", 1));
+        /* file names alone have no prefix */
+        assertEquals("", LogRollups.prefix("c.bin", 2));
+        assertEquals("", LogRollups.prefix("", 2));
+        assertEquals("", LogRollups.prefix(null, 2));
+    }
+
+    public void testAggregate() {
+        List<Document> entries = new ArrayList<Document>();
+        /* 2016-01-01 10:00:05 and 10:59:59 UTC, same hour */
+        entries.add(LogRollupsTest.entry("a/b/c.bin", "bin", 1451642405L));
+        entries.add(LogRollupsTest.entry("a/b/d.bin", "bin", 1451645999L));
+        /* next hour, same day */
+        entries.add(LogRollupsTest.entry("a/b/e.bin", "bin", 1451646000L));
+        /* bytes of the first download */
+        entries.add(LogRollupsTest.entry("a/b/c.bin", "bin", 1451642406L)
+                .append("bytes", 100L).append("transfer", true));
+        entries.add(LogRollupsTest.entry("x/y.bin", "check", 1451642405L));
+
+        Map<Document, long[]> rollups = LogRollups.aggregate(entries, 2);
+
+        long[] hour = rollups.get(LogRollupsTest.key(LogRollups.HOUR,
+                1451642400L, "bin", "a/b"));
+        assertEquals(2, hour[0]);
+        assertEquals(100, hour[1]);
+
+        long[] next = rollups.get(LogRollupsTest.key(LogRollups.HOUR,
+                1451646000L, "bin", "a/b"));
+        assertEquals(1, next[0]);
+        assertEquals(0, next[1]);
+
+        long[] day = rollups.get(LogRollupsTest.key(LogRollups.DAY,
+                1451606400L, "bin", "a/b"));
+        assertEquals(3, day[0]);
+        assertEquals(100, day[1]);
+
+        long[] check = rollups.get(LogRollupsTest.key(LogRollups.DAY,
+                1451606400L, "check", "x"));
+        assertEquals(1, check[0]);
+
+        /* two hours and a day for bin, an hour and a day for check */
+        assertEquals(5, rollups.size());
+    }
+}
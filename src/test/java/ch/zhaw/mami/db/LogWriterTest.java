@@ -0,0 +1,173 @@
+package ch.zhaw.mami.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.bson.Document;
+import org.json.JSONObject;
+
+public class LogWriterTest extends TestCase {
+
+    /**
+     * Collects the entries written, optionally waiting for
+     * <code>open</code> before the first batch.
+     */
+    private static class CollectingSink implements LogWriter.Sink {
+
+        private final CountDownLatch open;
+        private final List<Document> entries = new ArrayList<Document>();
+        private final List<Integer> batchSizes = new ArrayList<Integer>();
+
+        public CollectingSink(final CountDownLatch open) {
+            this.open = open;
+        }
+
+        @Override
+        public void write(final List<Document> batch) throws Exception {
+            open.await();
+            synchronized (this) {
+                entries.addAll(batch);
+                batchSizes.add(batch.size());
+            }
+        }
+    }
+
+    private static Document entry(final int i) {
+        return new Document("path", "/" + i);
+    }
+
+    public void testBatches() throws Exception {
+        CountDownLatch open = new CountDownLatch(1);
+        CollectingSink sink = new CollectingSink(open);
+        LogWriter writer = new LogWriter("test", sink, 100, 10,
+                LogWriter.Overflow.BLOCK, 1);
+
+        for (int i = 0; i < 50; i++) {
+            writer.add(LogWriterTest.entry(i));
+        }
+        open.countDown();
+        assertTrue(writer.close(10000));
+
+        /* in order, none lost */
+        assertEquals(50, sink.entries.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("/" + i, sink.entries.get(i).getString("path"));
+        }
+        for (int size : sink.batchSizes) {
+            assertTrue(size <= 10);
+        }
+        /* all but the first waited for the sink */
+        assertTrue(sink.batchSizes.size() < 50);
+
+        JSONObject stats = writer.stats();
+        assertEquals(50, stats.getLong("written"));
+        assertEquals(0, stats.getLong("dropped"));
+        assertEquals(0, stats.getInt("queued"));
+    }
+
+    public void testBlock() throws Exception {
+        CountDownLatch open = new CountDownLatch(1);
+        CollectingSink sink = new CollectingSink(open);
+        final LogWriter writer = new LogWriter("test", sink, 2, 10,
+                LogWriter.Overflow.BLOCK, 1);
+
+        Thread adder = new Thread() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    writer.add(LogWriterTest.entry(i));
+                }
+            }
+        };
+        adder.start();
+        adder.join(200);
+        /* the queue is full and the sink is stuck */
+        assertTrue(adder.isAlive());
+
+        open.countDown();
+        adder.join(10000);
+        assertTrue(writer.close(10000));
+        assertEquals(20, sink.entries.size());
+        assertEquals(0, writer.stats().getLong("dropped"));
+    }
+
+    public void testDrop() throws Exception {
+        CountDownLatch open = new CountDownLatch(1);
+        CollectingSink sink = new CollectingSink(open);
+        LogWriter writer = new LogWriter("test", sink, 5, 10,
+                LogWriter.Overflow.DROP, 1);
+
+        for (int i = 0; i < 100; i++) {
+            writer.add(LogWriterTest.entry(i));
+        }
+        open.countDown();
+        assertTrue(writer.close(10000));
+
+        /* the queue and the batch the sink got stuck with */
+        long written = writer.stats().getLong("written");
+        assertTrue(written >= 5 && written <= 10);
+        assertEquals(100, written + writer.stats().getLong("dropped"));
+    }
+
+    public void testSample() throws Exception {
+        CountDownLatch open = new CountDownLatch(1);
+        CollectingSink sink = new CollectingSink(open);
+        final LogWriter writer = new LogWriter("test", sink, 5, 10,
+                LogWriter.Overflow.SAMPLE, 10);
+
+        Thread adder = new Thread() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    writer.add(LogWriterTest.entry(i));
+                }
+            }
+        };
+        adder.start();
+        /* blocks on the 10th entry that doesn't fit */
+        adder.join(200);
+        assertTrue(adder.isAlive());
+
+        open.countDown();
+        adder.join(10000);
+        assertTrue(writer.close(10000));
+
+        JSONObject stats = writer.stats();
+        assertEquals(100, stats.getLong("written") + stats.getLong("dropped"));
+        assertTrue(stats.getLong("dropped") > 0);
+        assertTrue(stats.getLong("written") > 6);
+    }
+
+    public void testFailedBatch() throws Exception {
+        LogWriter writer = new LogWriter("test", new LogWriter.Sink() {
+
+            @Override
+            public void write(final List<Document> batch) throws Exception {
+                throw new Exception("down");
+            }
+        }, 10, 10, LogWriter.Overflow.BLOCK, 1);
+
+        writer.add(LogWriterTest.entry(0));
+        writer.add(LogWriterTest.entry(1));
+        assertTrue(writer.close(10000));
+
+        assertEquals(2, writer.stats().getLong("failed"));
+        assertEquals(0, writer.stats().getLong("written"));
+    }
+
+    public void testClosed() throws Exception {
+        CollectingSink sink = new CollectingSink(new CountDownLatch(0));
+        LogWriter writer = new LogWriter("test", sink, 10, 10,
+                LogWriter.Overflow.BLOCK, 1);
+        assertTrue(writer.close(10000));
+
+        writer.add(LogWriterTest.entry(0));
+        assertEquals(1, writer.stats().getLong("dropped"));
+        assertTrue(sink.entries.isEmpty());
+    }
+}
@@ -0,0 +1,105 @@
+package ch.zhaw.mami.imp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class ImportCheckpointTest extends TestCase {
+
+    private File file;
+
+    private void commit(final ImportCheckpoint checkpoint, final String key,
+            final long offset, final long length) throws Exception {
+        Map<String, String> sha1s = new HashMap<String, String>();
+        Map<String, Long> offsets = new HashMap<String, Long>();
+        sha1s.put(key, "sha1-" + key);
+        offsets.put(key, offset);
+        checkpoint.commit(sha1s, offsets, length);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("import", ".checkpoint");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+    }
+
+    public void testNew() throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        assertEquals(-1, checkpoint.getLength());
+        assertTrue(checkpoint.getSha1s().isEmpty());
+
+        checkpoint.start(0);
+        assertEquals(0, checkpoint.getLength());
+
+        checkpoint.delete();
+        assertFalse(file.exists());
+    }
+
+    public void testResume() throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        checkpoint.start(100);
+        commit(checkpoint, "x", 100, 200);
+        commit(checkpoint, "y", 200, 300);
+        checkpoint.close();
+
+        checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        assertEquals(300, checkpoint.getLength());
+        assertEquals(2, checkpoint.getSha1s().size());
+        assertEquals("sha1-y", checkpoint.getSha1s().get("y"));
+        assertEquals(Long.valueOf(100), checkpoint.getOffsets().get("x"));
+
+        /* commits after resuming are kept, too */
+        commit(checkpoint, "z", 300, 400);
+        checkpoint.close();
+
+        checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        assertEquals(400, checkpoint.getLength());
+        assertEquals(3, checkpoint.getSha1s().size());
+        checkpoint.close();
+    }
+
+    public void testUncommitted() throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        commit(checkpoint, "x", 0, 100);
+        checkpoint.close();
+
+        /* a batch without its length and a line cut off */
+        FileOutputStream os = new FileOutputStream(file, true);
+        os.write("K y sha1-y 100\nK z sha1-z".getBytes("UTF-8"));
+        os.close();
+
+        checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        assertEquals(100, checkpoint.getLength());
+        assertEquals(1, checkpoint.getSha1s().size());
+        assertTrue(checkpoint.getSha1s().containsKey("x"));
+
+        commit(checkpoint, "w", 100, 150);
+        checkpoint.close();
+
+        checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        assertEquals(150, checkpoint.getLength());
+        assertEquals(2, checkpoint.getSha1s().size());
+        assertFalse(checkpoint.getSha1s().containsKey("z"));
+        checkpoint.close();
+    }
+
+    public void testOtherPath() throws Exception {
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(file, "/a.seq");
+        checkpoint.start(0);
+        checkpoint.close();
+
+        try {
+            ImportCheckpoint.open(file, "/b.seq");
+            fail();
+        } catch (java.io.IOException ex) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ch.zhaw.mami.imp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import ch.zhaw.mami.Util;
+
+public class ImportPipelineTest extends TestCase {
+
+    private File dir;
+
+    private List<ImportPipeline.Entry> entries(final int count)
+            throws Exception {
+        List<ImportPipeline.Entry> entries = new ArrayList<ImportPipeline.Entry>();
+        for (int i = 0; i < count; i++) {
+            File file = new File(dir, "f" + i);
+            FileOutputStream os = new FileOutputStream(file);
+            /* some larger files so entries finish out of order */
+            byte[] data = new byte[i % 10 == 0 ? 200000 : i];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i + j);
+            }
+            os.write(data);
+            os.close();
+
+            File metaFile = new File(dir, "f" + i + ".meta");
+            if (i % 3 == 0) {
+                FileUtils.writeStringToFile(metaFile, "{\"n\":" + i + "}",
+                        "UTF-8");
+            }
+            entries.add(new ImportPipeline.Entry("f" + i, file, metaFile));
+        }
+        return entries;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("pipeline", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void testFailure() throws Exception {
+        List<ImportPipeline.Entry> entries = entries(20);
+        entries.get(12).getFile().delete();
+
+        final List<String> seen = new ArrayList<String>();
+        try {
+            new ImportPipeline(2, 2, 2).run(entries,
+                    new ImportPipeline.Consumer() {
+
+                        @Override
+                        public void accept(final ImportPipeline.Entry entry) {
+                            seen.add(entry.getSeqKey());
+                        }
+                    });
+            fail();
+        } catch (NoSuchFileException ex) {
+        }
+        assertTrue(seen.size() <= 12);
+    }
+
+    public void testOrder() throws Exception {
+        List<ImportPipeline.Entry> entries = entries(200);
+
+        final List<String> seen = new ArrayList<String>();
+        new ImportPipeline(3, 2, 4).run(entries,
+                new ImportPipeline.Consumer() {
+
+                    @Override
+                    public void accept(final ImportPipeline.Entry entry)
+                            throws Exception {
+                        int i = seen.size();
+                        assertEquals("f" + i, entry.getSeqKey());
+
+                        MessageDigest md = MessageDigest.getInstance("SHA-1");
+                        md.update(FileUtils.readFileToByteArray(entry
+                                .getFile()));
+                        assertEquals(Util.byteArr2HexStr(md.digest()),
+                                entry.getSha1());
+                        assertEquals(entry.getFile().length(),
+                                entry.getData().length);
+
+                        if (i % 3 == 0) {
+                            assertEquals("{\"n\":" + i + "}", new String(
+                                    entry.getMeta(), "UTF-8"));
+                        }
+                        else {
+                            assertNull(entry.getMeta());
+                        }
+                        seen.add(entry.getSeqKey());
+                    }
+                });
+        assertEquals(200, seen.size());
+    }
+}
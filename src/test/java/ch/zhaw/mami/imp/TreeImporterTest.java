@@ -0,0 +1,86 @@
+package ch.zhaw.mami.imp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class TreeImporterTest extends TestCase {
+
+    private File dir;
+
+    private ImportPipeline.Entry entry(final String name, final int length)
+            throws Exception {
+        File file = new File(dir, name);
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(new byte[length]);
+        os.close();
+        return new ImportPipeline.Entry(name, file, null);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("tree", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void testNextNumber() throws Exception {
+        FileSystem fs = FileSystem.getLocal(new Configuration());
+        Path pt = new Path(dir.getAbsolutePath());
+
+        assertEquals(0, TreeImporter.nextNumber(fs, new Path(pt, "missing"),
+                "cap"));
+        assertEquals(0, TreeImporter.nextNumber(fs, pt, "cap"));
+
+        new File(dir, "cap-0000.seq").createNewFile();
+        new File(dir, "cap-0007.seq").createNewFile();
+        new File(dir, "cap.seq").createNewFile();
+        new File(dir, "other-0020.seq").createNewFile();
+        assertEquals(8, TreeImporter.nextNumber(fs, pt, "cap"));
+        assertEquals(Arrays.asList("cap-0000", "cap-0007"),
+                TreeImporter.numbered(fs, pt, "cap"));
+    }
+
+    public void testPartition() throws Exception {
+        List<ImportPipeline.Entry> entries = new ArrayList<ImportPipeline.Entry>();
+        entries.add(entry("a", 40));
+        entries.add(entry("b", 40));
+        entries.add(entry("c", 40));
+        entries.add(entry("d", 500));
+        entries.add(entry("e", 10));
+        entries.add(entry("f", 10));
+        entries.add(entry("g", 10));
+        entries.add(entry("h", 10));
+
+        List<List<ImportPipeline.Entry>> parts = TreeImporter.partition(
+                entries, 100, 3);
+
+        /* by size, too large on its own, by count */
+        String[][] expected = { { "a", "b" }, { "c" }, { "d" },
+                { "e", "f", "g" }, { "h" } };
+        assertEquals(expected.length, parts.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].length, parts.get(i).size());
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], parts.get(i).get(j).getSeqKey());
+            }
+        }
+
+        assertTrue(TreeImporter.partition(
+                new ArrayList<ImportPipeline.Entry>(), 100, 3).isEmpty());
+    }
+}
@@ -0,0 +1,30 @@
+package ch.zhaw.mami.scrub;
+
+import junit.framework.TestCase;
+
+public class ThrottleTest extends TestCase {
+
+    public void testRate() throws InterruptedException {
+        Throttle throttle = new Throttle(1000 * 1000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            throttle.acquire(10 * 1000);
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        /* 200KB at 1MB/s */
+        assertTrue(elapsed >= 180);
+        assertTrue(elapsed < 2000);
+    }
+
+    public void testUnlimited() throws InterruptedException {
+        Throttle throttle = new Throttle(0);
+
+        long start = System.nanoTime();
+        throttle.acquire(Long.MAX_VALUE / 2);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(elapsed < 100);
+    }
+}
@@ -0,0 +1,134 @@
+package ch.zhaw.mami.seq;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+
+public class SeqCompressionTest extends TestCase {
+
+    /**
+     * Appends records through the pool and reads them back.
+     */
+    private static void roundTrip(final String spec) throws Exception {
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File file = File.createTempFile("compression", ".seq");
+        file.delete();
+        Path pt = new Path(file.getAbsolutePath());
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        SeqCompression configured = SeqCompression.parse(spec, conf);
+        SeqWriterPool pool = new SeqWriterPool(conf, 3600);
+
+        try {
+            for (int i = 0; i < 6; i++) {
+                /* taken from the open writer after the first append */
+                SeqCompression compression = pool.compression(pt,
+                        i == 0 ? configured : null);
+                assertEquals(configured, compression);
+
+                String seqKey = "file" + i;
+                SpooledValue value = SpooledValue.spool(
+                        new ByteArrayInputStream(("data of " + seqKey)
+                                .getBytes("UTF-8")),
+                        compression.getValueCodec(), 1024, dir, 1024);
+                pool.append(pt, compression,
+                        SpooledValue.serializeKey(seqKey), value);
+                value.close();
+            }
+            pool.closeAll();
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(pt));
+            assertEquals(configured.getType(), reader.getCompressionType());
+            BytesWritable key = new BytesWritable();
+            BytesWritable value = new BytesWritable();
+            int i = 0;
+            while (reader.next(key, value)) {
+                assertEquals("file" + i, new String(key.copyBytes(), "UTF-8"));
+                assertEquals("data of file" + i,
+                        new String(value.copyBytes(), "UTF-8"));
+                i++;
+            }
+            reader.close();
+            assertEquals(6, i);
+
+            if (configured.getType() == CompressionType.NONE) {
+                try {
+                    SeqCompression.forFile(fs, pt, conf, configured);
+                    fail();
+                } catch (IOException ex) {
+                }
+            }
+            else {
+                assertEquals(configured, SeqCompression.forFile(fs, pt, conf,
+                        SeqCompression.parse("NONE", conf)));
+            }
+        } finally {
+            pool.closeAll();
+            fs.delete(pt, false);
+        }
+    }
+
+    public void testBlock() throws Exception {
+        SeqCompressionTest.roundTrip("BLOCK");
+    }
+
+    public void testNone() throws Exception {
+        SeqCompressionTest.roundTrip("NONE");
+    }
+
+    public void testParse() throws Exception {
+        Configuration conf = new Configuration();
+
+        SeqCompression compression = SeqCompression.parse("record", conf);
+        assertEquals(CompressionType.RECORD, compression.getType());
+        assertTrue(compression.getCodec() instanceof DefaultCodec);
+        assertSame(compression.getCodec(), compression.getValueCodec());
+
+        compression = SeqCompression.parse("BLOCK:gzip", conf);
+        assertEquals(CompressionType.BLOCK, compression.getType());
+        assertTrue(compression.getCodec() instanceof GzipCodec);
+        assertNull(compression.getValueCodec());
+
+        assertEquals(compression, SeqCompression.parse(
+                "BLOCK:org.apache.hadoop.io.compress.GzipCodec", conf));
+        assertFalse(compression.equals(SeqCompression.parse("RECORD:gzip",
+                conf)));
+
+        assertNull(SeqCompression.parse("NONE", conf).getCodec());
+
+        assertEquals(compression, SeqCompression.parseAppendable("BLOCK:gzip",
+                conf));
+        try {
+            SeqCompression.parseAppendable("none", conf);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+
+        try {
+            SeqCompression.parse("RECORD:nosuchcodec", conf);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            SeqCompression.parse("FAST", conf);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    public void testRecord() throws Exception {
+        SeqCompressionTest.roundTrip("RECORD:bzip2");
+    }
+}
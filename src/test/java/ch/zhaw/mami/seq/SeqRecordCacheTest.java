@@ -0,0 +1,55 @@
+package ch.zhaw.mami.seq;
+
+import junit.framework.TestCase;
+
+public class SeqRecordCacheTest extends TestCase {
+
+    public void testEviction() {
+        SeqRecordCache cache = new SeqRecordCache(1600);
+
+        cache.put("a.seq", "k1", 10, 1, new byte[100]);
+        cache.put("a.seq", "k2", 10, 1, new byte[100]);
+        /* touch k1 so k2 is the least recently used entry */
+        assertNotNull(cache.get("a.seq", "k1", 10, 1));
+        for (int i = 3; i <= 16; i++) {
+            cache.put("b.seq", "k" + i, 10, 1, new byte[100]);
+        }
+        cache.put("b.seq", "k17", 10, 1, new byte[100]);
+
+        assertNotNull(cache.get("a.seq", "k1", 10, 1));
+        assertNull(cache.get("a.seq", "k2", 10, 1));
+        assertEquals(1600, cache.stats().getLong("size"));
+        assertEquals(1, cache.stats().getLong("evictions"));
+    }
+
+    public void testFileChanged() {
+        SeqRecordCache cache = new SeqRecordCache(1600);
+
+        cache.put("a.seq", "k1", 10, 1, new byte[10]);
+        assertNull(cache.get("a.seq", "k1", 20, 1));
+        assertNull(cache.get("a.seq", "k1", 10, 2));
+        assertNotNull(cache.get("a.seq", "k1", 10, 1));
+    }
+
+    public void testInvalidate() {
+        SeqRecordCache cache = new SeqRecordCache(1600);
+
+        cache.put("a.seq", "k1", 10, 1, new byte[10]);
+        cache.put("b.seq", "k1", 10, 1, new byte[10]);
+        cache.invalidate("a.seq");
+
+        assertNull(cache.get("a.seq", "k1", 10, 1));
+        assertNotNull(cache.get("b.seq", "k1", 10, 1));
+        assertEquals(10, cache.stats().getLong("size"));
+    }
+
+    public void testTooLarge() {
+        SeqRecordCache cache = new SeqRecordCache(1600);
+
+        assertTrue(cache.isCacheable(100));
+        assertFalse(cache.isCacheable(101));
+        cache.put("a.seq", "k1", 10, 1, new byte[101]);
+        assertNull(cache.get("a.seq", "k1", 10, 1));
+        assertFalse(new SeqRecordCache(0).isCacheable(0));
+    }
+}
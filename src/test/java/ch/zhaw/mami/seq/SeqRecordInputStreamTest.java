@@ -0,0 +1,86 @@
+package ch.zhaw.mami.seq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+
+public class SeqRecordInputStreamTest extends TestCase {
+
+    private static byte[] value(final int i) {
+        byte[] value = new byte[1000 + i * 7919];
+        for (int j = 0; j < value.length; j++) {
+            value[j] = (byte) (j * i);
+        }
+        return value;
+    }
+
+    private void check(final CompressionType compressionType) throws Exception {
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        File file = File.createTempFile("seq", ".seq");
+        file.delete();
+        Path pt = new Path(file.getAbsolutePath());
+
+        try {
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.compression(compressionType),
+                    SequenceFile.Writer.keyClass(BytesWritable.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class),
+                    SequenceFile.Writer.file(pt));
+            for (int i = 0; i < 20; i++) {
+                writer.append(new BytesWritable(("k" + i).getBytes("UTF-8")),
+                        new BytesWritable(SeqRecordInputStreamTest.value(i)));
+            }
+            writer.close();
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(pt));
+            assertTrue(SeqRecordInputStream.canStream(reader));
+
+            BytesWritable key = new BytesWritable();
+            int i = 0;
+            while (true) {
+                long position = reader.getPosition();
+                if (!reader.next(key)) {
+                    break;
+                }
+
+                SeqRecordInputStream is = SeqRecordInputStream.open(fs, pt,
+                        reader, position);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buf = new byte[333];
+                int read;
+                while ((read = is.read(buf)) > 0) {
+                    bos.write(buf, 0, read);
+                }
+                is.close();
+
+                byte[] expected = SeqRecordInputStreamTest.value(i);
+                assertEquals(expected.length, is.getLength());
+                assertTrue(Arrays.equals(expected, bos.toByteArray()));
+                i++;
+            }
+            reader.close();
+            assertEquals(20, i);
+        } finally {
+            fs.delete(pt, false);
+        }
+    }
+
+    public void testNone() throws Exception {
+        check(CompressionType.NONE);
+    }
+
+    public void testRecord() throws Exception {
+        check(CompressionType.RECORD);
+    }
+}
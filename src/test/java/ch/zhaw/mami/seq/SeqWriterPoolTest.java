@@ -0,0 +1,139 @@
+package ch.zhaw.mami.seq;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+public class SeqWriterPoolTest extends TestCase {
+
+    /**
+     * Reopening the writer of an existing file appends to it (the checksummed
+     * local file system can't append).
+     */
+    public void testAppendToExisting() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", RawLocalFileSystem.class.getName());
+        conf.setBoolean("fs.file.impl.disable.cache", true);
+        File file = File.createTempFile("pool", ".seq");
+        file.delete();
+        Path pt = new Path(file.getAbsolutePath());
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        SeqCompression compression = SeqCompression.parse("RECORD", conf);
+        SeqWriterPool pool = new SeqWriterPool(conf, 3600);
+
+        try {
+            for (int i = 0; i < 4; i++) {
+                String seqKey = "file" + i;
+                SpooledValue value = SpooledValue.spool(
+                        new ByteArrayInputStream(seqKey.getBytes("UTF-8")),
+                        compression.getValueCodec(), 1024, dir, 1024);
+                pool.append(pt, compression,
+                        SpooledValue.serializeKey(seqKey), value);
+                value.close();
+                pool.close(pt);
+                assertEquals(0, pool.stats().getInt("open"));
+            }
+            assertEquals(4, pool.stats().getLong("opened"));
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(pt));
+            BytesWritable key = new BytesWritable();
+            BytesWritable value = new BytesWritable();
+            int i = 0;
+            while (reader.next(key, value)) {
+                assertEquals("file" + i, new String(key.copyBytes(), "UTF-8"));
+                assertEquals("file" + i, new String(value.copyBytes(), "UTF-8"));
+                i++;
+            }
+            reader.close();
+            assertEquals(4, i);
+        } finally {
+            pool.closeAll();
+            pt.getFileSystem(conf).delete(pt, false);
+        }
+    }
+
+    public void testConcurrentAppends() throws Exception {
+        final Configuration conf = new Configuration();
+        File file = File.createTempFile("pool", ".seq");
+        file.delete();
+        final Path pt = new Path(file.getAbsolutePath());
+        final File dir = new File(System.getProperty("java.io.tmpdir"));
+        final SeqCompression compression = SeqCompression.parse("RECORD",
+                conf);
+        final SeqWriterPool pool = new SeqWriterPool(conf, 3600);
+        final List<Exception> errors = new ArrayList<Exception>();
+
+        try {
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final int n = t;
+                Thread thread = new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 25; i++) {
+                                String seqKey = "t" + n + "-" + i;
+                                SpooledValue value = SpooledValue.spool(
+                                        new ByteArrayInputStream(seqKey
+                                                .getBytes("UTF-8")),
+                                        compression.getValueCodec(),
+                                        1024, dir, 1024);
+                                pool.append(pt, compression,
+                                        SpooledValue.serializeKey(seqKey),
+                                        value);
+                                value.close();
+                            }
+                        } catch (Exception ex) {
+                            synchronized (errors) {
+                                errors.add(ex);
+                            }
+                        }
+                    }
+                };
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(errors.isEmpty());
+            assertEquals(1, pool.stats().getInt("open"));
+            assertEquals(100, pool.stats().getLong("appends"));
+            assertTrue(pool.stats().getLong("syncs") <= 100);
+
+            pool.closeAll();
+            assertEquals(0, pool.stats().getInt("open"));
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(pt));
+            BytesWritable key = new BytesWritable();
+            BytesWritable value = new BytesWritable();
+            Set<String> seen = new HashSet<String>();
+            while (reader.next(key, value)) {
+                String seqKey = new String(key.copyBytes(), "UTF-8");
+                assertEquals(seqKey, new String(value.copyBytes(), "UTF-8"));
+                seen.add(seqKey);
+            }
+            reader.close();
+            assertEquals(100, seen.size());
+        } finally {
+            pool.closeAll();
+            FileSystem.getLocal(conf).delete(pt, false);
+        }
+    }
+}
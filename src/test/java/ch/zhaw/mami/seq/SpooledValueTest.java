@@ -0,0 +1,85 @@
+package ch.zhaw.mami.seq;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+
+public class SpooledValueTest extends TestCase {
+
+    private static byte[] value(final int i) {
+        byte[] value = new byte[100 + i * 5000];
+        for (int j = 0; j < value.length; j++) {
+            value[j] = (byte) (j % 251 + i);
+        }
+        return value;
+    }
+
+    private void check(final CompressionType compressionType) throws Exception {
+        Configuration conf = new Configuration();
+        File file = File.createTempFile("spool", ".seq");
+        file.delete();
+        Path pt = new Path(file.getAbsolutePath());
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+
+        CompressionCodec codec = null;
+        if (compressionType != CompressionType.NONE) {
+            codec = ReflectionUtils.newInstance(DefaultCodec.class, conf);
+        }
+
+        try {
+            SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                    SequenceFile.Writer.compression(compressionType,
+                            new DefaultCodec()),
+                    SequenceFile.Writer.keyClass(BytesWritable.class),
+                    SequenceFile.Writer.valueClass(BytesWritable.class),
+                    SequenceFile.Writer.file(pt));
+            for (int i = 0; i < 5; i++) {
+                /* below and above the threshold */
+                SpooledValue value = SpooledValue.spool(
+                        new ByteArrayInputStream(SpooledValueTest.value(i)),
+                        codec, 8000, dir, 1024);
+                assertEquals(SpooledValueTest.value(i).length,
+                        value.getLength());
+                byte[] key = SpooledValue.serializeKey("k" + i);
+                writer.appendRaw(key, 0, key.length, value);
+                value.close();
+            }
+            writer.close();
+
+            SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+                    SequenceFile.Reader.file(pt));
+            BytesWritable key = new BytesWritable();
+            BytesWritable value = new BytesWritable();
+            int i = 0;
+            while (reader.next(key, value)) {
+                assertEquals("k" + i, new String(key.copyBytes(), "UTF-8"));
+                assertTrue(Arrays.equals(SpooledValueTest.value(i),
+                        value.copyBytes()));
+                i++;
+            }
+            reader.close();
+            assertEquals(5, i);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testNone() throws Exception {
+        check(CompressionType.NONE);
+    }
+
+    public void testRecord() throws Exception {
+        check(CompressionType.RECORD);
+    }
+}